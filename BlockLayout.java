@@ -0,0 +1,135 @@
+import java.util.*;
+
+/*
+   Orders the blocks of one function for emission without a profile,
+   after Pettis and Hansen.  How often an edge runs is guessed from loop
+   nesting: a block is ten times as hot as the loop around it, and a
+   conditional branch leaving a loop is taken one time in ten.  Edges are
+   then taken hottest first to chain blocks so that one falls into the
+   next, which puts the latch of a loop right before its test and leaves
+   the loop with a single branch per iteration.  The chains are placed
+   from the entry, each one after the hottest edge into it.
+*/
+public class BlockLayout {
+   private FlowGraph graph;
+   private int depth[];          /* loop depth by block id */
+   private int chain[];          /* towards the head of the chain of a block */
+   private int next[];           /* the block after this one, -1 at a tail */
+   private int tail[];           /* by id of the head */
+
+   public BlockLayout(FlowGraph graph) {
+      this.graph = graph;
+      this.depth = graph.getLoopDepth();
+   }
+
+   public List<BasicBlock> getBlocks() {
+      buildChains();
+      return placeChains();
+   }
+
+   private static class Edge {
+      int from, to;
+      double weight;
+
+      Edge(int from, int to, double weight) {
+         this.from = from;
+         this.to = to;
+         this.weight = weight;
+      }
+   }
+
+   /* hottest first, ties go to the edge that comes first in the function */
+   private final Comparator<Edge> hottest = new Comparator<Edge>() {
+      public int compare(Edge a, Edge b) {
+         if (a.weight != b.weight)
+            return a.weight > b.weight ? -1 : 1;
+         if (a.from != b.from)
+            return graph.getRpoNumber(a.from) - graph.getRpoNumber(b.from);
+         return graph.getRpoNumber(a.to) - graph.getRpoNumber(b.to);
+      }
+   };
+
+   /* how often the edge to the i-th successor of b runs */
+   private double weight(int b, int i) {
+      int succs[] = graph.getSuccessors(b);
+      double probability = 1.0 / succs.length;
+
+      if (succs.length == 2) {
+         boolean exits = depth[succs[i]] < depth[b];
+         boolean otherExits = depth[succs[1 - i]] < depth[b];
+         if (exits != otherExits)
+            probability = exits ? 0.1 : 0.9;
+      }
+      return Math.pow(10, Math.min(depth[b], 8)) * probability;
+   }
+
+   /* join chains where the tail of one has a hot edge to the head of another */
+   private void buildChains() {
+      int n = graph.getBlockCount();
+      int entry = graph.getEntry().getId();
+      List<Edge> edges = new ArrayList<Edge>();
+
+      chain = new int[n];
+      next = new int[n];
+      tail = new int[n];
+      for (int b : graph.getReversePostorder()) {
+         chain[b] = b;
+         next[b] = -1;
+         tail[b] = b;
+         for (int i = 0; i < graph.getSuccessors(b).length; i++)
+            edges.add(new Edge(b, graph.getSuccessors(b)[i], weight(b, i)));
+      }
+      Collections.sort(edges, hottest);
+
+      for (Edge e : edges) {
+         int head = headOf(e.from);
+         if (e.to == entry || chain[e.to] != e.to || tail[head] != e.from
+               || head == e.to)
+            continue;
+         next[e.from] = e.to;
+         tail[head] = tail[e.to];
+         chain[e.to] = head;
+      }
+   }
+
+   private int headOf(int b) {
+      int head = b;
+
+      while (chain[head] != head)
+         head = chain[head];
+      while (chain[b] != head) {
+         int up = chain[b];
+         chain[b] = head;
+         b = up;
+      }
+      return head;
+   }
+
+   /* the entry chain first, then whichever chain the hottest edge enters */
+   private List<BasicBlock> placeChains() {
+      List<BasicBlock> result = new ArrayList<BasicBlock>(graph.size());
+      PriorityQueue<Edge> pending = new PriorityQueue<Edge>(11, hottest);
+      BitSet placed = new BitSet(graph.getBlockCount());
+      int head = graph.getEntry().getId();
+
+      while (true) {
+         placed.set(head);
+         for (int b = head; b != -1; b = next[b]) {
+            int succs[] = graph.getSuccessors(b);
+
+            result.add(graph.getBlock(b));
+            for (int i = 0; i < succs.length; i++) {
+               if (!placed.get(headOf(succs[i])))
+                  pending.add(new Edge(b, succs[i], weight(b, i)));
+            }
+         }
+
+         // everything reachable is entered from a chain placed before it
+         do {
+            if (pending.isEmpty())
+               return result;
+            head = headOf(pending.poll().to);
+         } while (placed.get(head));
+      }
+   }
+}
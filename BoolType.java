@@ -8,8 +8,9 @@ public class BoolType extends Type {
         return instance;
     }
 
+    /* a byte in a struct, a whole register or global anywhere else */
     public int size() {
-       return 8;
+       return 1;
     }
 }
 
@@ -0,0 +1,231 @@
+/*
+   The runtime behind print and read.  Numbers are turned into decimal by
+   hand into a 64k buffer that goes out with one write(2) when it fills
+   up, before input is waited for and when the program exits.  Input is
+   read(2) 64k at a time and parsed like scanf("%ld") would, a read that
+   finds no number leaves the last value read.
+
+   The routines make system calls directly and touch nothing but the
+   registers in clobbered, so a call to them costs the code around it
+   less than a call to libc does.
+*/
+public class BufferedIO {
+   /* registers a call to __print, __println or __read may change */
+   public static final Operand clobbered[] =
+   {Operand.RAX, Operand.RCX, Operand.RDX, Operand.RSI, Operand.RDI};
+
+   private static final int BUFFER_SIZE = 65536;
+   /* room a number takes in the buffer while it is put there */
+   private static final int NUMBER_SIZE = 32;
+   /* ceil(2^68 / 100) as a signed long */
+   private static final long HUNDREDTH = 0x28F5C28F5C28F5C3L;
+
+   public static String getRuntime() {
+      StringBuilder out = new StringBuilder();
+
+      out.append("\t.comm readtmp 8, 8\n");
+      out.append("\t.comm __out_buf " + BUFFER_SIZE + ", 32\n");
+      out.append("\t.comm __out_len 8, 8\n");
+      out.append("\t.comm __in_buf " + BUFFER_SIZE + ", 32\n");
+      out.append("\t.comm __in_pos 8, 8\n");
+      out.append("\t.comm __in_end 8, 8\n");
+      out.append("\t.section .rodata\n");
+      out.append("__io_pairs:\n");
+      for (int i = 0; i < 100; i += 10) {
+         out.append("\t.ascii \"");
+         for (int j = i; j < i + 10; j++)
+            out.append(j / 10).append(j % 10);
+         out.append("\"\n");
+      }
+      // whatever is left in the buffer goes out at exit
+      out.append("\t.section .fini_array, \"aw\"\n");
+      out.append("\t.quad __io_flush\n");
+      out.append("\t.text\n");
+
+      // %rdi is the number, %rsi the byte after it or 0
+      out.append("__println:\n");
+      out.append("\tmovq $10, %rsi\n");
+      out.append("\tjmp __print_number\n");
+      out.append("__print:\n");
+      out.append("\tmovq $0, %rsi\n");
+      out.append("__print_number:\n");
+      out.append("\tmovq __out_len, %rcx\n");
+      out.append("\tcmpq $" + (BUFFER_SIZE - NUMBER_SIZE) + ", %rcx\n");
+      out.append("\tjbe 1f\n");
+      out.append("\tcall __io_flush\n");
+      out.append("\tmovq $0, %rcx\n");
+      out.append("1:\n");
+      out.append("\tleaq __out_buf(%rcx), %rcx\n");
+      out.append("\tmovq %rdi, %rax\n");
+      out.append("\ttestq %rax, %rax\n");
+      out.append("\tjns 2f\n");
+      out.append("\tmovb $45, (%rcx)\n");
+      out.append("\tincq %rcx\n");
+      // unsigned from here on, so the most negative number works too
+      out.append("\tnegq %rax\n");
+      out.append("2:\n");
+      out.append("\tpushq %r8\n");
+      out.append("\tpushq %r9\n");
+      // the digits come out two at a time, last first, into the red
+      // zone.  x / 100 is the high half of (x >> 2) * HUNDREDTH >> 2
+      out.append("\tleaq -8(%rsp), %rdi\n");
+      out.append("\tmovabsq $" + HUNDREDTH + ", %r9\n");
+      out.append("3:\n");
+      out.append("\tcmpq $100, %rax\n");
+      out.append("\tjb 4f\n");
+      out.append("\tmovq %rax, %r8\n");
+      out.append("\tshrq $2, %rax\n");
+      out.append("\tmulq %r9\n");
+      out.append("\tshrq $2, %rdx\n");
+      out.append("\tmovq %rdx, %rax\n");
+      out.append("\timulq $100, %rdx\n");
+      out.append("\tsubq %rdx, %r8\n");
+      out.append("\tmovzwq __io_pairs(%r8,%r8), %rdx\n");
+      out.append("\tsubq $2, %rdi\n");
+      out.append("\tmovw %dx, (%rdi)\n");
+      out.append("\tjmp 3b\n");
+      out.append("4:\n");
+      out.append("\tcmpq $10, %rax\n");
+      out.append("\tjb 5f\n");
+      out.append("\tmovzwq __io_pairs(%rax,%rax), %rdx\n");
+      out.append("\tsubq $2, %rdi\n");
+      out.append("\tmovw %dx, (%rdi)\n");
+      out.append("\tjmp 6f\n");
+      out.append("5:\n");
+      out.append("\taddq $48, %rax\n");
+      out.append("\tdecq %rdi\n");
+      out.append("\tmovb %al, (%rdi)\n");
+      // there are at most 20 digits, copying 24 bytes is fewer steps
+      out.append("6:\n");
+      for (int i = 0; i < 24; i += 8) {
+         out.append("\tmovq " + i + "(%rdi), %rax\n");
+         out.append("\tmovq %rax, " + i + "(%rcx)\n");
+      }
+      out.append("\tleaq -8(%rsp), %rax\n");
+      out.append("\tsubq %rdi, %rax\n");
+      out.append("\taddq %rax, %rcx\n");
+      out.append("\tpopq %r9\n");
+      out.append("\tpopq %r8\n");
+      out.append("\ttestq %rsi, %rsi\n");
+      out.append("\tjz 5f\n");
+      out.append("\tmovb %sil, (%rcx)\n");
+      out.append("\tincq %rcx\n");
+      out.append("5:\n");
+      out.append("\tsubq $__out_buf, %rcx\n");
+      out.append("\tmovq %rcx, __out_len\n");
+      out.append("\tretq\n");
+
+      // write(2) the whole buffer, only %rax and %rcx change
+      out.append("__io_flush:\n");
+      out.append("\tpushq %rdi\n");
+      out.append("\tpushq %rsi\n");
+      out.append("\tpushq %rdx\n");
+      out.append("\tpushq %r11\n");
+      out.append("\tmovq $__out_buf, %rsi\n");
+      out.append("\tmovq __out_len, %rdx\n");
+      out.append("1:\n");
+      out.append("\ttestq %rdx, %rdx\n");
+      out.append("\tjle 2f\n");
+      out.append("\tmovq $1, %rax\n");
+      out.append("\tmovq $1, %rdi\n");
+      out.append("\tsyscall\n");
+      out.append("\ttestq %rax, %rax\n");
+      out.append("\tjle 2f\n");
+      out.append("\taddq %rax, %rsi\n");
+      out.append("\tsubq %rax, %rdx\n");
+      out.append("\tjmp 1b\n");
+      out.append("2:\n");
+      out.append("\tmovq $0, __out_len\n");
+      out.append("\tpopq %r11\n");
+      out.append("\tpopq %rdx\n");
+      out.append("\tpopq %rsi\n");
+      out.append("\tpopq %rdi\n");
+      out.append("\tretq\n");
+
+      // the next input byte in %rax, -1 at the end, only %rcx changes
+      out.append("__in_byte:\n");
+      out.append("\tmovq __in_pos, %rcx\n");
+      out.append("\tcmpq __in_end, %rcx\n");
+      out.append("\tjb 1f\n");
+      out.append("\tcall __in_fill\n");
+      out.append("\tmovq __in_pos, %rcx\n");
+      out.append("\tcmpq __in_end, %rcx\n");
+      out.append("\tjb 1f\n");
+      out.append("\tmovq $-1, %rax\n");
+      out.append("\tretq\n");
+      out.append("1:\n");
+      out.append("\tmovzbq __in_buf(%rcx), %rax\n");
+      out.append("\tincq %rcx\n");
+      out.append("\tmovq %rcx, __in_pos\n");
+      out.append("\tretq\n");
+
+      // output someone may be waiting on goes out before blocking
+      out.append("__in_fill:\n");
+      out.append("\tcall __io_flush\n");
+      out.append("\tpushq %rdi\n");
+      out.append("\tpushq %rsi\n");
+      out.append("\tpushq %rdx\n");
+      out.append("\tpushq %r11\n");
+      out.append("\tmovq $0, %rax\n");
+      out.append("\tmovq $0, %rdi\n");
+      out.append("\tmovq $__in_buf, %rsi\n");
+      out.append("\tmovq $" + BUFFER_SIZE + ", %rdx\n");
+      out.append("\tsyscall\n");
+      out.append("\ttestq %rax, %rax\n");
+      out.append("\tjns 1f\n");
+      out.append("\tmovq $0, %rax\n");
+      out.append("1:\n");
+      out.append("\tmovq $0, __in_pos\n");
+      out.append("\tmovq %rax, __in_end\n");
+      out.append("\tpopq %r11\n");
+      out.append("\tpopq %rdx\n");
+      out.append("\tpopq %rsi\n");
+      out.append("\tpopq %rdi\n");
+      out.append("\tretq\n");
+
+      // %rsi is set for a minus, %rdi the value and %rdx the digit count
+      out.append("__read:\n");
+      out.append("\tmovq $0, %rsi\n");
+      out.append("\tmovq $0, %rdi\n");
+      out.append("\tmovq $0, %rdx\n");
+      out.append("1:\n");
+      out.append("\tcall __in_byte\n");
+      out.append("\tcmpq $32, %rax\n");
+      out.append("\tje 1b\n");
+      out.append("\tleaq -9(%rax), %rcx\n");
+      out.append("\tcmpq $4, %rcx\n");
+      out.append("\tjbe 1b\n");
+      out.append("\tcmpq $43, %rax\n");
+      out.append("\tje 2f\n");
+      out.append("\tcmpq $45, %rax\n");
+      out.append("\tjne 3f\n");
+      out.append("\tmovq $1, %rsi\n");
+      out.append("2:\n");
+      out.append("\tcall __in_byte\n");
+      out.append("3:\n");
+      out.append("\tleaq -48(%rax), %rcx\n");
+      out.append("\tcmpq $9, %rcx\n");
+      out.append("\tja 4f\n");
+      out.append("\timulq $10, %rdi\n");
+      out.append("\taddq %rcx, %rdi\n");
+      out.append("\tincq %rdx\n");
+      out.append("\tjmp 2b\n");
+      // the byte after the number is left for the next read
+      out.append("4:\n");
+      out.append("\tcmpq $-1, %rax\n");
+      out.append("\tje 5f\n");
+      out.append("\tdecq __in_pos\n");
+      out.append("5:\n");
+      out.append("\ttestq %rdx, %rdx\n");
+      out.append("\tjz 6f\n");
+      out.append("\ttestq %rsi, %rsi\n");
+      out.append("\tjz 7f\n");
+      out.append("\tnegq %rdi\n");
+      out.append("7:\n");
+      out.append("\tmovq %rdi, readtmp\n");
+      out.append("6:\n");
+      out.append("\tmovq readtmp, %rax\n");
+      out.append("\tretq\n");
+      return out.toString();
+   }
+}
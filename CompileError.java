@@ -0,0 +1,13 @@
+/*
+   An error in the program being compiled, or in reading or writing its
+   files.  The message is what the user is told.  The phase that finds
+   it throws it instead of exiting, so a batch can go on with the next
+   file.
+*/
+public class CompileError extends RuntimeException {
+   private static final long serialVersionUID = 1L;
+
+   public CompileError(String message) {
+      super(message);
+   }
+}
@@ -0,0 +1,510 @@
+import org.antlr.runtime.*;
+import org.antlr.runtime.tree.*;
+
+import java.io.File;
+import java.util.*;
+
+/*
+   The compiler as an object to keep and call: the source of one file
+   goes in, its iloc and assembly come out together with what went wrong
+   and how long each phase took.  Nothing is read, written or printed,
+   and an error in the program ends up in the result instead of ending
+   the process.
+
+   A compiler holds nothing but its options and the threads its
+   functions are compiled on, so any number of threads may use one at
+   once.  Each thread keeps a lexer and a parser to use again for the
+   next file it compiles, the tree walkers are cheap to make.
+
+      Compiler compiler = new Compiler(new Compiler.Options.Builder()
+            .optimize(true).build());
+      Compiler.Result result = compiler.compile("a.mini", source);
+*/
+public class Compiler {
+   /* phases in the timings of a result, nested ones are part of another */
+   public static final String FRONT_END = "front end";
+   public static final String ILOC = "iloc";
+   public static final String OPTIMIZE = "optimize";       /* of iloc */
+   public static final String BACK_END = "x86";
+   public static final String ALLOCATION = "allocation";   /* of x86 */
+   public static final String LIVENESS = "liveness";       /* of allocation */
+
+   public static final long DEFAULT_CACHE_SIZE = 256L << 20;
+
+   /* how to compile, made by a Builder */
+   public static class Options {
+      private boolean optimize;
+      private int inline = 1;
+      private boolean linearScan;
+      private boolean pooled;
+      private int threads = 1;
+      private File cache;
+      private long cacheSize = DEFAULT_CACHE_SIZE;
+
+      private Options() {
+      }
+
+      private Options(Options other) {
+         optimize = other.optimize;
+         inline = other.inline;
+         linearScan = other.linearScan;
+         pooled = other.pooled;
+         threads = other.threads;
+         cache = other.cache;
+         cacheSize = other.cacheSize;
+      }
+
+      public boolean getOptimize() {
+         return optimize;
+      }
+
+      public int getInline() {
+         return inline;
+      }
+
+      public boolean getLinearScan() {
+         return linearScan;
+      }
+
+      public boolean getPooled() {
+         return pooled;
+      }
+
+      public int getThreads() {
+         return threads;
+      }
+
+      public File getCache() {
+         return cache;
+      }
+
+      public long getCacheSize() {
+         return cacheSize;
+      }
+
+      public static class Builder {
+         private Options options;
+
+         public Builder() {
+            options = new Options();
+         }
+
+         /* starts from the options given */
+         public Builder(Options other) {
+            options = new Options(other);
+         }
+
+         /* the optimizer, and the inliner at the inline level */
+         public Builder optimize(boolean flag) {
+            options.optimize = flag;
+            return this;
+         }
+
+         /* 0 to Inliner.MAX_LEVEL, higher levels are the highest */
+         public Builder inline(int level) {
+            if (level < 0)
+               throw new IllegalArgumentException("inline level " + level);
+            options.inline = level;
+            return this;
+         }
+
+         /* linear scan instead of graph coloring */
+         public Builder linearScan(boolean flag) {
+            options.linearScan = flag;
+            return this;
+         }
+
+         /* new and delete go to pools */
+         public Builder pooled(boolean flag) {
+            options.pooled = flag;
+            return this;
+         }
+
+         /* threads the functions of a file are compiled on */
+         public Builder threads(int count) {
+            if (count < 1)
+               throw new IllegalArgumentException("thread count " + count);
+            options.threads = count;
+            return this;
+         }
+
+         /* where to keep functions between runs, null for nowhere */
+         public Builder cache(File directory) {
+            options.cache = directory;
+            return this;
+         }
+
+         /* bytes the cache may take, the least recently used go first */
+         public Builder cacheSize(long bytes) {
+            if (bytes < 1)
+               throw new IllegalArgumentException("cache size " + bytes);
+            options.cacheSize = bytes;
+            return this;
+         }
+
+         public Options build() {
+            return new Options(options);
+         }
+      }
+   }
+
+   /* what compiling one file gave */
+   public static class Result {
+      private boolean succeeded;
+      private List<String> diagnostics = new ArrayList<String>();
+      private Map<String, Long> timings = new LinkedHashMap<String, Long>();
+      private String iloc;
+      private String asm;
+      private String peepholeReport;
+      private int cacheHits;
+
+      public boolean succeeded() {
+         return succeeded;
+      }
+
+      /* what went wrong, in order */
+      public List<String> getDiagnostics() {
+         return diagnostics;
+      }
+
+      /* nanoseconds by phase, for the phases that ran */
+      public Map<String, Long> getTimings() {
+         return timings;
+      }
+
+      public String getIloc() {
+         return iloc;
+      }
+
+      /* null for a file without a name, there is none to put in it */
+      public String getAsm() {
+         return asm;
+      }
+
+      /* how often each peephole rule fired, see Peephole.getReport */
+      public String getPeepholeReport() {
+         return peepholeReport;
+      }
+
+      /* functions taken from the cache instead of compiled */
+      public int getCacheHits() {
+         return cacheHits;
+      }
+   }
+
+   private static final ThreadLocal<MiniLexer> lexers =
+      new ThreadLocal<MiniLexer>() {
+         protected MiniLexer initialValue() {
+            return new MiniLexer();
+         }
+      };
+   private static final ThreadLocal<MiniParser> parsers =
+      new ThreadLocal<MiniParser>() {
+         protected MiniParser initialValue() {
+            return new MiniParser(null);
+         }
+      };
+
+   private Options options;
+   private FunctionPool pool;
+   private FunctionCache cache;   /* null without a cache directory */
+
+   /* IllegalArgumentException if the cache directory can't be made */
+   public Compiler(Options options) {
+      this.options = options;
+      if (options.getCache() != null)
+         cache = new FunctionCache(options.getCache(),
+               options.getCacheSize());
+      pool = new FunctionPool(options.getThreads());
+   }
+
+   public Options getOptions() {
+      return options;
+   }
+
+   /* lets the threads of the compiler go, it compiles nothing after */
+   public void shutdown() {
+      pool.shutdown();
+   }
+
+   public Result compile(String name, String source) {
+      return compile(name, new ANTLRStringStream(source));
+   }
+
+   /* name is the file the source is from, null if it has none */
+   public Result compile(String name, CharStream input) {
+      Result result = new Result();
+
+      try {
+         translate(name, input, result);
+      }
+      catch (CompileError e) {
+         result.diagnostics.add(e.getMessage());
+      }
+      catch (RuntimeException e) {
+         result.diagnostics.add("internal error: " + e);
+      }
+      return result;
+   }
+
+   /* the tree of the source, null if there is none, for tools to show */
+   public CommonTree parse(CharStream input, List<String> diagnostics) {
+      MiniParser parser = startParser(input, diagnostics);
+
+      try {
+         return parse(parser);
+      }
+      catch (CompileError e) {
+         diagnostics.add(e.getMessage());
+         return null;
+      }
+      finally {
+         stopParser(parser);
+      }
+   }
+
+   private void translate(String name, CharStream input, Result result) {
+      long start = System.nanoTime();
+      MiniParser parser = startParser(input, result.diagnostics);
+      CommonTokenStream tokens = (CommonTokenStream)parser.getTokenStream();
+      CommonTree tree;
+
+      try {
+         tree = parse(parser);
+         if (parser.hasErrors())
+            return;
+      }
+      finally {
+         stopParser(parser);
+      }
+
+      typeCheck(tree, tokens);
+      long frontEnd = System.nanoTime();
+      result.timings.put(FRONT_END, frontEnd - start);
+      ControlFlowGraph graph = generateProgram(tree, tokens);
+      List<CommonTree> trees = graph.getFunctionTrees();
+      // only the assembly is worth keeping, a file without a name has none
+      FunctionKeys keys = cache != null && name != null
+         ? new FunctionKeys(tree, options) : null;
+      FunctionCache.Entry entries[] = new FunctionCache.Entry[trees.size()];
+      List<Integer> build = new ArrayList<Integer>();
+      boolean inline = options.getOptimize() && options.getInline() > 0;
+
+      for (int i = 0; i < entries.length; i++) {
+         if (keys != null)
+            entries[i] = cache.get(keys.getKeys().get(i));
+         if (entries[i] == null)
+            build.add(i);
+      }
+      // the inliner can only go by the whole program
+      if (inline && !build.isEmpty()) {
+         build.clear();
+         for (int i = 0; i < entries.length; i++)
+            build.add(i);
+      }
+      List<CommonTree> buildTrees = new ArrayList<CommonTree>();
+      for (int i : build)
+         buildTrees.add(trees.get(i));
+      List<BasicBlock> funs = generateFunctions(graph, buildTrees, tokens);
+
+      long optimizeStart = System.nanoTime();
+      if (options.getOptimize())
+         new Inliner(funs, options.getInline()).run();
+      // what an inlined function came to may still be known
+      List<BasicBlock> compile = new ArrayList<BasicBlock>();
+      List<Integer> compiled = new ArrayList<Integer>();
+      String inlinedKeys[] = new String[entries.length];
+      for (int j = 0; j < funs.size(); j++) {
+         int i = build.get(j);
+         if (entries[i] != null)
+            continue;
+         if (keys != null && inline) {
+            inlinedKeys[i] = keys.getInlinedKey(funs.get(j));
+            entries[i] = cache.get(inlinedKeys[i]);
+            if (entries[i] != null) {
+               cache.put(keys.getKeys().get(i), entries[i]);
+               continue;
+            }
+         }
+         compile.add(funs.get(j));
+         compiled.add(i);
+      }
+      pool.map(compile, new FunctionPool.Task<BasicBlock, Void>() {
+         public Void run(BasicBlock fun) {
+            if (options.getOptimize())
+               new Optimizer(fun).optimize();
+            else
+               new ControlFlowSimplification(fun).run();
+            return null;
+         }
+      });
+      result.timings.put(OPTIMIZE, System.nanoTime() - optimizeStart);
+      List<String> iloc = getFunctionStrings(compile);
+      long ilocDone = System.nanoTime();
+      result.timings.put(ILOC, ilocDone - frontEnd);
+
+      X86 x86 = null;
+      List<X86.Function> asm = null;
+      if (name != null) {
+         x86 = new X86(name, compile, graph.getExitBlocks(),
+               graph.getGlobals());
+         x86.setLinearScan(options.getLinearScan());
+         x86.setPooled(options.getPooled());
+         x86.setFunctionPool(pool);
+         asm = x86.emit();
+      }
+      for (int j = 0; j < compile.size(); j++) {
+         int i = compiled.get(j);
+         entries[i] = new FunctionCache.Entry(iloc.get(j),
+               asm != null ? asm.get(j) : null);
+         if (keys != null) {
+            cache.put(keys.getKeys().get(i), entries[i]);
+            if (inlinedKeys[i] != null)
+               cache.put(inlinedKeys[i], entries[i]);
+         }
+      }
+      result.cacheHits = entries.length - compile.size();
+
+      StringBuilder builder = new StringBuilder();
+      List<X86.Function> functions = new ArrayList<X86.Function>();
+      for (FunctionCache.Entry entry : entries) {
+         builder.append(entry.getIloc());
+         functions.add(entry.getFunction());
+      }
+      builder.append("\n");
+      result.iloc = builder.toString();
+      if (x86 != null) {
+         result.asm = x86.link(functions);
+         result.timings.put(BACK_END, System.nanoTime() - ilocDone);
+         result.timings.put(ALLOCATION, x86.getAllocationTime());
+         result.timings.put(LIVENESS, x86.getLivenessTime());
+         result.peepholeReport = x86.getPeephole().getReport();
+      }
+      result.succeeded = true;
+   }
+
+   /* the parser of this thread, reading input */
+   private static MiniParser startParser(CharStream input,
+         List<String> diagnostics) {
+      MiniLexer lexer = lexers.get();
+      MiniParser parser = parsers.get();
+
+      lexer.setCharStream(input);
+      lexer.setMessages(diagnostics);
+      parser.setTokenStream(new CommonTokenStream(lexer));
+      parser.setMessages(diagnostics);
+      return parser;
+   }
+
+   /* drops the file, so a thread keeps no more than the parsers */
+   private static void stopParser(MiniParser parser) {
+      MiniLexer lexer = lexers.get();
+
+      lexer.setCharStream(null);
+      lexer.setMessages(null);
+      parser.setTokenStream(null);
+      parser.setMessages(null);
+   }
+
+   private static CommonTree parse(MiniParser parser) {
+      try {
+         MiniParser.program_return ret = parser.program();
+
+         return (CommonTree)ret.getTree();
+      }
+      catch (RecognitionException e) {
+         throw new CompileError(e.toString());
+      }
+      catch (Exception e) {
+         throw new CompileError(e.toString());
+      }
+   }
+
+   private static void typeCheck(CommonTree tree, CommonTokenStream tokens) {
+      try {
+         CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
+         nodes.setTokenStream(tokens);
+         TypeCheck tchecker = new TypeCheck(nodes);
+
+         tchecker.translate();
+      }
+      catch (RecognitionException e) {
+         throw new CompileError(e.toString());
+      }
+   }
+
+   /* the globals, structs and signatures, the functions come after */
+   private static ControlFlowGraph generateProgram(CommonTree tree,
+         CommonTokenStream tokens) {
+      try {
+         CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
+         nodes.setTokenStream(tokens);
+         ControlFlowGraph graph = new ControlFlowGraph(nodes);
+         graph.translate();
+         return graph;
+      }
+      catch (RecognitionException e) {
+         throw new CompileError(e.toString());
+      }
+   }
+
+   /* the functions are built each by a parser of its own, in the pool */
+   private List<BasicBlock> generateFunctions(final ControlFlowGraph program,
+         List<CommonTree> trees, final CommonTokenStream tokens) {
+      List<ControlFlowGraph> functions = pool.map(trees,
+            new FunctionPool.Task<CommonTree, ControlFlowGraph>() {
+               public ControlFlowGraph run(CommonTree fun) {
+                  return generateFunction(fun, tokens, program);
+               }
+            });
+
+      for (ControlFlowGraph function : functions)
+         program.addFunction(function);
+      return program.getFunBlocks();
+   }
+
+   private static ControlFlowGraph generateFunction(CommonTree fun,
+         CommonTokenStream tokens, ControlFlowGraph program) {
+      ControlFlowGraph graph = null;
+
+      try {
+         CommonTreeNodeStream nodes = new CommonTreeNodeStream(fun);
+         nodes.setTokenStream(tokens);
+         graph = new ControlFlowGraph(nodes);
+         graph.setProgram(program);
+         graph.function();
+      }
+      catch (RecognitionException e) {
+         throw new CompileError(e.toString());
+      }
+      return graph;
+   }
+
+   /* the iloc of each function, in order */
+   private List<String> getFunctionStrings(List<BasicBlock> blocks) {
+      return pool.map(blocks, new FunctionPool.Task<BasicBlock, String>() {
+         public String run(BasicBlock block) {
+            return getFunctionString(block);
+         }
+      });
+   }
+
+   /* Generate string for each function */
+   private static String getFunctionString(BasicBlock block) {
+      StringBuilder builder = new StringBuilder();
+
+      for (BasicBlock nextBlock : block.getFunctionBlocks())
+         builder.append(getBlockString(nextBlock));
+      return builder.toString();
+   }
+
+   /* generate iloc string for a basic block */
+   private static String getBlockString(BasicBlock block) {
+      StringBuilder builder = new StringBuilder();
+
+      builder.append(block + ":\n");
+      for (Instruction op : block.getInstructions())
+         builder.append("\t" + op + "\n");
+      return builder.toString();
+   }
+}
@@ -0,0 +1,444 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+   Checks of the compiler that a program and its output can't show, made
+   through the Compiler API on the programs under tests/.  Run from the
+   top of the tree by make check, after tests/run.
+*/
+public class CompilerTest {
+   private static int passed;
+   private static int failed;
+
+   public static void main(String[] args) throws Exception {
+      List<File> programs = programs();
+
+      sameForAnyThreads(programs);
+      batch(programs);
+      outputNames(programs.get(0));
+      inlineLevels(programs.get(0));
+      server(programs.get(0));
+      errors();
+      concurrent(programs);
+      cacheHits();
+      cacheEviction();
+
+      System.out.println(passed + " passed, " + failed + " failed");
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   private static void check(String name, boolean ok) {
+      if (ok) {
+         passed++;
+      }
+      else {
+         failed++;
+         System.out.println("FAIL " + name);
+      }
+   }
+
+   /* the programs under tests/ that run, by name */
+   private static List<File> programs() {
+      List<File> programs = new ArrayList<File>();
+
+      for (File file : new File("tests").listFiles()) {
+         String name = file.getName();
+         if (name.endsWith(".out"))
+            programs.add(new File("tests", name.replace(".out", ".mini")));
+      }
+      Collections.sort(programs);
+      return programs;
+   }
+
+   private static String read(File file) throws IOException {
+      return new String(Files.readAllBytes(file.toPath()),
+            StandardCharsets.UTF_8);
+   }
+
+   /* a fresh directory under the system's temporary one */
+   private static File temporary() throws IOException {
+      File directory = Files.createTempDirectory("minitest").toFile();
+
+      directory.deleteOnExit();
+      return directory;
+   }
+
+   private static void delete(File file) {
+      File files[] = file.listFiles();
+
+      if (files != null) {
+         for (File child : files)
+            delete(child);
+      }
+      file.delete();
+   }
+
+   /* runs the class main with args, what it printed to stderr goes in err */
+   private static int java(String main, List<String> args, File err)
+         throws IOException, InterruptedException {
+      List<String> command = new ArrayList<String>();
+
+      command.add(new File(System.getProperty("java.home"), "bin/java")
+            .getPath());
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(main);
+      command.addAll(args);
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+      builder.redirectError(err);
+      return builder.start().waitFor();
+   }
+
+   private static Compiler.Options.Builder options() {
+      return new Compiler.Options.Builder().optimize(true);
+   }
+
+   /* the functions of a file go to many threads, the output can't tell */
+   private static void sameForAnyThreads(List<File> programs)
+         throws IOException {
+      Compiler one = new Compiler(options().threads(1).build());
+      Compiler many = new Compiler(options().threads(4).build());
+
+      for (File program : programs) {
+         String source = read(program);
+         Compiler.Result a = one.compile(program.getName(), source);
+         Compiler.Result b = many.compile(program.getName(), source);
+         check("same output on 1 and 4 threads: " + program,
+               a.succeeded() && b.succeeded()
+               && a.getAsm().equals(b.getAsm())
+               && a.getIloc().equals(b.getIloc()));
+      }
+      one.shutdown();
+      many.shutdown();
+   }
+
+   /*
+      a batch writes what each file compiles to next to it, the same as
+      compiling it alone, and reports a file that fails without stopping
+   */
+   private static void batch(List<File> programs) throws Exception {
+      File directory = temporary();
+      Compiler compiler = new Compiler(new Compiler.Options.Builder()
+            .build());
+      List<String> args = new ArrayList<String>();
+
+      args.add("-j");
+      args.add("4");
+      for (File program : programs) {
+         File copy = new File(directory, program.getName());
+         Files.copy(program.toPath(), copy.toPath());
+         args.add(copy.getPath());
+      }
+      File bad = new File(directory, "bad.mini");
+      Files.write(bad.toPath(), "fun main() int { return x; }\n"
+            .getBytes(StandardCharsets.UTF_8));
+      args.add(bad.getPath());
+
+      File err = new File(directory, "err");
+      check("batch fails when a file does", java("Mini", args, err) == 1);
+      String messages = read(err);
+      check("batch names the file that failed",
+            messages.contains(bad.getPath() + ": Line 1:"));
+      check("batch counts the files",
+            messages.contains(programs.size() + " compiled, 1 failed"));
+      for (File program : programs) {
+         File asm = new File(directory,
+               program.getName().replace(".mini", ".s"));
+         Compiler.Result alone = compiler.compile(
+               new File(directory, program.getName()).getPath(),
+               read(program));
+         check("batch output same as alone: " + program,
+               asm.exists() && read(asm).equals(alone.getAsm()));
+      }
+      check("batch writes nothing for a file that fails",
+            !new File(directory, "bad.s").exists());
+      compiler.shutdown();
+      delete(directory);
+   }
+
+   /* an inline level out of range is refused, not a stack trace */
+   private static void inlineLevels(File program) throws Exception {
+      File directory = temporary();
+      File err = new File(directory, "err");
+      File copy = new File(directory, program.getName());
+      Files.copy(program.toPath(), copy.toPath());
+
+      for (String level : new String[] {"-1", "" + (Inliner.MAX_LEVEL + 1),
+               "x"}) {
+         check("Mini refuses -inline " + level, java("Mini",
+                  Arrays.asList("-O", "-inline", level, copy.getPath()),
+                  err) == 1
+               && read(err).equals("inline level must be 0 to "
+                  + Inliner.MAX_LEVEL + ": " + level + "\n"));
+      }
+      check("Mini takes -inline " + Inliner.MAX_LEVEL, java("Mini",
+               Arrays.asList("-O", "-inline", "" + Inliner.MAX_LEVEL,
+                  copy.getPath()), err) == 0);
+      delete(directory);
+   }
+
+   /* a source not named .mini gets its output added to its name */
+   private static void outputNames(File program) throws Exception {
+      File directory = temporary();
+      File err = new File(directory, "err");
+      String source = read(program);
+      File one = new File(directory, "one.txt");
+      File two = new File(directory, "two.txt");
+      Files.copy(program.toPath(), one.toPath());
+      Files.copy(program.toPath(), two.toPath());
+
+      check("Mini compiles a .txt", java("Mini",
+               Arrays.asList(one.getPath()), err) == 0);
+      check("Mini leaves a .txt alone", read(one).equals(source)
+            && new File(directory, "one.txt.s").exists());
+      check("Mini batch compiles .txt files", java("Mini",
+               Arrays.asList(one.getPath(), two.getPath()), err) == 0);
+      check("Mini batch leaves .txt files alone", read(one).equals(source)
+            && read(two).equals(source)
+            && new File(directory, "two.txt.il").exists()
+            && new File(directory, "two.txt.s").exists());
+      delete(directory);
+   }
+
+   /*
+      the client writes what the server compiles the way Mini would, and
+      the server's warm-up leaves the cache alone
+   */
+   private static void server(File program) throws Exception {
+      File directory = temporary();
+      File cache = new File(directory, "cache");
+      File copy = new File(directory, program.getName());
+      File err = new File(directory, "err");
+      Files.copy(program.toPath(), copy.toPath());
+
+      ServerSocket free = new ServerSocket(0);
+      int port = free.getLocalPort();
+      free.close();
+      final MiniServer server = new MiniServer(port, new Compiler(
+               new Compiler.Options.Builder().cache(cache).build()), 2);
+      Thread thread = new Thread() {
+         public void run() {
+            try {
+               server.run();
+            }
+            catch (IOException e) {
+            }
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+
+      // the server listens before it warms up, a client waits for it
+      int status = 1;
+      for (int i = 0; i < 100 && status != 0; i++) {
+         status = java("MiniClient", Arrays.asList("-port", "" + port,
+                  copy.getPath()), err);
+         if (status != 0)
+            Thread.sleep(100);
+      }
+      check("client compiles on the server", status == 0);
+      File asm = new File(directory,
+            program.getName().replace(".mini", ".s"));
+      Compiler alone = new Compiler(new Compiler.Options.Builder().build());
+      check("client writes what Mini would", asm.exists()
+            && read(asm).equals(alone.compile(copy.getPath(),
+                  read(program)).getAsm()));
+      alone.shutdown();
+
+      File fresh = new File(directory, "fresh");
+      Compiler cached = new Compiler(new Compiler.Options.Builder()
+            .cache(fresh).build());
+      cached.compile(copy.getPath(), read(program));
+      cached.shutdown();
+      check("server warm-up leaves the cache alone", Arrays.equals(
+               sortedNames(cache), sortedNames(fresh)));
+
+      File text = new File(directory, "source.txt");
+      Files.copy(program.toPath(), text.toPath());
+      check("client leaves a .txt alone", java("MiniClient",
+               Arrays.asList("-port", "" + port, "-dumpIL",
+                  text.getPath()), err) == 0
+            && read(text).equals(read(program))
+            && new File(directory, "source.txt.il").exists()
+            && new File(directory, "source.txt.s").exists());
+
+      File bad = new File(directory, "bad.mini");
+      Files.write(bad.toPath(), "fun main() int { return x; }\n"
+            .getBytes(StandardCharsets.UTF_8));
+      check("client fails with the file", java("MiniClient",
+               Arrays.asList("-port", "" + port, bad.getPath()), err) == 1
+            && read(err).startsWith("Line 1:"));
+      check("client without files fails", java("MiniClient",
+               Arrays.asList("-port", "" + port), err) == 1
+            && read(err).startsWith("usage:"));
+      delete(directory);
+   }
+
+   private static String[] sortedNames(File directory) {
+      String names[] = directory.list();
+
+      if (names == null)
+         return new String[0];
+      Arrays.sort(names);
+      return names;
+   }
+
+   /* an error in the program goes in the result, nothing is printed */
+   private static void errors() throws IOException {
+      Compiler compiler = new Compiler(options().build());
+      PrintStream out = System.out, err = System.err;
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      Compiler.Result result;
+
+      System.setOut(new PrintStream(printed));
+      System.setErr(new PrintStream(printed));
+      try {
+         result = compiler.compile("void_return.mini",
+               read(new File("tests", "void_return.mini")));
+      }
+      finally {
+         System.setOut(out);
+         System.setErr(err);
+      }
+      check("error in the diagnostics", !result.succeeded()
+            && result.getDiagnostics().equals(Arrays.asList(
+                  "Line 5: void function must not return a value")));
+      check("error not printed", printed.size() == 0);
+      compiler.shutdown();
+   }
+
+   /* threads compiling on one compiler get what each would alone */
+   private static void concurrent(final List<File> programs)
+         throws Exception {
+      final Compiler compiler = new Compiler(options().threads(2).build());
+      final List<String> sources = new ArrayList<String>();
+      final List<String> expected = new ArrayList<String>();
+
+      for (File program : programs) {
+         sources.add(read(program));
+         expected.add(compiler.compile(program.getName(),
+                  sources.get(sources.size() - 1)).getAsm());
+      }
+
+      final int rounds = 4;
+      final String results[][] = new String[8][programs.size() * rounds];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < results.length; t++) {
+         final int thread = t;
+         threads.add(new Thread() {
+            public void run() {
+               // each thread starts at another program
+               for (int i = 0; i < results[thread].length; i++) {
+                  int p = (i + thread) % programs.size();
+                  results[thread][i] = compiler.compile(
+                        programs.get(p).getName(), sources.get(p)).getAsm();
+               }
+            }
+         });
+      }
+      for (Thread thread : threads)
+         thread.start();
+      for (Thread thread : threads)
+         thread.join();
+
+      boolean same = true;
+      for (int t = 0; t < results.length; t++) {
+         for (int i = 0; i < results[t].length; i++) {
+            int p = (i + t) % programs.size();
+            same &= expected.get(p).equals(results[t][i]);
+         }
+      }
+      check("compiler used by 8 threads at once", same);
+      compiler.shutdown();
+   }
+
+   private static final String CACHED =
+      "int g;\n"
+      + "fun f(int n) int { return n * 2; }\n"
+      + "fun h(int n) int { g = n; return f(n) + 1; }\n"
+      + "fun main() int { print h(%d) endl; return 0; }\n";
+
+   /*
+      a function is taken from the cache until it or what it uses
+      changes, and an entry that was damaged is compiled again
+   */
+   private static void cacheHits() throws IOException {
+      File directory = temporary();
+      Compiler compiler = new Compiler(new Compiler.Options.Builder()
+            .cache(directory).build());
+      Compiler plain = new Compiler(new Compiler.Options.Builder().build());
+      String first = String.format(CACHED, 3);
+      String second = String.format(CACHED, 4);
+
+      Compiler.Result miss = compiler.compile("c.mini", first);
+      check("cache misses when empty", miss.getCacheHits() == 0);
+      Compiler.Result hit = compiler.compile("c.mini", first);
+      check("cache hits every function", hit.getCacheHits() == 3);
+      check("cache hit gives the same output",
+            hit.getAsm().equals(plain.compile("c.mini", first).getAsm())
+            && hit.getIloc().equals(miss.getIloc()));
+      Compiler.Result changed = compiler.compile("c.mini", second);
+      check("cache misses the function that changed",
+            changed.getCacheHits() == 2 && changed.getAsm().equals(
+                  plain.compile("c.mini", second).getAsm()));
+
+      for (File entry : directory.listFiles()) {
+         byte bytes[] = Files.readAllBytes(entry.toPath());
+         Files.write(entry.toPath(),
+               Arrays.copyOf(bytes, bytes.length / 2));
+      }
+      Compiler.Result torn = compiler.compile("c.mini", first);
+      check("cache drops damaged entries", torn.getCacheHits() == 0
+            && torn.getAsm().equals(hit.getAsm()));
+      check("cache writes them again",
+            compiler.compile("c.mini", first).getCacheHits() == 3);
+      compiler.shutdown();
+      plain.shutdown();
+      delete(directory);
+   }
+
+   private static String key(int n) {
+      return String.format("%064x", n);
+   }
+
+   /* the entries used least recently go once the cache is over its size */
+   private static void cacheEviction() throws IOException {
+      File directory = temporary();
+      // kilobytes that don't deflate away, so sizes are near the limit's
+      StringBuilder asm = new StringBuilder();
+      Random random = new Random(1);
+      for (int i = 0; i < 8192; i++)
+         asm.append((char)('a' + random.nextInt(26)));
+      FunctionCache.Entry entry = new FunctionCache.Entry("iloc",
+            new X86.Function(asm.toString(), new TreeSet<String>(),
+               new int[4]));
+
+      new FunctionCache(directory, 1 << 20).put(key(0), entry);
+      long size = new File(directory, key(0)).length();
+      FunctionCache cache = new FunctionCache(directory, size * 21 / 2);
+      long past = System.currentTimeMillis() - 3600 * 1000;
+
+      // ten entries, used in order an hour ago
+      for (int i = 0; i < 10; i++) {
+         cache.put(key(i), entry);
+         new File(directory, key(i)).setLastModified(past + i * 1000);
+      }
+      check("cache keeps what fits", directory.list().length == 10);
+      check("cache hit", cache.get(key(0)) != null);
+      cache.put(key(10), entry);
+
+      check("cache evicts to three quarters of its size",
+            directory.list().length == 7);
+      check("cache keeps the entry used last", cache.get(key(0)) != null);
+      check("cache keeps the entry written last",
+            cache.get(key(10)) != null);
+      check("cache evicts the entry used longest ago",
+            cache.get(key(1)) == null && cache.get(key(5)) != null);
+      check("cache misses a key it never had", cache.get(key(99)) == null);
+      delete(directory);
+   }
+}
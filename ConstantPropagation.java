@@ -0,0 +1,458 @@
+import java.util.*;
+
+/*
+   Sparse conditional constant propagation (Wegman and Zadeck) over the
+   SSA form of one function.  A register starts out unknown, becomes a
+   constant and at worst varying, and only blocks reached over an edge
+   that can execute are looked at, so a branch on a constant keeps its
+   other side from spoiling the values it would merge into.
+
+   Registers defined more than once (the conditional moves) and the
+   ones defined by loads or calls are varying.  The condition code is
+   not a register, a branch finds its comp in its own block.
+
+   Afterwards registers with a constant value get a loadi, branches that
+   only go one way become a jumpi and the blocks that can't be reached
+   are cut out of the graph.
+*/
+public class ConstantPropagation {
+   private static final int UNKNOWN = 0, TAKEN = 1, NOT_TAKEN = 2, EITHER = 3;
+
+   private BasicBlock fun;
+   private FlowGraph graph;
+
+   private Map<Operand, Long> constants = new HashMap<Operand, Long>();
+   private Set<Operand> varying = new HashSet<Operand>();
+
+   private Map<Operand, List<Instruction>> users =
+      new HashMap<Operand, List<Instruction>>();
+   private Map<Instruction, Integer> blockOf =
+      new HashMap<Instruction, Integer>();
+   private Map<String, BasicBlock> blockByLabel =
+      new HashMap<String, BasicBlock>();
+
+   /* comp an instruction reading the condition code gets it from */
+   private Map<Instruction, Instruction> compareOf =
+      new HashMap<Instruction, Instruction>();
+   private Map<Instruction, List<Instruction>> compareUsers =
+      new HashMap<Instruction, List<Instruction>>();
+
+   private BitSet visited;
+   private Set<Long> executable = new HashSet<Long>();
+   private LinkedList<int[]> flowWork = new LinkedList<int[]>();
+   private LinkedList<Instruction> ssaWork = new LinkedList<Instruction>();
+
+   public ConstantPropagation(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      graph = new FlowGraph(fun);
+      visited = new BitSet(graph.getBlockCount());
+
+      collect();
+      propagate();
+      rewrite();
+   }
+
+   private void collect() {
+      Map<Operand, Integer> defs = new HashMap<Operand, Integer>();
+
+      for (int b : graph.getReversePostorder()) {
+         Instruction compare = null;
+
+         blockByLabel.put(graph.getBlock(b).getLabel(), graph.getBlock(b));
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            blockOf.put(ins, b);
+            for (Operand reg : ins.getSources()) {
+               if (!users.containsKey(reg))
+                  users.put(reg, new ArrayList<Instruction>());
+               users.get(reg).add(ins);
+            }
+            for (Operand reg : ins.getTargets()) {
+               Integer count = defs.get(reg);
+               defs.put(reg, count == null ? 1 : count + 1);
+            }
+
+            if (ins.getOpcode() == Opcode.COMP) {
+               compare = ins;
+               compareUsers.put(ins, new ArrayList<Instruction>());
+            }
+            else if (readsCondition(ins) && compare != null) {
+               compareOf.put(ins, compare);
+               compareUsers.get(compare).add(ins);
+            }
+         }
+      }
+
+      // registers with more than one definition can't be tracked
+      for (Map.Entry<Operand, Integer> entry : defs.entrySet()) {
+         if (entry.getValue() > 1)
+            varying.add(entry.getKey());
+      }
+   }
+
+   private boolean readsCondition(Instruction ins) {
+      for (int i = 0; i < ins.getOperandCount(); i++) {
+         if (ins.getOperand(i) == Operand.CCR)
+            return true;
+      }
+      return false;
+   }
+
+   private void propagate() {
+      int entry = graph.getReversePostorder()[0];
+
+      visited.set(entry);
+      visitBlock(entry);
+      while (!flowWork.isEmpty() || !ssaWork.isEmpty()) {
+         if (!flowWork.isEmpty()) {
+            int edge[] = flowWork.removeFirst();
+            int s = edge[1];
+
+            if (visited.get(s)) {
+               for (Instruction ins : graph.getBlock(s).getInstructions()) {
+                  if (ins.getOpcode() != Opcode.PHI)
+                     break;
+                  visit(ins);
+               }
+            }
+            else {
+               visited.set(s);
+               visitBlock(s);
+            }
+         }
+         else {
+            Instruction ins = ssaWork.removeFirst();
+            if (visited.get(blockOf.get(ins)))
+               visit(ins);
+         }
+      }
+   }
+
+   private void visitBlock(int b) {
+      Instruction last = null;
+
+      for (Instruction ins : graph.getBlock(b).getInstructions()) {
+         visit(ins);
+         last = ins;
+      }
+      if (last == null || !isConditional(last.getOpcode())) {
+         for (int s : graph.getSuccessors(b))
+            markEdge(b, s);
+      }
+   }
+
+   private boolean isConditional(Opcode opcode) {
+      return opcode.isBranch() && opcode != Opcode.JUMPI;
+   }
+
+   private void markEdge(int from, int to) {
+      if (executable.add(edge(from, to)))
+         flowWork.add(new int[] {from, to});
+   }
+
+   private static Long edge(int from, int to) {
+      return ((long)from << 32) | to;
+   }
+
+   private void visit(Instruction ins) {
+      Opcode opcode = ins.getOpcode();
+
+      switch (opcode) {
+      case PHI:
+         visitPhi(ins);
+         break;
+
+      case LOADI:
+         setConstant(ins.getOperand(1), ins.getOperand(0).getValue());
+         break;
+
+      case MOV:
+         if (isVarying(ins.getOperand(0)))
+            setVarying(ins.getOperand(1));
+         else if (isConstant(ins.getOperand(0)))
+            setConstant(ins.getOperand(1), valueOf(ins.getOperand(0)));
+         break;
+
+      case ADD: case SUB: case MULT: case DIV: case AND: case OR:
+         visitArithmetic(ins);
+         break;
+
+      case XORI:
+         if (isVarying(ins.getOperand(0)))
+            setVarying(ins.getOperand(2));
+         else if (isConstant(ins.getOperand(0)))
+            setConstant(ins.getOperand(2), valueOf(ins.getOperand(0))
+                  ^ ins.getOperand(1).getValue());
+         break;
+
+      case COMP:
+         for (Instruction reader : compareUsers.get(ins))
+            visit(reader);
+         break;
+
+      case CBREQ: case CBRGE: case CBRGT: case CBRLE: case CBRLT: case CBRNE:
+         visitBranch(ins);
+         break;
+
+      default:
+         for (Operand reg : ins.getTargets())
+            setVarying(reg);
+      }
+   }
+
+   /* only the values that come over an executable edge are merged */
+   private void visitPhi(Instruction phi) {
+      int b = blockOf.get(phi);
+      Operand target = phi.getOperand(0);
+
+      for (int i = 1; i < phi.getOperandCount(); i += 2) {
+         BasicBlock pred = blockByLabel.get(phi.getOperand(i + 1).getName());
+         if (pred == null || !executable.contains(edge(pred.getId(), b)))
+            continue;
+
+         Operand value = phi.getOperand(i);
+         if (isVarying(value)) {
+            setVarying(target);
+            return;
+         }
+         if (!isConstant(value))
+            continue;
+         if (isConstant(target) && valueOf(target) != valueOf(value)) {
+            setVarying(target);
+            return;
+         }
+         setConstant(target, valueOf(value));
+      }
+   }
+
+   private void visitArithmetic(Instruction ins) {
+      Operand left = ins.getOperand(0), right = ins.getOperand(1);
+      Operand target = ins.getOperand(2);
+
+      if (isVarying(left) || isVarying(right)) {
+         setVarying(target);
+         return;
+      }
+      if (!isConstant(left) || !isConstant(right))
+         return;
+
+      Long value = fold(ins.getOpcode(), valueOf(left), valueOf(right));
+      if (value == null)
+         setVarying(target);
+      else
+         setConstant(target, value);
+   }
+
+   /* null if the result isn't known at compile time */
+   private static Long fold(Opcode opcode, long left, long right) {
+      switch (opcode) {
+      case ADD:
+         return left + right;
+      case SUB:
+         return left - right;
+      case MULT:
+         return left * right;
+      case DIV:
+         // leave the traps of idiv to run time
+         if (right == 0 || (left == Long.MIN_VALUE && right == -1))
+            return null;
+         return left / right;
+      case AND:
+         return left & right;
+      case OR:
+         return left | right;
+      default:
+         return null;
+      }
+   }
+
+   private void visitBranch(Instruction ins) {
+      int b = blockOf.get(ins);
+      int direction = direction(ins);
+      BasicBlock block = graph.getBlock(b);
+
+      if (direction == UNKNOWN)
+         return;
+      if (direction != NOT_TAKEN)
+         markEdge(b, successor(block, ins.getOperand(1)).getId());
+      if (direction != TAKEN)
+         markEdge(b, successor(block, ins.getOperand(2)).getId());
+   }
+
+   private BasicBlock successor(BasicBlock block, Operand label) {
+      for (BasicBlock s : block.getOutgoing()) {
+         if (s.getLabel().equals(label.getName()))
+            return s;
+      }
+      return null;
+   }
+
+   /* which way a conditional branch goes with what is known so far */
+   private int direction(Instruction ins) {
+      Instruction compare = compareOf.get(ins);
+      if (compare == null)
+         return EITHER;
+      Operand left = compare.getOperand(0), right = compare.getOperand(1);
+      if (isVarying(left) || isVarying(right))
+         return EITHER;
+      if (!isConstant(left) || !isConstant(right))
+         return UNKNOWN;
+      return test(ins.getOpcode(), valueOf(left), valueOf(right))
+         ? TAKEN : NOT_TAKEN;
+   }
+
+   /* the comparison a cbr or conditional move acts on */
+   private static boolean test(Opcode opcode, long left, long right) {
+      switch (opcode) {
+      case CBREQ: case MOVEQ:
+         return left == right;
+      case CBRGE: case MOVGE:
+         return left >= right;
+      case CBRGT: case MOVGT:
+         return left > right;
+      case CBRLE: case MOVLE:
+         return left <= right;
+      case CBRLT: case MOVLT:
+         return left < right;
+      default:
+         return left != right;
+      }
+   }
+
+   private boolean isConstant(Operand reg) {
+      return constants.containsKey(reg) && !varying.contains(reg);
+   }
+
+   /* anything that isn't a register, like the condition code, varies */
+   private boolean isVarying(Operand reg) {
+      return !reg.isVirtual() || varying.contains(reg);
+   }
+
+   private long valueOf(Operand reg) {
+      return constants.get(reg);
+   }
+
+   private void setConstant(Operand reg, long value) {
+      if (varying.contains(reg))
+         return;
+      Long old = constants.get(reg);
+      if (old == null) {
+         constants.put(reg, value);
+         changed(reg);
+      }
+      else if (old != value) {
+         setVarying(reg);
+      }
+   }
+
+   private void setVarying(Operand reg) {
+      if (varying.add(reg))
+         changed(reg);
+   }
+
+   private void changed(Operand reg) {
+      List<Instruction> lst = users.get(reg);
+      if (lst != null)
+         ssaWork.addAll(lst);
+   }
+
+   private void rewrite() {
+      for (int b : graph.getReversePostorder()) {
+         BasicBlock block = graph.getBlock(b);
+
+         if (!visited.get(b)) {
+            for (BasicBlock s : new ArrayList<BasicBlock>(block.getOutgoing()))
+               SSA.removeEdge(block, s);
+            continue;
+         }
+
+         rewriteInstructions(block);
+         for (BasicBlock s : new ArrayList<BasicBlock>(block.getOutgoing())) {
+            if (!executable.contains(edge(b, s.getId())))
+               SSA.removeEdge(block, s);
+         }
+      }
+   }
+
+   private void rewriteInstructions(BasicBlock block) {
+      List<Instruction> phis = new ArrayList<Instruction>();
+      List<Instruction> rest = new ArrayList<Instruction>();
+      Set<Instruction> folded = new HashSet<Instruction>();
+
+      for (Instruction ins : block.getInstructions()) {
+         Opcode opcode = ins.getOpcode();
+         List<Operand> targets = ins.getTargets();
+         int direction;
+
+         if (targets.size() == 1 && isConstant(targets.get(0))
+               && isFoldable(opcode)) {
+            rest.add(new Instruction(Opcode.LOADI,
+                     Operand.immediate(valueOf(targets.get(0))),
+                     targets.get(0)));
+            continue;
+         }
+         if (opcode == Opcode.PHI) {
+            phis.add(ins);
+            continue;
+         }
+
+         if (isConditional(opcode)
+               && (direction = direction(ins)) != EITHER) {
+            Operand label = ins.getOperand(direction == TAKEN ? 1 : 2);
+            rest.add(new Instruction(Opcode.JUMPI, label));
+            folded.add(ins);
+            continue;
+         }
+         if (isConditionalMove(opcode) && compareOf.get(ins) != null) {
+            Instruction compare = compareOf.get(ins);
+            Operand left = compare.getOperand(0);
+            Operand right = compare.getOperand(1);
+            if (isConstant(left) && isConstant(right)) {
+               if (test(opcode, valueOf(left), valueOf(right)))
+                  rest.add(new Instruction(ins.getOperand(1).isRegister()
+                           ? Opcode.MOV : Opcode.LOADI, ins.getOperand(1),
+                           ins.getOperand(2)));
+               folded.add(ins);
+               continue;
+            }
+         }
+         rest.add(ins);
+      }
+
+      // a comp whose readers were all folded away has nothing left to do
+      Iterator<Instruction> it = rest.iterator();
+      while (it.hasNext()) {
+         Instruction ins = it.next();
+         if (ins.getOpcode() == Opcode.COMP
+               && !compareUsers.get(ins).isEmpty()
+               && folded.containsAll(compareUsers.get(ins)))
+            it.remove();
+      }
+
+      List<Instruction> instructions = new LinkedList<Instruction>(phis);
+      instructions.addAll(rest);
+      block.setInstructions(instructions);
+   }
+
+   /* instructions whose only effect is the value of their target */
+   private static boolean isFoldable(Opcode opcode) {
+      switch (opcode) {
+      case PHI: case MOV: case ADD: case SUB: case MULT: case DIV:
+      case AND: case OR: case XORI:
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   private static boolean isConditionalMove(Opcode opcode) {
+      switch (opcode) {
+      case MOVEQ: case MOVGE: case MOVGT: case MOVLE: case MOVLT: case MOVNE:
+         return true;
+      default:
+         return false;
+      }
+   }
+}
@@ -8,12 +8,18 @@ options
 
 /*
    Tree Parser -- Type checks the AST 
+
+   translate walks what the functions share: the structs, the globals
+   and the signatures of the functions.  The functions are walked after
+   it by a parser each, see function, so they can be built at the same
+   time.  Labels and registers are numbered within their function.
 */
 @header
 {
     import java.util.HashMap;
     import java.util.LinkedList;
     import java.util.Arrays;
+    import java.util.ArrayList;
 }
 
 @members
@@ -21,18 +27,18 @@ options
     private int labelIndex = 1;     /* next label number to use */
     private int nextRegister = 0;   /* next register number to use */
     private boolean storeGlobal;    /* true to store a global variable */
-    private String branchOp;        /* what branch operation to use */
-    private String chainOp; /* what operation to use during chained && or || */ 
-    private boolean chainedExpression; /* are we in a chained expression? */
     private String lvalueMember; 
+    private StructType lvalueStruct; /* the struct lvalueMember is in */
 
     private int maxArgCount; /* max number of arguments for invocation call */
 
-    private HashMap<String, String> registerMap; /* id -> register */
+    private HashMap<String, Operand> registerMap; /* id -> register */
 
     private List<BasicBlock> funBlocks = new LinkedList<BasicBlock>();
     private List<BasicBlock> exitBlocks = new LinkedList<BasicBlock>();
+    private List<CommonTree> funTrees = new ArrayList<CommonTree>();
 
+    BasicBlock currentEntryBlock;
     BasicBlock currentExitBlock; 
 
     private HashMap<String, Type> globalTable = new HashMap<String, Type>();   
@@ -40,9 +46,9 @@ options
         new HashMap<String, StructType>();
     //private FunType currentFun;
 
-    // Generate the next label to use
+    // Generate the next label to use, the function name keeps it unique
     private String getNextLabel() {
-        return "L" + labelIndex++;
+        return currentEntryBlock.getLabel() + "_L" + labelIndex++;
     }
 
     // update maxArgument
@@ -63,10 +69,86 @@ options
    public HashMap<String, Type> getGlobals() {
       return globalTable;
    }
+
+   // the functions, in order, for function to walk
+   public List<CommonTree> getFunctionTrees() {
+      return funTrees;
+   }
+
+   // the structs and globals translate found, read only from here on
+   public void setProgram(ControlFlowGraph program) {
+      globalTable = program.globalTable;
+      structTable = program.structTable;
+   }
+
+   // the function another parser built goes after those already here
+   public void addFunction(ControlFlowGraph function) {
+      funBlocks.addAll(function.funBlocks);
+      exitBlocks.addAll(function.exitBlocks);
+   }
     
+    // blocks are numbered within the function they belong to
+    private BasicBlock createBlock() {
+        return currentEntryBlock.createBlock(getNextLabel());
+    }
+
+    // the branch taken when a comparison holds
+    private Opcode compareBranch(String operation) {
+        if (operation.equals("=="))
+            return Opcode.CBREQ;
+        else if (operation.equals("<"))
+            return Opcode.CBRLT;
+        else if (operation.equals(">"))
+            return Opcode.CBRGT;
+        else if (operation.equals("!="))
+            return Opcode.CBRNE;
+        else if (operation.equals("<="))
+            return Opcode.CBRLE;
+        else
+            return Opcode.CBRGE;
+    }
+
+    // end block with a branch on the flags, whenTrue is taken if the test
+    // holds.  Control falls into trueBlock if fallTrue, else falseBlock.
+    private void branch(BasicBlock block, Opcode whenTrue,
+            BasicBlock trueBlock, BasicBlock falseBlock, boolean fallTrue) {
+        Opcode opcode = fallTrue ? whenTrue.getInverse() : whenTrue;
+        BasicBlock taken = fallTrue ? falseBlock : trueBlock;
+        BasicBlock fall = fallTrue ? trueBlock : falseBlock;
+
+        block.addInstruction(new Instruction(opcode, Operand.CCR,
+            Operand.label(taken.getLabel()), Operand.label(fall.getLabel())));
+        block.addOutgoing(fall);
+        fall.addIncoming(block);
+        block.addOutgoing(taken);
+        taken.addIncoming(block);
+    }
+
+    // the type of a global variable or function
+    private Type globalType(String name) {
+        return globalTable.get(name);
+    }
+
+    // load a field, a bool takes a single byte
+    private Instruction loadField(Operand base, StructType struct,
+            String member, Operand target) {
+        Opcode opcode = struct.members.get(member) instanceof BoolType
+            ? Opcode.CLOADAI : Opcode.LOADAI;
+        return new Instruction(opcode, base,
+            Operand.immediate(struct.getOffset(member)), target);
+    }
+
+    private Instruction storeField(Operand value, Operand base,
+            StructType struct, String member) {
+        Opcode opcode = struct.members.get(member) instanceof BoolType
+            ? Opcode.CSTOREAI : Opcode.STOREAI;
+        return new Instruction(opcode, value, base,
+            Operand.immediate(struct.getOffset(member)));
+    }
+
     private BasicBlock createExitBlock() {
-        BasicBlock exitBlock = new BasicBlock(getNextLabel());
-        exitBlock.addInstruction(new Instruction("ret"));
+        BasicBlock exitBlock = createBlock();
+        exitBlock.addInstruction(new Instruction(Opcode.RET));
         return exitBlock;
     }
 }
@@ -83,7 +165,7 @@ types
 
 type_decl
     @init{ StructType st = new StructType(); }
-   :  ^(ast=STRUCT id=ID { structTable.put($id.text, st); }   
+   :  ^(ast=STRUCT id=ID { st.name = $id.text; structTable.put($id.text, st); }
         n=nested_decl[st.members])
    ;
 
@@ -121,7 +203,7 @@ decl_list[HashMap<String, Type> scope]
                 scope.put($id.text, $t.t);
                 /* only fill register map if we are inside a function */
                 if (registerMap != null) {
-                   registerMap.put($id.text, "r" + nextRegister);
+                   registerMap.put($id.text, Operand.register(nextRegister));
                     nextRegister++; 
                 }
             }
@@ -130,38 +212,52 @@ decl_list[HashMap<String, Type> scope]
    ;
 
 functions[HashMap<String, Type> globalScope]
-   :  ^(FUNCS (f=function[globalScope])*)
+   :  ^(FUNCS (s=signature[globalScope])*)
    |  
    ;
 
-function[HashMap<String, Type> globalScope]
+// a call may come before the function it calls is built
+signature[HashMap<String, Type> globalScope]
+    @init{ FunType fun = new FunType(); }
+   :  ^(ast=FUN id=ID . r=return_type . .)
+    {
+        fun.returnType = $r.t;
+        globalScope.put($id.text, fun);
+        funTrees.add($ast);
+    }
+   ;
+
+// the tree of one function from getFunctionTrees, after setProgram
+function
     @init{ 
-        BasicBlock entryBlock;
+        BasicBlock entryBlock = null;
         HashMap<String, Type> localScope = new HashMap<String, Type>();
-        registerMap = new HashMap<String, String>();
+        registerMap = new HashMap<String, Operand>();
         nextRegister = 0;
-        FunType fun = new FunType();
         maxArgCount = 0;
     }
    :  ^(ast=FUN id=ID 
         {   entryBlock = new BasicBlock($id.text); 
             entryBlock.setEntryBlock(true);
+            currentEntryBlock = entryBlock;
             funBlocks.add(entryBlock);
 
             currentExitBlock = createExitBlock(); 
             exitBlocks.add(currentExitBlock);
-
-            globalScope.put($id.text, fun); 
         } 
-        p=parameters[localScope, entryBlock] r=return_type 
+        p=parameters[localScope, entryBlock]
+        r=return_type
         d=declarations[localScope] 
         s=statement_list[localScope, entryBlock]) 
     {
-        if (!$s.block.getOutgoing().contains(currentExitBlock)) {
+        List<BasicBlock> last = $s.block.getOutgoing();
+        if (last.isEmpty() || last.get(last.size() - 1) != currentExitBlock) {
             $s.block.addOutgoing(currentExitBlock);
             currentExitBlock.addIncoming($s.block);
         }
         entryBlock.setMaxArgCount(maxArgCount);
+        entryBlock.setRegisterCount(nextRegister);
+        entryBlock.setReturnsValue(!$r.isVoid);
     }
    ;
 
@@ -174,12 +270,12 @@ param_decl[HashMap<String, Type> localScope, BasicBlock currentBlock]
       {
         localScope.put($id.text, $t.t);
 
-        String register = "r" + nextRegister;
+        Operand register = Operand.register(nextRegister);
         registerMap.put($id.text, register);
-        String argIndex = "" + nextRegister;
+        Operand argIndex = Operand.immediate(nextRegister);
 
-        Instruction op = 
-            new Instruction("loadinargument", $id.text, argIndex, register);
+        Instruction op = new Instruction(Opcode.LOADINARGUMENT,
+            Operand.symbol($id.text), argIndex, register);
 
         currentBlock.addInstruction(op);
         nextRegister++;
@@ -187,12 +283,14 @@ param_decl[HashMap<String, Type> localScope, BasicBlock currentBlock]
    ;
 
 return_type
-   :  ^(RETTYPE rtype) 
+   returns [boolean isVoid, Type t]
+   :  ^(RETTYPE rt=rtype) { $isVoid = $rt.isVoid; $t = $rt.t; }
    ;
 
 rtype
-   :  t=type 
-   |  VOID 
+   returns [boolean isVoid = false, Type t = null]
+   :  ty=type { $t = $ty.t; }
+   |  VOID { $isVoid = true; }
    ;
 
 statement[HashMap<String, Type> scope, BasicBlock currentBlock]
@@ -231,17 +329,18 @@ assignment[HashMap<String, Type> scope, BasicBlock currentBlock]
 
         if (storeGlobal) {
 
-            op = new Instruction("storeglobal", $e.register, $l.text);
+            op = new Instruction(Opcode.STOREGLOBAL, $e.register,
+                Operand.symbol($l.text));
             storeGlobal = false;
         }
         else {
             if (lvalueMember != null) {
-                op = new Instruction("storeai", $e.register, $l.register,
+                op = storeField($e.register, $l.register, lvalueStruct,
                         lvalueMember);
                 lvalueMember = null;
             }
             else {
-                op = new Instruction("mov", $e.register, $l.register);
+                op = new Instruction(Opcode.MOV, $e.register, $l.register);
             }
         }
         currentBlock.addInstruction(op);
@@ -251,13 +350,28 @@ assignment[HashMap<String, Type> scope, BasicBlock currentBlock]
 read[HashMap<String, Type> scope, BasicBlock currentBlock]
    :  ^(ast=READ l=lvalue[scope, currentBlock])
         {
-            Instruction op = new Instruction("read", $l.register);
+            Instruction op;
+
+            if (storeGlobal) {
+                /* read into a temporary, then store it */
+                Operand register = Operand.register(nextRegister);
+                nextRegister++;
+
+                op = new Instruction(Opcode.READ, register);
+                currentBlock.addInstruction(op);
+                op = new Instruction(Opcode.STOREGLOBAL, register,
+                    Operand.symbol($l.text));
+                storeGlobal = false;
+            }
+            else {
+                op = new Instruction(Opcode.READ, $l.register);
+            }
             currentBlock.addInstruction(op);
         }
    ;
 
 lvalue[HashMap<String, Type> localScope, BasicBlock currentBlock]
-    returns [String register]
+    returns [Operand register]
    :  id=ID
     {
             Type varType = localScope.get($id.text);
@@ -271,33 +385,38 @@ lvalue[HashMap<String, Type> localScope, BasicBlock currentBlock]
    |  ^(ast=DOT l=lvalue_load[localScope, currentBlock] id=ID)
     {
         $register = $l.register;
+        lvalueStruct = (StructType)$l.type;
         lvalueMember = $id.text;
     }
    ;
 
 lvalue_load[HashMap<String, Type> localScope, BasicBlock currentBlock]
-    returns [String register]
+    returns [Operand register, Type type]
    :  id=ID
     {
             Type varType = localScope.get($id.text);
             if (varType != null) {
                 $register = registerMap.get($id.text);
+                $type = varType;
             }
             else {
-                $register = "r" + nextRegister;
+                $type = globalType($id.text);
+                $register = Operand.register(nextRegister);
                 nextRegister++;
 
-                Instruction ins = new Instruction("loadglobal", $id.text, 
-                                    $register);
+                Instruction ins = new Instruction(Opcode.LOADGLOBAL,
+                                    Operand.symbol($id.text), $register);
                 currentBlock.addInstruction(ins);
             }
     }
    |  ^(ast=DOT l=lvalue_load[localScope, currentBlock] id=ID)
     {
         Instruction inst;
-        $register = "r" + nextRegister;
+        $register = Operand.register(nextRegister);
         nextRegister++;
-        inst = new Instruction("loadai", $l.register, $id.text, $register);
+        StructType struct = (StructType)$l.type;
+        inst = loadField($l.register, struct, $id.text, $register);
+        $type = struct.members.get($id.text);
 
         currentBlock.addInstruction(inst);
     }
@@ -306,10 +425,10 @@ lvalue_load[HashMap<String, Type> localScope, BasicBlock currentBlock]
 print[HashMap<String, Type> scope, BasicBlock currentBlock]
     @init { Instruction op = null; }
    :  ^(ast=PRINT e=expression[scope, currentBlock] 
-        (ENDL { op = new Instruction("println"); })?)
+        (ENDL { op = new Instruction(Opcode.PRINTLN); })?)
         {
             if (op == null) 
-                op = new Instruction("print");
+                op = new Instruction(Opcode.PRINT);
             op.addOperand($e.register);
             currentBlock.addInstruction(op);
         }
@@ -317,96 +436,108 @@ print[HashMap<String, Type> scope, BasicBlock currentBlock]
 
 conditional[HashMap<String, Type> scope, BasicBlock currentBlock]
     returns [BasicBlock block]
-    @init   {   BasicBlock trueBlock = new BasicBlock(getNextLabel());
-                BasicBlock falseBlock = new BasicBlock(getNextLabel());
-                BasicBlock nextBlock = new BasicBlock(getNextLabel());
-                String testOp = null;
+    @init   {   BasicBlock trueBlock = createBlock();
+                BasicBlock falseBlock = createBlock();
+                BasicBlock nextBlock = createBlock();
             }
-   :  ^(ast=IF g=expression[scope, currentBlock] 
-        {   
-            chainedExpression = false; /* end chain for this block */
-            testOp = branchOp;          /* save the branch op */
+   :  ^(ast=IF
+        {
+            /* without an else a false test goes straight to nextBlock */
+            if ($ast.getChildCount() < 3)
+                falseBlock = nextBlock;
         }
+        g=condition[scope, currentBlock, trueBlock, falseBlock, true]
         t=block[scope, trueBlock] (e=block[scope, falseBlock])?)
     {
-        Instruction op = new Instruction(testOp, $g.register);
-
         // handle true edges
-        currentBlock.addOutgoing(trueBlock);
-        trueBlock.addIncoming(currentBlock);
         $t.block.addOutgoing(nextBlock);
         nextBlock.addIncoming($t.block);
         
         // handle false edges
         if ($e.block != null) {
-            op.addOperand(falseBlock.getLabel());
-
-            currentBlock.addOutgoing(falseBlock);
-            falseBlock.addIncoming(currentBlock);
             $e.block.addOutgoing(nextBlock);
             nextBlock.addIncoming($e.block);
 
            // add jump instruction to skip over else clause
-           Instruction jumpOp = new Instruction("jumpi", nextBlock.getLabel());
+           Instruction jumpOp = new Instruction(Opcode.JUMPI,
+               Operand.label(nextBlock.getLabel()));
            $t.block.addInstruction(jumpOp);
         }
-        else {
-            op.addOperand(nextBlock.getLabel());
-        }
-
-        // label for true block
-        op.addOperand(trueBlock.getLabel());
-        currentBlock.addInstruction(op);
         $block = nextBlock;
     }
    ;
 
 loop[HashMap<String, Type> scope, BasicBlock currentBlock]
     returns [BasicBlock block]
-    @init   {   BasicBlock eBlock = new BasicBlock(getNextLabel());
-                BasicBlock bodyBlock = new BasicBlock(getNextLabel());
-                BasicBlock nextBlock = new BasicBlock(getNextLabel());
-                String testOp;
+    @init   {   BasicBlock eBlock = createBlock();
+                BasicBlock bodyBlock = createBlock();
+                BasicBlock nextBlock = createBlock();
             }
-   :  ^(ast=WHILE e=expression[scope, eBlock] 
-        {   
-            chainedExpression = false; /* done with the chain of && and || */
-            testOp = branchOp;          /* save the branch op */
-        }  
+   :  ^(ast=WHILE e=condition[scope, eBlock, bodyBlock, nextBlock, true]
         b=block[scope, bodyBlock])
     {
         // edge to expression
         currentBlock.addOutgoing(eBlock);
         eBlock.addIncoming(currentBlock);
 
-        // edge from expression to body block
-        eBlock.addOutgoing(bodyBlock);
-        bodyBlock.addIncoming(eBlock);
-
-        Instruction op = new Instruction(testOp, $e.register, 
-            nextBlock.getLabel(), bodyBlock.getLabel());
-        eBlock.addInstruction(op);
-        
         // edge from body block to expression
         $b.block.addOutgoing(eBlock);
         eBlock.addIncoming($b.block);
-         $b.block.setLoopHeader(eBlock);
 
-        op = new Instruction("jumpi", eBlock.getLabel());
+        Instruction op = new Instruction(Opcode.JUMPI,
+            Operand.label(eBlock.getLabel()));
         $b.block.addInstruction(op);
 
-        // edge from expression to next block (when expression is false)
-        eBlock.addOutgoing(nextBlock);
-        nextBlock.addIncoming(eBlock);
-
         $block = nextBlock;
     }
    ;
 
+/*
+   The test of an if or while as jumping code: each comparison branches
+   on its own flags and the right side of && and || only runs when the
+   left side doesn't decide the test.  Control leaves for trueBlock or
+   falseBlock, fallTrue says which of them the last branch falls into.
+*/
+condition[HashMap<String, Type> scope, BasicBlock currentBlock,
+        BasicBlock trueBlock, BasicBlock falseBlock, boolean fallTrue]
+    @init { BasicBlock rightBlock = null; }
+   :  ^(ast=AND { rightBlock = createBlock(); }
+        condition[scope, currentBlock, rightBlock, falseBlock, true]
+        condition[scope, rightBlock, trueBlock, falseBlock, fallTrue])
+   |  ^(ast=OR { rightBlock = createBlock(); }
+        condition[scope, currentBlock, trueBlock, rightBlock, false]
+        condition[scope, rightBlock, trueBlock, falseBlock, fallTrue])
+   |  ^(ast=NOT
+        condition[scope, currentBlock, falseBlock, trueBlock, !fallTrue])
+   |  ^((ast=EQ | ast=LT | ast=GT | ast=NE | ast=LE | ast=GE)
+        lft=expression[scope, currentBlock]
+        rht=expression[scope, currentBlock])
+    {
+        currentBlock.addInstruction(new Instruction(Opcode.COMP,
+            $lft.register, $rht.register, Operand.CCR));
+        branch(currentBlock, compareBranch($ast.text), trueBlock,
+            falseBlock, fallTrue);
+    }
+   |  (ID | DOT | INVOKE | TRUE | FALSE)=> e=expression[scope, currentBlock]
+    {
+        /* a variable, field, call or constant holds when it isn't zero */
+        Operand zero = Operand.register(nextRegister);
+        nextRegister++;
+        currentBlock.addInstruction(new Instruction(Opcode.LOADI,
+            Operand.immediate(0), zero));
+        currentBlock.addInstruction(new Instruction(Opcode.COMP,
+            $e.register, zero, Operand.CCR));
+        branch(currentBlock, Opcode.CBRNE, trueBlock, falseBlock, fallTrue);
+    }
+   ;
+
 delete[HashMap<String, Type> scope, BasicBlock currentBlock]
    :  ^(ast=DELETE e=expression[scope, currentBlock])
     {
-        Instruction op = new Instruction("del", $e.register);
+        StructType struct = (StructType)$e.type;
+        Instruction op = new Instruction(Opcode.DEL, $e.register,
+            Operand.symbol(struct.name),
+            Operand.immediate(struct.getObjectSize()));
         currentBlock.addInstruction(op);
     }
    ;
@@ -415,17 +546,19 @@ return_stmt[HashMap<String, Type> scope, BasicBlock currentBlock]
    returns [BasicBlock block]
     @init { Instruction op = null; }
    :  ^(ast=RETURN  (exp=expression[scope, currentBlock]
-                { op = new Instruction("storeret", $exp.register);
+                { op = new Instruction(Opcode.STORERET, $exp.register);
                   currentBlock.addInstruction(op);
                 })?)
     {   
-        Instruction jumpOut = new Instruction("jumpi", 
-            currentExitBlock.getLabel());
+        Instruction jumpOut = new Instruction(Opcode.JUMPI, 
+            Operand.label(currentExitBlock.getLabel()));
         currentBlock.addInstruction(jumpOut);
 
         currentBlock.addOutgoing(currentExitBlock);
         currentExitBlock.addIncoming(currentBlock);
-         $block = currentExitBlock;
+
+        /* anything after the return is unreachable */
+        $block = createBlock();
     }
    ;
 
@@ -436,8 +569,8 @@ invocation_stmt[HashMap<String, Type> localScope, BasicBlock currentBlock]
         }
    :  ^(INVOKE id=ID ^(ARGS (e=expression[localScope, currentBlock]
         {
-            op = 
-                new Instruction("storeoutargument", $e.register, "" + argIndex);
+            op = new Instruction(Opcode.STOREOUTARGUMENT, $e.register,
+                Operand.immediate(argIndex));
 
             argIndex++;
             lst.add(op);
@@ -447,7 +580,8 @@ invocation_stmt[HashMap<String, Type> localScope, BasicBlock currentBlock]
                 currentBlock.addInstruction(inst);
             }
 
-            op = new Instruction("call", $id.text, "" + argIndex);
+            op = new Instruction(Opcode.CALL, Operand.label($id.text),
+                Operand.immediate(argIndex));
             currentBlock.addInstruction(op);
             updateArgCount(argIndex);
         }
@@ -455,24 +589,22 @@ invocation_stmt[HashMap<String, Type> localScope, BasicBlock currentBlock]
 
 
 expression[HashMap<String, Type> localScope, BasicBlock currentBlock]
-    returns [String register]
-    @init {
-    }
-   :  ^((ast=AND | ast=OR) { chainedExpression = true; }
+    returns [Operand register, Type type]
+   :  ^((ast=AND | ast=OR)
          lft=expression[localScope, currentBlock] 
         rht=expression[localScope, currentBlock])
       {
-        String opcode = "", operation = $ast.text;
-        $register = "r" + nextRegister;
+        String operation = $ast.text;
+        Opcode opcode = null;
+        $register = Operand.register(nextRegister);
         nextRegister++;
 
+        /* a value, not a test, so both sides are evaluated */
         if (operation.equals("&&")) {
-            opcode = "and";
-            branchOp = "brz";
+            opcode = Opcode.AND;
         }
         else if (operation.equals("||")) {
-            opcode = "or";
-            branchOp = "brnz";
+            opcode = Opcode.OR;
         }
 
         Instruction instruction =
@@ -483,75 +615,64 @@ expression[HashMap<String, Type> localScope, BasicBlock currentBlock]
         lft=expression[localScope, currentBlock] 
         rht=expression[localScope, currentBlock]) 
         {
-            String operation = $ast.text, chainOp = null;
+            String operation = $ast.text;
+            Opcode chainOp = null;
 
             if (operation.equals("==")) {
-                branchOp = "cbrne";
-                chainOp = "moveq";
+                chainOp = Opcode.MOVEQ;
             }
             else if (operation.equals("<")) {
-                branchOp = "cbrge";
-                chainOp = "movlt";
+                chainOp = Opcode.MOVLT;
             }
             else if (operation.equals(">")) {
-                branchOp = "cbrle";
-                chainOp = "movgt";
+                chainOp = Opcode.MOVGT;
             }
             else if (operation.equals("!=")) {
-                branchOp = "cbreq";
-                chainOp = "movne";
+                chainOp = Opcode.MOVNE;
             }
             else if (operation.equals("<=")) {
-                branchOp = "cbrgt";
-                chainOp = "movle";
+                chainOp = Opcode.MOVLE;
             }
             else if (operation.equals(">=")) {
-                branchOp = "cbrlt";
-                chainOp = "movge";
+                chainOp = Opcode.MOVGE;
             }
             
             Instruction instruction; 
-            String controlRegister = null;
-            if (chainedExpression) {
-                controlRegister = "r" + nextRegister;
-                nextRegister++;
-                instruction = new Instruction("loadi", "0", controlRegister);
-                currentBlock.addInstruction(instruction);
-            }
-
-            $register = "ccr";
-            instruction = new Instruction("comp", $lft.register, 
-                $rht.register, $register);
-
+            Operand controlRegister = Operand.register(nextRegister);
+            nextRegister++;
+            instruction = new Instruction(Opcode.LOADI,
+                Operand.immediate(0), controlRegister);
             currentBlock.addInstruction(instruction);
 
-            if (chainedExpression) {
-                instruction = 
-                    new Instruction(chainOp, "ccr", "1", controlRegister);
+            instruction = new Instruction(Opcode.COMP, $lft.register, 
+                $rht.register, Operand.CCR);
+            currentBlock.addInstruction(instruction);
 
-                currentBlock.addInstruction(instruction);
-                $register = controlRegister;
-            }
+            instruction = new Instruction(chainOp, Operand.CCR,
+                Operand.immediate(1), controlRegister);
+            currentBlock.addInstruction(instruction);
+            $register = controlRegister;
         }
    |  ^((ast=PLUS | ast=MINUS | ast=TIMES | ast=DIVIDE)
         lft=expression[localScope, currentBlock] 
         rht=expression[localScope, currentBlock]) 
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
-            String operation = $ast.text, opcode = "n/a";
+            String operation = $ast.text;
+            Opcode opcode = null;
 
             if (operation.equals("+")) {
-                opcode = "add";
+                opcode = Opcode.ADD;
             }
             else if (operation.equals("-")) {
-                opcode = "sub";
+                opcode = Opcode.SUB;
             }
             else if (operation.equals("*")) {
-                opcode = "mult";
+                opcode = Opcode.MULT;
             }
             else if (operation.equals("/")) {
-                opcode = "div";
+                opcode = Opcode.DIV;
             }
 
             Instruction instruction = new Instruction(opcode, $lft.register, 
@@ -562,27 +683,28 @@ expression[HashMap<String, Type> localScope, BasicBlock currentBlock]
         }
    |  ^(ast=NOT exp=expression[localScope, currentBlock])
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("xori", $exp.register, "1", 
-                                $register);
+            Instruction op = new Instruction(Opcode.XORI, $exp.register,
+                                Operand.immediate(1), $register);
 
             currentBlock.addInstruction(op);
         }
    |  ^(ast=NEG exp=expression[localScope, currentBlock])
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
             // load -1
-            Instruction op = new Instruction("loadi", "-1", $register);
+            Instruction op = new Instruction(Opcode.LOADI,
+                                Operand.immediate(-1), $register);
             currentBlock.addInstruction(op);
             
             // multiply expresion by -1
-            op = new Instruction("mult", $register, $exp.register);
+            op = new Instruction(Opcode.MULT, $register, $exp.register);
              
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
             op.addOperand($register);
             
@@ -590,92 +712,106 @@ expression[HashMap<String, Type> localScope, BasicBlock currentBlock]
         }
    |  ^(ast=DOT    left=expression[localScope, currentBlock]  id=ID)
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadai", $left.register, 
-                                $id.text, $register);
+            StructType struct = (StructType)$left.type;
+            Instruction op = loadField($left.register, struct, $id.text,
+                                $register);
+            $type = struct.members.get($id.text);
             
             currentBlock.addInstruction(op);
         }
    |  e=invocation_exp[localScope, currentBlock] 
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadret", $register);
+            Instruction op = new Instruction(Opcode.LOADRET, $register);
             currentBlock.addInstruction(op);
+            $type = $e.type;
         }
    |  id=ID
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
             Instruction op;
 
             Type varType = localScope.get($id.text);
             if (varType != null) {
-                String varRegister = registerMap.get($id.text);
-                op = new Instruction("mov", varRegister, $register);
+                Operand varRegister = registerMap.get($id.text);
+                op = new Instruction(Opcode.MOV, varRegister, $register);
+                $type = varType;
             }
             else {
-                op = new Instruction("loadglobal", $id.text, $register);
+                $type = globalType($id.text);
+                op = new Instruction(Opcode.LOADGLOBAL,
+                    Operand.symbol($id.text), $register);
             }
                 
             currentBlock.addInstruction(op);
         }
    |  i=INTEGER
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadi", $i.text, $register);
+            Instruction op = new Instruction(Opcode.LOADI,
+                Operand.immediate(Long.parseLong($i.text)), $register);
             currentBlock.addInstruction(op);
         }
    |  ast=TRUE
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadi", "1", $register);
+            Instruction op = new Instruction(Opcode.LOADI,
+                Operand.immediate(1), $register);
             currentBlock.addInstruction(op);
         }
    |  ast=FALSE
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadi", "0", $register);
+            Instruction op = new Instruction(Opcode.LOADI,
+                Operand.immediate(0), $register);
             currentBlock.addInstruction(op);
         }
    |  ^(ast=NEW id=ID)
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            List<String> members = structTable.get($id.text).memberList();
-            Instruction op = new Instruction("new", $id.text, 
-                            Arrays.toString(members.toArray()), $register);
+            StructType struct = structTable.get($id.text);
+            Instruction op = new Instruction(Opcode.NEW,
+                            Operand.symbol($id.text), 
+                            Operand.immediate(struct.getObjectSize()),
+                            $register);
+            $type = struct;
             currentBlock.addInstruction(op);
         }
    |  ast=NULL
         {
-            $register = "r" + nextRegister;
+            $register = Operand.register(nextRegister);
             nextRegister++;
 
-            Instruction op = new Instruction("loadi", "0", $register);
+            Instruction op = new Instruction(Opcode.LOADI,
+                Operand.immediate(0), $register);
             currentBlock.addInstruction(op);
         }
    ;
 
 invocation_exp[HashMap<String, Type> localScope, BasicBlock currentBlock]
+    returns [Type type]
     @init { int argIndex = 0; 
             Instruction op;
             List<Instruction> lst = new LinkedList<Instruction>();
         }
    :  ^(INVOKE id=ID ^(ARGS (e=expression[localScope, currentBlock]
         {
-            op = new Instruction("storeoutargument", $e.register, 
-                "" + argIndex);
+            op = new Instruction(Opcode.STOREOUTARGUMENT, $e.register, 
+                Operand.immediate(argIndex));
             lst.add(op);
             argIndex++;
         })*))
@@ -683,8 +819,10 @@ invocation_exp[HashMap<String, Type> localScope, BasicBlock currentBlock]
             for (Instruction inst  : lst) {
                 currentBlock.addInstruction(inst);
             }
-            op = new Instruction("call", $id.text, "" + argIndex);
+            op = new Instruction(Opcode.CALL, Operand.label($id.text),
+                Operand.immediate(argIndex));
             currentBlock.addInstruction(op);
             updateArgCount(argIndex);
+            $type = ((FunType)globalType($id.text)).returnType;
         }
    ;
@@ -0,0 +1,180 @@
+import java.util.*;
+
+/*
+   Cleans up the flow graph of one function, along the lines of the
+   Clean algorithm in Engineering a Compiler.  Blocks nothing reaches are
+   dropped, jumps through empty blocks go straight to where they end up,
+   a block is merged into its predecessor when that is the only way in,
+   and a jump to a short block that leaves the function, like the ret of
+   the exit block, is replaced by a copy of it.
+
+   Phis are not updated, so this runs on the iloc before or after SSA.
+*/
+public class ControlFlowSimplification {
+   /* longest exit block that is copied into the blocks jumping to it */
+   private static final int RETURN_SIZE = 2;
+
+   private BasicBlock fun;
+   private Set<BasicBlock> removed = new HashSet<BasicBlock>();
+
+   public ControlFlowSimplification(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      boolean changed = true;
+
+      while (changed) {
+         FlowGraph graph = new FlowGraph(fun);
+
+         changed = false;
+         removeUnreachable(graph);
+         // successors first, so chains of empty blocks collapse in one pass
+         for (int id : graph.getPostorder()) {
+            BasicBlock block = graph.getBlock(id);
+            if (!removed.contains(block))
+               changed |= simplify(block);
+         }
+      }
+   }
+
+   /* forget the edges coming from blocks that can't be reached */
+   private void removeUnreachable(FlowGraph graph) {
+      for (int id : graph.getReversePostorder()) {
+         Iterator<BasicBlock> it = graph.getBlock(id).getIncoming().iterator();
+         while (it.hasNext()) {
+            if (!graph.contains(it.next()))
+               it.remove();
+         }
+      }
+   }
+
+   private boolean simplify(BasicBlock block) {
+      boolean changed = foldBranch(block);
+
+      if (block.getOutgoing().size() != 1)
+         return changed;
+      BasicBlock succ = block.getOutgoing().get(0);
+      if (succ == block)
+         return changed;
+
+      if (isEmpty(block) && block != fun) {
+         skip(block, succ);
+         return true;
+      }
+      if (succ.getIncoming().size() == 1 && succ != fun) {
+         merge(block, succ);
+         return true;
+      }
+      if (succ.getOutgoing().isEmpty()
+            && succ.getInstructions().size() <= RETURN_SIZE) {
+         copyExit(block, succ);
+         return true;
+      }
+      return changed;
+   }
+
+   /* a conditional branch with both ways going to one block is a jump */
+   private boolean foldBranch(BasicBlock block) {
+      List<BasicBlock> outgoing = block.getOutgoing();
+      if (outgoing.size() != 2 || outgoing.get(0) != outgoing.get(1))
+         return false;
+
+      BasicBlock succ = outgoing.get(0);
+      List<Instruction> instructions = block.getInstructions();
+      int last = instructions.size() - 1;
+
+      instructions.set(last, new Instruction(Opcode.JUMPI,
+               Operand.label(succ.getLabel())));
+      outgoing.remove(1);
+      succ.getIncoming().remove(block);
+
+      // the compare goes too unless a conditional move reads it
+      for (int i = last - 1; i >= 0; i--) {
+         Instruction ins = instructions.get(i);
+         if (ins.getOpcode() == Opcode.COMP) {
+            instructions.remove(i);
+            break;
+         }
+         if (readsCondition(ins))
+            break;
+      }
+      return true;
+   }
+
+   /* send everything that comes into an empty block on to its successor */
+   private void skip(BasicBlock block, BasicBlock succ) {
+      for (BasicBlock pred : new ArrayList<BasicBlock>(block.getIncoming()))
+         retarget(pred, block, succ);
+      succ.getIncoming().remove(block);
+      block.getOutgoing().clear();
+      block.getIncoming().clear();
+      removed.add(block);
+   }
+
+   /* append succ, which only block leads to, onto the end of block */
+   private void merge(BasicBlock block, BasicBlock succ) {
+      removeJump(block);
+      block.getInstructions().addAll(succ.getInstructions());
+      block.getOutgoing().clear();
+      for (BasicBlock next : succ.getOutgoing()) {
+         List<BasicBlock> incoming = next.getIncoming();
+         incoming.set(incoming.indexOf(succ), block);
+         block.addOutgoing(next);
+      }
+      succ.getOutgoing().clear();
+      removed.add(succ);
+   }
+
+   /* leave the function from block itself instead of jumping to do it */
+   private void copyExit(BasicBlock block, BasicBlock exit) {
+      removeJump(block);
+      for (Instruction ins : exit.getInstructions())
+         block.addInstruction(ins.copy());
+      block.getOutgoing().clear();
+      exit.getIncoming().remove(block);
+   }
+
+   /* make the edges of pred that go to from go to to instead */
+   private void retarget(BasicBlock pred, BasicBlock from, BasicBlock to) {
+      List<BasicBlock> outgoing = pred.getOutgoing();
+      Operand fromLabel = Operand.label(from.getLabel());
+      Operand toLabel = Operand.label(to.getLabel());
+
+      for (int i = 0; i < outgoing.size(); i++) {
+         if (outgoing.get(i) == from) {
+            outgoing.set(i, to);
+            to.addIncoming(pred);
+         }
+      }
+      while (from.getIncoming().remove(pred))
+         ;
+      for (Instruction ins : pred.getInstructions()) {
+         if (ins.getOpcode().isBranch())
+            ins.replaceOperand(fromLabel, toLabel);
+      }
+   }
+
+   private void removeJump(BasicBlock block) {
+      List<Instruction> instructions = block.getInstructions();
+      int last = instructions.size() - 1;
+
+      if (last >= 0 && instructions.get(last).getOpcode() == Opcode.JUMPI)
+         instructions.remove(last);
+   }
+
+   /* nothing but the jump to its successor, if even that */
+   private boolean isEmpty(BasicBlock block) {
+      List<Instruction> instructions = block.getInstructions();
+      return instructions.isEmpty() || (instructions.size() == 1
+            && instructions.get(0).getOpcode() == Opcode.JUMPI);
+   }
+
+   private boolean readsCondition(Instruction ins) {
+      for (int i = 0; i < ins.getOperandCount(); i++) {
+         if (ins.getOperand(i) == Operand.CCR)
+            return true;
+      }
+      return false;
+   }
+}
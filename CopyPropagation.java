@@ -0,0 +1,116 @@
+import java.util.*;
+
+/*
+   Copy propagation over the SSA form of one function.  A mov between two
+   registers with a single definition makes them the same value, so the
+   uses of the copy read the original and the mov goes away.  A phi whose
+   inputs are all one register (besides itself) is a copy as well.
+
+   Registers defined more than once, the targets of the conditional
+   moves, are left alone on both sides of a copy.
+*/
+public class CopyPropagation {
+   private BasicBlock fun;
+   private Map<Operand, Integer> defs = new HashMap<Operand, Integer>();
+   private Map<Operand, Operand> replacement = new HashMap<Operand, Operand>();
+
+   public CopyPropagation(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      FlowGraph graph = new FlowGraph(fun);
+      List<Instruction> phis = new ArrayList<Instruction>();
+      Set<Instruction> removed = new HashSet<Instruction>();
+
+      for (int b : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            for (Operand reg : ins.getTargets()) {
+               Integer count = defs.get(reg);
+               defs.put(reg, count == null ? 1 : count + 1);
+            }
+            if (ins.getOpcode() == Opcode.PHI)
+               phis.add(ins);
+         }
+      }
+
+      for (int b : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            if (ins.getOpcode() == Opcode.MOV
+                  && isCopy(ins.getOperand(0), ins.getOperand(1))) {
+               replacement.put(ins.getOperand(1), ins.getOperand(0));
+               removed.add(ins);
+            }
+         }
+      }
+
+      // a phi can turn into a copy once the copies it merges are resolved
+      boolean changed = true;
+      while (changed) {
+         changed = false;
+         for (Instruction phi : phis) {
+            if (removed.contains(phi))
+               continue;
+            Operand source = uniqueInput(phi);
+            if (source != null && isCopy(source, phi.getOperand(0))) {
+               replacement.put(phi.getOperand(0), source);
+               removed.add(phi);
+               changed = true;
+            }
+         }
+      }
+
+      for (int b : graph.getReversePostorder()) {
+         Iterator<Instruction> it =
+            graph.getBlock(b).getInstructions().iterator();
+         while (it.hasNext()) {
+            Instruction ins = it.next();
+            if (removed.contains(ins)) {
+               it.remove();
+               continue;
+            }
+            for (int i = 0; i < ins.getOperandCount(); i++) {
+               if (ins.getOpcode().isUse(i) && ins.getOperand(i).isVirtual())
+                  ins.setOperand(i, find(ins.getOperand(i)));
+            }
+         }
+      }
+   }
+
+   /* a source with no definition is an uninitialized variable */
+   private boolean isCopy(Operand source, Operand target) {
+      if (!source.isVirtual() || !target.isVirtual() || source.equals(target))
+         return false;
+      Integer count = defs.get(source);
+      return (count == null || count == 1) && defs.get(target) == 1;
+   }
+
+   /* the register every input of the phi but itself resolves to */
+   private Operand uniqueInput(Instruction phi) {
+      Operand target = find(phi.getOperand(0)), result = null;
+
+      for (int i = 1; i < phi.getOperandCount(); i += 2) {
+         Operand input = find(phi.getOperand(i));
+         if (input.equals(target))
+            continue;
+         if (result != null && !result.equals(input))
+            return null;
+         result = input;
+      }
+      return result;
+   }
+
+   private Operand find(Operand reg) {
+      Operand result = reg;
+
+      while (replacement.containsKey(result))
+         result = replacement.get(result);
+      // point everything on the way straight at the end of the chain
+      while (!reg.equals(result)) {
+         Operand next = replacement.get(reg);
+         replacement.put(reg, result);
+         reg = next;
+      }
+      return result;
+   }
+}
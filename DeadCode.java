@@ -0,0 +1,90 @@
+import java.util.*;
+
+/*
+   Dead code elimination over the iloc of one function.  Instructions
+   that do more than compute their target are live, so is everything a
+   live instruction reads, and whatever is left is removed.  Values that
+   only feed each other, like a counter nothing looks at, go as well.
+*/
+public class DeadCode {
+   private BasicBlock fun;
+
+   public DeadCode(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      FlowGraph graph = new FlowGraph(fun);
+      Map<Operand, List<Instruction>> defs =
+         new HashMap<Operand, List<Instruction>>();
+      Map<Instruction, Instruction> compareOf =
+         new HashMap<Instruction, Instruction>();
+      Set<Instruction> live = new HashSet<Instruction>();
+      Stack<Instruction> work = new Stack<Instruction>();
+
+      for (int b : graph.getReversePostorder()) {
+         Instruction compare = null;
+
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            for (Operand reg : ins.getTargets()) {
+               if (!defs.containsKey(reg))
+                  defs.put(reg, new ArrayList<Instruction>());
+               defs.get(reg).add(ins);
+            }
+            if (ins.getOpcode() == Opcode.COMP)
+               compare = ins;
+            else if (readsCondition(ins))
+               compareOf.put(ins, compare);
+
+            if (!isPure(ins.getOpcode()) && live.add(ins))
+               work.push(ins);
+         }
+      }
+
+      while (!work.empty()) {
+         Instruction ins = work.pop();
+
+         for (Operand reg : ins.getSources()) {
+            List<Instruction> lst = defs.get(reg);
+            if (lst == null)
+               continue;
+            for (Instruction def : lst) {
+               if (live.add(def))
+                  work.push(def);
+            }
+         }
+         Instruction compare = compareOf.get(ins);
+         if (compare != null && live.add(compare))
+            work.push(compare);
+      }
+
+      for (int b : graph.getReversePostorder()) {
+         Iterator<Instruction> it =
+            graph.getBlock(b).getInstructions().iterator();
+         while (it.hasNext()) {
+            if (!live.contains(it.next()))
+               it.remove();
+         }
+      }
+   }
+
+   private boolean readsCondition(Instruction ins) {
+      for (int i = 0; i < ins.getOperandCount(); i++) {
+         if (ins.getOperand(i) == Operand.CCR)
+            return true;
+      }
+      return false;
+   }
+
+   /* instructions whose only effect is the register or condition they set */
+   private static boolean isPure(Opcode opcode) {
+      switch (opcode) {
+      case LOADI: case MOV: case ADD: case SUB: case MULT: case AND: case OR:
+      case XORI: case PHI: case LOADGLOBAL: case COMP: case NEWFRAME:
+      case MOVEQ: case MOVGE: case MOVGT: case MOVLE: case MOVLT: case MOVNE:
+         return true;
+      default:
+         return false;
+      }
+   }
+}
@@ -0,0 +1,157 @@
+import java.util.*;
+
+/*
+   Dominator tree and dominance frontiers of a flow graph, computed with
+   the iterative algorithm of Cooper, Harvey and Kennedy.  Blocks are
+   compared by reverse postorder number so an intersection only ever
+   walks up the tree, which keeps it fast on functions with thousands
+   of blocks.  Everything is indexed by block id.
+*/
+public class Dominators {
+   private FlowGraph graph;
+   private int idom[];
+   private int children[][];
+   private int preorder[];            /* ids, entry first */
+   private int enter[], leave[];      /* dfs numbers in the dominator tree */
+   private int frontier[][];
+
+   public Dominators(FlowGraph graph) {
+      this.graph = graph;
+
+      computeIdoms();
+      buildTree();
+      computeFrontiers();
+   }
+
+   /* the entry block is its own immediate dominator, unreachable are -1 */
+   public int getIdom(int id) {
+      return idom[id];
+   }
+
+   public int[] getChildren(int id) {
+      return children[id];
+   }
+
+   /* reachable blocks with every block before the ones it dominates */
+   public int[] getPreorder() {
+      return preorder;
+   }
+
+   /* true if every path from the entry to b goes through a */
+   public boolean dominates(int a, int b) {
+      return enter[a] <= enter[b] && leave[b] <= leave[a];
+   }
+
+   public int[] getFrontier(int id) {
+      return frontier[id];
+   }
+
+   private void computeIdoms() {
+      int order[] = graph.getReversePostorder();
+      int entry = order[0];
+      boolean changed = true;
+
+      idom = new int[graph.getBlockCount()];
+      Arrays.fill(idom, -1);
+      idom[entry] = entry;
+
+      while (changed) {
+         changed = false;
+         for (int i = 1; i < order.length; i++) {
+            int b = order[i], newIdom = -1;
+
+            for (int p : graph.getPredecessors(b)) {
+               if (idom[p] == -1)
+                  continue;
+               newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+            }
+            if (idom[b] != newIdom) {
+               idom[b] = newIdom;
+               changed = true;
+            }
+         }
+      }
+   }
+
+   private int intersect(int a, int b) {
+      while (a != b) {
+         while (graph.getRpoNumber(a) > graph.getRpoNumber(b))
+            a = idom[a];
+         while (graph.getRpoNumber(b) > graph.getRpoNumber(a))
+            b = idom[b];
+      }
+      return a;
+   }
+
+   private void buildTree() {
+      int n = graph.getBlockCount();
+      int count[] = new int[n];
+      int order[] = graph.getReversePostorder();
+
+      for (int i = 1; i < order.length; i++)
+         count[idom[order[i]]]++;
+      children = new int[n][];
+      for (int b : order)
+         children[b] = new int[count[b]];
+      for (int i = 1; i < order.length; i++) {
+         int parent = idom[order[i]];
+         children[parent][children[parent].length - count[parent]--] =
+            order[i];
+      }
+
+      // number the tree with an explicit stack, a negative id marks the
+      // point where all of the block's children are done
+      int stack[] = new int[2 * order.length];
+      int top = 0, clock = 0, visited = 0;
+
+      preorder = new int[order.length];
+      enter = new int[n];
+      leave = new int[n];
+      stack[top++] = order[0];
+      while (top > 0) {
+         int b = stack[--top];
+
+         if (b < 0) {
+            leave[-b - 1] = clock++;
+            continue;
+         }
+         preorder[visited++] = b;
+         enter[b] = clock++;
+         stack[top++] = -b - 1;
+         for (int i = children[b].length - 1; i >= 0; i--)
+            stack[top++] = children[b][i];
+      }
+   }
+
+   /* a join point is in the frontier of every block between it and idom */
+   private void computeFrontiers() {
+      int n = graph.getBlockCount();
+      int size[] = new int[n];
+      int last[] = new int[n];
+
+      frontier = new int[n][];
+      Arrays.fill(last, -1);
+      for (int b : graph.getReversePostorder())
+         frontier[b] = new int[0];
+
+      for (int b : graph.getReversePostorder()) {
+         int preds[] = graph.getPredecessors(b);
+         if (preds.length < 2)
+            continue;
+
+         for (int p : preds) {
+            for (int runner = p; runner != idom[b]; runner = idom[runner]) {
+               if (last[runner] == b)
+                  break;
+               last[runner] = b;
+               if (size[runner] == frontier[runner].length)
+                  frontier[runner] = Arrays.copyOf(frontier[runner],
+                        Math.max(4, 2 * size[runner]));
+               frontier[runner][size[runner]++] = b;
+            }
+         }
+      }
+      for (int b : graph.getReversePostorder())
+         frontier[b] = Arrays.copyOf(frontier[b], size[b]);
+   }
+}
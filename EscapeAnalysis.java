@@ -0,0 +1,215 @@
+import java.util.*;
+
+/*
+   Finds the structs a function allocates that never outlive it.  The
+   pointer from a new is followed through the registers it is copied
+   to; it escapes when one of them is stored anywhere, passed to a call
+   or returned.  A new that doesn't escape and isn't in a loop makes a
+   single object per call, so it gets a place in the stack frame instead
+   of the heap and the delete of it goes away.
+
+   When the pointer is only ever used to get at fields the object isn't
+   made at all: each field becomes a register of its own.
+
+   This is flow insensitive and runs before SSA, a register counts as
+   holding the object if any copy in the function can put it there.
+*/
+public class EscapeAnalysis {
+   private BasicBlock fun;
+   private List<Instruction> instructions = new ArrayList<Instruction>();
+   private Map<Operand, List<Instruction>> defs =
+      new HashMap<Operand, List<Instruction>>();
+   private Map<Instruction, BasicBlock> blockOf =
+      new HashMap<Instruction, BasicBlock>();
+   private Set<Instruction> deleted = new HashSet<Instruction>();
+   private int frameSize;
+
+   public EscapeAnalysis(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      FlowGraph graph = new FlowGraph(fun);
+      int depth[] = graph.getLoopDepth();
+      List<Instruction> sites = new ArrayList<Instruction>();
+
+      for (int id : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(id).getInstructions()) {
+            add(ins, graph.getBlock(id));
+            if (ins.getOpcode() == Opcode.NEW && depth[id] == 0)
+               sites.add(ins);
+         }
+      }
+
+      frameSize = fun.getFrameObjectSize();
+      for (Instruction site : sites)
+         place(site);
+      fun.setFrameObjectSize(frameSize);
+      for (Instruction del : deleted)
+         blockOf.get(del).getInstructions().remove(del);
+   }
+
+   private void add(Instruction ins, BasicBlock block) {
+      instructions.add(ins);
+      blockOf.put(ins, block);
+      defined(ins);
+   }
+
+   private void defined(Instruction ins) {
+      for (Operand reg : ins.getTargets()) {
+         if (!defs.containsKey(reg))
+            defs.put(reg, new ArrayList<Instruction>(1));
+         defs.get(reg).add(ins);
+      }
+   }
+
+   /* every register a copy of the pointer from site can end up in */
+   private Set<Operand> holders(Instruction site) {
+      Set<Operand> result = new HashSet<Operand>();
+      boolean changed = true;
+
+      result.add(site.getOperand(2));
+      while (changed) {
+         changed = false;
+         for (Instruction ins : instructions) {
+            if (ins.getOpcode() == Opcode.MOV
+                  && result.contains(ins.getOperand(0)))
+               changed |= result.add(ins.getOperand(1));
+         }
+      }
+      return result;
+   }
+
+   /* the holders that never have anything but the pointer or null */
+   private Set<Operand> onlyHolders(Instruction site, Set<Operand> holders) {
+      Set<Operand> result = new HashSet<Operand>(holders);
+      boolean changed = true;
+
+      while (changed) {
+         changed = false;
+         Iterator<Operand> it = result.iterator();
+         while (it.hasNext()) {
+            for (Instruction def : defs.get(it.next())) {
+               if (def != site && !isNull(def) && !isCopy(def, result)) {
+                  it.remove();
+                  changed = true;
+                  break;
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private static boolean isNull(Instruction ins) {
+      Operand value = ins.getOperand(0);
+      return ins.getOpcode() == Opcode.LOADI && value.isImmediate()
+         && value.getValue() == 0;
+   }
+
+   private static boolean isCopy(Instruction ins, Set<Operand> from) {
+      return ins.getOpcode() == Opcode.MOV && from.contains(ins.getOperand(0));
+   }
+
+   private void place(Instruction site) {
+      Set<Operand> holders = holders(site);
+      Set<Operand> only = onlyHolders(site, holders);
+      boolean fieldsOnly = only.size() == holders.size();
+      List<Instruction> deletes = new ArrayList<Instruction>();
+
+      for (Instruction ins : instructions) {
+         Opcode opcode = ins.getOpcode();
+         for (int i = 0; i < ins.getOperandCount(); i++) {
+            if (!opcode.isUse(i) || !holders.contains(ins.getOperand(i)))
+               continue;
+
+            switch (opcode) {
+            case MOV:
+               break;
+            case LOADAI: case CLOADAI:
+               break;
+            case STOREAI: case CSTOREAI:
+               // the base is fine, storing the pointer itself is not
+               if (i == 0)
+                  return;
+               break;
+            case DEL:
+               if (!only.contains(ins.getOperand(i)))
+                  return;
+               deletes.add(ins);
+               break;
+            case COMP:
+               fieldsOnly = false;
+               break;
+            default:
+               return;
+            }
+         }
+      }
+
+      deleted.addAll(deletes);
+      if (fieldsOnly)
+         replaceFields(site, holders);
+      else
+         allocateInFrame(site);
+   }
+
+   /* the object goes in the frame, below the outgoing arguments */
+   private void allocateInFrame(Instruction site) {
+      int size = (int)site.getOperand(1).getValue();
+
+      site.setOpcode(Opcode.NEWFRAME);
+      site.setOperand(1, Operand.immediate(frameSize));
+      frameSize += (size + 7) / 8 * 8;
+   }
+
+   /* a register for each field, the loads and stores become copies */
+   private void replaceFields(Instruction site, Set<Operand> holders) {
+      Map<Long, Operand> fields = new HashMap<Long, Operand>();
+
+      for (Instruction ins : instructions) {
+         switch (ins.getOpcode()) {
+         case LOADAI: case CLOADAI:
+            if (holders.contains(ins.getOperand(0))) {
+               ins.setOpcode(Opcode.MOV);
+               ins.setOperand(0, field(fields, ins.getOperand(1)));
+               ins.removeOperand(1);
+            }
+            break;
+         case STOREAI: case CSTOREAI:
+            if (holders.contains(ins.getOperand(1))) {
+               ins.setOpcode(Opcode.MOV);
+               ins.setOperand(1, field(fields, ins.getOperand(2)));
+               ins.removeOperand(2);
+               defined(ins);
+            }
+            break;
+         default:
+            break;
+         }
+      }
+
+      // fields start out zero rather than undefined
+      BasicBlock block = blockOf.get(site);
+      int at = block.getInstructions().indexOf(site);
+      for (Operand field : fields.values()) {
+         Instruction zero = new Instruction(Opcode.LOADI,
+               Operand.immediate(0), field);
+         block.getInstructions().add(at, zero);
+         add(zero, block);
+      }
+      site.setOpcode(Opcode.LOADI);
+      site.setOperand(0, Operand.immediate(0));
+      site.removeOperand(1);
+   }
+
+   private Operand field(Map<Long, Operand> fields, Operand offset) {
+      Operand reg = fields.get(offset.getValue());
+
+      if (reg == null) {
+         reg = fun.getNextRegister();
+         fields.put(offset.getValue(), reg);
+      }
+      return reg;
+   }
+}
@@ -0,0 +1,199 @@
+import java.util.*;
+
+/*
+   Control flow graph of one function.  Blocks are numbered densely per
+   function when they are created (see BasicBlock.createBlock), so the
+   graph keeps its edges in int arrays indexed by block id and marks
+   visited blocks in a bit vector.  Only the blocks reachable from the
+   entry are part of the graph.
+*/
+public class FlowGraph {
+   private static final int NONE[] = {};
+
+   private BasicBlock entry;
+   private BasicBlock blocks[];      /* by id, null if unreachable */
+   private BitSet reachable;
+   private int successors[][], predecessors[][];
+
+   private int postorder[];          /* ids, exit side first */
+   private int reversePostorder[];   /* ids, entry first */
+   private int rpoNumber[];          /* position of an id in reversePostorder */
+   private int loopDepth[];          /* computed when first asked for */
+
+   public FlowGraph(BasicBlock entry) {
+      int n = entry.getBlockCount();
+
+      this.entry = entry;
+      blocks = new BasicBlock[n];
+      reachable = new BitSet(n);
+      successors = new int[n][];
+      predecessors = new int[n][];
+      rpoNumber = new int[n];
+      Arrays.fill(rpoNumber, -1);
+
+      number();
+      connect();
+   }
+
+   public BasicBlock getEntry() {
+      return entry;
+   }
+
+   /* size of the id space, unreachable blocks included */
+   public int getBlockCount() {
+      return blocks.length;
+   }
+
+   /* number of reachable blocks */
+   public int size() {
+      return reversePostorder.length;
+   }
+
+   public BasicBlock getBlock(int id) {
+      return blocks[id];
+   }
+
+   public boolean isReachable(int id) {
+      return id < blocks.length && reachable.get(id);
+   }
+
+   public boolean contains(BasicBlock b) {
+      return isReachable(b.getId()) && blocks[b.getId()] == b;
+   }
+
+   public int[] getSuccessors(int id) {
+      return successors[id];
+   }
+
+   public int[] getPredecessors(int id) {
+      return predecessors[id];
+   }
+
+   public int[] getPostorder() {
+      return postorder;
+   }
+
+   public int[] getReversePostorder() {
+      return reversePostorder;
+   }
+
+   /* -1 for blocks that can't be reached */
+   public int getRpoNumber(int id) {
+      return rpoNumber[id];
+   }
+
+   /* the reachable blocks in reverse postorder */
+   public List<BasicBlock> getBlocks() {
+      List<BasicBlock> result = new ArrayList<BasicBlock>(size());
+
+      for (int id : reversePostorder)
+         result.add(blocks[id]);
+      return result;
+   }
+
+   /* nesting depth of every block by id, loops are found from back edges */
+   public int[] getLoopDepth() {
+      if (loopDepth != null)
+         return loopDepth;
+
+      int work[] = new int[blocks.length];
+      BitSet body = new BitSet(blocks.length);
+
+      loopDepth = new int[blocks.length];
+      for (int tail : reversePostorder) {
+         for (int header : successors[tail]) {
+            if (rpoNumber[header] > rpoNumber[tail])
+               continue;
+
+            // walk back from the latch to collect the loop body
+            int top = 0;
+            body.clear();
+            body.set(header);
+            if (!body.get(tail)) {
+               body.set(tail);
+               work[top++] = tail;
+            }
+            while (top > 0) {
+               for (int parent : predecessors[work[--top]]) {
+                  if (!body.get(parent)) {
+                     body.set(parent);
+                     work[top++] = parent;
+                  }
+               }
+            }
+            for (int b = body.nextSetBit(0); b >= 0;
+                  b = body.nextSetBit(b + 1))
+               loopDepth[b]++;
+         }
+      }
+      return loopDepth;
+   }
+
+   /*
+      depth first search with an explicit stack.  Children are visited
+      backwards so the first successor ends up right after its parent in
+      reverse postorder, which keeps fall through edges together.
+   */
+   private void number() {
+      int n = blocks.length, top = 0, count = 0;
+      BasicBlock stack[] = new BasicBlock[n];
+      int next[] = new int[n];   /* children of stack[i] left to visit */
+      int order[] = new int[n];
+
+      reachable.set(entry.getId());
+      stack[0] = entry;
+      next[0] = entry.getOutgoing().size();
+      while (top >= 0) {
+         BasicBlock b = stack[top];
+
+         if (next[top] > 0) {
+            BasicBlock child = b.getOutgoing().get(--next[top]);
+            if (!reachable.get(child.getId())) {
+               reachable.set(child.getId());
+               top++;
+               stack[top] = child;
+               next[top] = child.getOutgoing().size();
+            }
+         }
+         else {
+            blocks[b.getId()] = b;
+            order[count++] = b.getId();
+            top--;
+         }
+      }
+
+      postorder = Arrays.copyOf(order, count);
+      reversePostorder = new int[count];
+      for (int i = 0; i < count; i++) {
+         reversePostorder[i] = postorder[count - 1 - i];
+         rpoNumber[reversePostorder[i]] = i;
+      }
+   }
+
+   /* edges from unreachable blocks are left out */
+   private void connect() {
+      for (int id : reversePostorder) {
+         successors[id] = toIds(blocks[id].getOutgoing());
+         predecessors[id] = toIds(blocks[id].getIncoming());
+      }
+   }
+
+   private int[] toIds(List<BasicBlock> lst) {
+      int count = 0;
+
+      for (BasicBlock b : lst) {
+         if (contains(b))
+            count++;
+      }
+      if (count == 0)
+         return NONE;
+
+      int result[] = new int[count];
+      count = 0;
+      for (BasicBlock b : lst) {
+         if (contains(b))
+            result[count++] = b.getId();
+      }
+      return result;
+   }
+}
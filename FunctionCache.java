@@ -0,0 +1,259 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/*
+   What functions compiled to, kept on disk between runs under the keys
+   of FunctionKeys.  Each entry is a file named by its key, so compilers
+   in any number of threads and processes can share a directory.
+
+   An entry is written to a file of its own, forced to disk and only then
+   renamed into place, so no reader ever sees half of one, not even after
+   a crash.  The contents are deflated, and the checksum of the deflate
+   stream catches an entry damaged any other way: it is dropped and
+   counts as a miss.
+
+   The directory is kept under a size limit by dropping the entries used
+   least recently.  A hit touches the file, so the modification time
+   is the last use.
+*/
+public class FunctionCache {
+   /* "MiFC", then the version of the format */
+   private static final int MAGIC = 0x4d694643;
+   private static final int FORMAT = 1;
+   /* eviction goes down to this part of the limit, not to just below */
+   private static final int EVICT_PERCENT = 75;
+   /* an unfinished write older than this was left by a crash */
+   private static final long STALE_MILLIS = 60 * 60 * 1000;
+   private static final String TEMP_SUFFIX = ".tmp";
+   private static final int KEY_LENGTH = 64;
+   /* more than any function comes to, a length past it is damage */
+   private static final int MAX_LENGTH = 1 << 26;
+
+   /* a function as it is kept, its iloc and its assembly */
+   public static class Entry {
+      private String iloc;
+      private X86.Function function;
+
+      public Entry(String iloc, X86.Function function) {
+         this.iloc = iloc;
+         this.function = function;
+      }
+
+      public String getIloc() {
+         return iloc;
+      }
+
+      public X86.Function getFunction() {
+         return function;
+      }
+   }
+
+   private File directory;
+   private long limit;
+   private AtomicLong size = new AtomicLong();
+   private AtomicLong temps = new AtomicLong();
+
+   /* limit is in bytes, the directory is made if it isn't there */
+   public FunctionCache(File directory, long limit) {
+      this.directory = directory;
+      this.limit = limit;
+      directory.mkdirs();
+      if (!directory.isDirectory())
+         throw new IllegalArgumentException("cannot make cache directory "
+               + directory);
+      size.set(scan(null));
+   }
+
+   /* the entry under key, null if there is none to use */
+   public Entry get(String key) {
+      File file = new File(directory, key);
+      byte bytes[];
+
+      try {
+         bytes = Files.readAllBytes(file.toPath());
+      }
+      catch (IOException e) {
+         return null;
+      }
+      try {
+         Entry entry = decode(bytes);
+         file.setLastModified(System.currentTimeMillis());
+         return entry;
+      }
+      catch (IOException e) {
+         // torn or from another version, it will be written again
+         if (file.delete())
+            size.addAndGet(-bytes.length);
+         return null;
+      }
+   }
+
+   /* keeps entry under key, quietly does nothing if it can't */
+   public void put(String key, Entry entry) {
+      File target = new File(directory, key);
+      File temp = new File(directory, key + "." + temps.incrementAndGet()
+            + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+
+      try {
+         byte bytes[] = encode(entry);
+         FileOutputStream out = new FileOutputStream(temp);
+         try {
+            out.write(bytes);
+            // the rename may reach the disk before the contents otherwise
+            out.getChannel().force(true);
+         }
+         finally {
+            out.close();
+         }
+         long old = target.length();
+         Files.move(temp.toPath(), target.toPath(),
+               StandardCopyOption.ATOMIC_MOVE);
+         if (size.addAndGet(bytes.length - old) > limit)
+            evict();
+      }
+      catch (IOException e) {
+         temp.delete();
+      }
+   }
+
+   /* drops the least recently used entries until well under the limit */
+   private synchronized void evict() {
+      if (size.get() <= limit)
+         return;
+
+      List<File> entries = new ArrayList<File>();
+      long total = scan(entries);
+      final Map<File, Long> used = new HashMap<File, Long>();
+      for (File file : entries)
+         used.put(file, file.lastModified());
+      Collections.sort(entries, new Comparator<File>() {
+         public int compare(File a, File b) {
+            return used.get(a).compareTo(used.get(b));
+         }
+      });
+
+      long target = limit / 100 * EVICT_PERCENT;
+      for (File file : entries) {
+         if (total <= target)
+            break;
+         long length = file.length();
+         if (file.delete())
+            total -= length;
+      }
+      size.set(total);
+   }
+
+   /*
+      bytes in entries, which are added to entries unless it is null.
+      Writes that were never finished are cleaned up on the way.
+   */
+   private long scan(List<File> entries) {
+      File files[] = directory.listFiles();
+      long total = 0;
+
+      if (files == null)
+         return 0;
+      for (File file : files) {
+         String name = file.getName();
+         // anything else in the directory isn't ours to count or drop
+         if (!isKey(name.substring(0, Math.min(name.length(), KEY_LENGTH))))
+            continue;
+         if (name.endsWith(TEMP_SUFFIX)) {
+            if (file.lastModified()
+                  < System.currentTimeMillis() - STALE_MILLIS)
+               file.delete();
+            continue;
+         }
+         if (name.length() != KEY_LENGTH)
+            continue;
+         total += file.length();
+         if (entries != null)
+            entries.add(file);
+      }
+      return total;
+   }
+
+   /* keys are SHA-256 hashes in hex */
+   private static boolean isKey(String name) {
+      if (name.length() != KEY_LENGTH)
+         return false;
+      for (int i = 0; i < name.length(); i++) {
+         if (Character.digit(name.charAt(i), 16) < 0)
+            return false;
+      }
+      return true;
+   }
+
+   /*
+      the magic number and the format, then deflated: the iloc, the
+      assembly, the pools it uses and how often each peephole rule fired
+   */
+   private static byte[] encode(Entry entry) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(bytes);
+      X86.Function function = entry.getFunction();
+
+      header.writeInt(MAGIC);
+      header.writeByte(FORMAT);
+      header.flush();
+      DataOutputStream out = new DataOutputStream(
+            new DeflaterOutputStream(bytes));
+      writeString(out, entry.getIloc());
+      writeString(out, function.getAsm());
+      out.writeInt(function.getPools().size());
+      for (String pool : function.getPools())
+         writeString(out, pool);
+      out.writeInt(function.getPeepholeCounts().length);
+      for (int count : function.getPeepholeCounts())
+         out.writeInt(count);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   private static Entry decode(byte bytes[]) throws IOException {
+      DataInputStream header = new DataInputStream(
+            new ByteArrayInputStream(bytes));
+
+      if (header.readInt() != MAGIC || header.readByte() != FORMAT)
+         throw new IOException("not a cache entry");
+      DataInputStream in = new DataInputStream(new InflaterInputStream(
+               new ByteArrayInputStream(bytes, 5, bytes.length - 5)));
+      String iloc = readString(in);
+      String asm = readString(in);
+      Set<String> pools = new TreeSet<String>();
+      for (int i = in.readInt(); i > 0; i--)
+         pools.add(readString(in));
+      int count = in.readInt();
+      if (count < 0 || count > MAX_LENGTH)
+         throw new IOException("bad counts in cache entry");
+      int counts[] = new int[count];
+      for (int i = 0; i < counts.length; i++)
+         counts[i] = in.readInt();
+      // the checksum is only looked at once the stream is done
+      if (in.read() != -1)
+         throw new IOException("trailing bytes in cache entry");
+      return new Entry(iloc, new X86.Function(asm, pools, counts));
+   }
+
+   private static void writeString(DataOutputStream out, String text)
+         throws IOException {
+      byte bytes[] = text.getBytes(StandardCharsets.UTF_8);
+
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+
+      if (length < 0 || length > MAX_LENGTH)
+         throw new IOException("bad string in cache entry");
+      byte bytes[] = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
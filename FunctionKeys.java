@@ -0,0 +1,220 @@
+import org.antlr.runtime.tree.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/*
+   Names what each function of a program compiles to, for FunctionCache.
+   The key of a function is a hash of its tree and of every declaration
+   it may depend on: the globals, structs and functions it names, and
+   the structs those name in turn, whose fields decide the layout of the
+   structs it uses.  Names are taken from the tree without looking at
+   scopes, so a local by the name of a global brings in the global too,
+   which costs nothing but a miss now and then.  Lines are left out, a
+   function that only moved keeps its key.
+
+   The inliner copies functions into each other within a budget for the
+   whole program, so when it runs the key of a function covers the whole
+   program instead, and getInlinedKey names a function again by its
+   iloc once the inliner is done with it.
+*/
+public class FunctionKeys {
+   /* changes whenever the code a function compiles to might */
+   private static final String VERSION = "mini 2";
+
+   private Map<String, Tree> structs = new HashMap<String, Tree>();
+   private Map<String, Tree> globals = new HashMap<String, Tree>();
+   private Map<String, Tree> functions = new HashMap<String, Tree>();
+   private List<String> keys = new ArrayList<String>();
+   private String options;
+
+   /* program is the tree of the parser */
+   public FunctionKeys(Tree program, Compiler.Options options) {
+      Tree types = program.getChild(0);
+      Tree declarations = program.getChild(1);
+      Tree funs = program.getChild(2);
+
+      this.options = VERSION + " " + options.getOptimize() + " "
+         + options.getInline() + " " + options.getLinearScan() + " "
+         + options.getPooled();
+      for (int i = 0; i < types.getChildCount(); i++) {
+         Tree struct = types.getChild(i);
+         structs.put(struct.getChild(0).getText(), struct);
+      }
+      for (int i = 0; i < declarations.getChildCount(); i++) {
+         Tree list = declarations.getChild(i);
+         // the type first, then every global it declares
+         for (int j = 1; j < list.getChildCount(); j++)
+            globals.put(list.getChild(j).getText(), list);
+      }
+      for (int i = 0; i < funs.getChildCount(); i++) {
+         Tree fun = funs.getChild(i);
+         functions.put(fun.getChild(0).getText(), fun);
+      }
+
+      String whole = "";
+      if (options.getOptimize() && options.getInline() > 0) {
+         Hash hash = new Hash();
+         hash.add(program);
+         whole = hash.digest();
+      }
+      for (int i = 0; i < funs.getChildCount(); i++)
+         keys.add(getKey(funs.getChild(i), whole));
+   }
+
+   /* the key of each function, in the order of the program */
+   public List<String> getKeys() {
+      return keys;
+   }
+
+   /*
+      the key of a function the inliner is done with, from its blocks and
+      everything the optimizer and the back end read of them
+   */
+   public String getInlinedKey(BasicBlock fun) {
+      Hash hash = new Hash();
+
+      hash.add(options);
+      hash.add("inlined");
+      hash.add(fun.getLabel());
+      hash.add(fun.getMaxArgCount());
+      hash.add(fun.getFrameObjectSize());
+      hash.add(fun.getRegisterCount());
+      hash.add(fun.getBlockCount());
+      hash.add(fun.returnsValue() ? 1 : 0);
+      for (BasicBlock block : fun.getFunctionBlocks()) {
+         hash.add(block.getLabel());
+         hash.add(block.getId());
+         hash.add(block.isEntryBlock() ? 1 : 0);
+         hash.add(block.getOutgoing());
+         hash.add(block.getIncoming());
+         hash.add(block.getInstructions().size());
+         for (Instruction ins : block.getInstructions()) {
+            hash.add(ins.getOpcode().ordinal());
+            hash.add(ins.getOperandCount());
+            for (int i = 0; i < ins.getOperandCount(); i++) {
+               Operand operand = ins.getOperand(i);
+               hash.add(operand.getKind().ordinal());
+               hash.add(operand.toString());
+            }
+         }
+      }
+      return hash.digest();
+   }
+
+   private String getKey(Tree fun, String whole) {
+      Hash hash = new Hash();
+      Set<Tree> seen = new HashSet<Tree>();
+      Deque<Tree> work = new ArrayDeque<Tree>();
+
+      hash.add(options);
+      hash.add(whole);
+      hash.add(fun);
+      seen.add(fun);
+      work.add(fun);
+      // the declarations it names, and the ones they name, in the order met
+      while (!work.isEmpty()) {
+         List<String> names = new ArrayList<String>();
+         addNames(work.poll(), names);
+         for (String name : names) {
+            Tree struct = structs.get(name);
+            Tree global = globals.get(name);
+            Tree callee = functions.get(name);
+
+            if (struct != null && seen.add(struct)) {
+               hash.add(struct);
+               work.add(struct);
+            }
+            if (global != null && seen.add(global)) {
+               hash.add(global);
+               work.add(global.getChild(0));
+            }
+            if (callee != null && seen.add(callee)) {
+               // only the signature, the body is the callee's own
+               for (int i = 0; i < 3; i++) {
+                  hash.add(callee.getChild(i));
+                  work.add(callee.getChild(i));
+               }
+            }
+         }
+      }
+      return hash.digest();
+   }
+
+   /* the text of every token in tree that could be a name */
+   private static void addNames(Tree tree, List<String> names) {
+      if (tree.getChildCount() == 0)
+         names.add(tree.getText());
+      for (int i = 0; i < tree.getChildCount(); i++)
+         addNames(tree.getChild(i), names);
+   }
+
+   /* the bytes of a key, hashed at once when they are all there */
+   private static class Hash {
+      private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+      private byte bytes[] = new byte[1024];
+      private int length;
+
+      void add(int value) {
+         reserve(4);
+         bytes[length++] = (byte)(value >>> 24);
+         bytes[length++] = (byte)(value >>> 16);
+         bytes[length++] = (byte)(value >>> 8);
+         bytes[length++] = (byte)value;
+      }
+
+      void add(String text) {
+         byte utf[] = (text == null ? "" : text)
+            .getBytes(StandardCharsets.UTF_8);
+
+         add(utf.length);
+         reserve(utf.length);
+         System.arraycopy(utf, 0, bytes, length, utf.length);
+         length += utf.length;
+      }
+
+      void add(Tree tree) {
+         add(tree.getType());
+         add(tree.getText());
+         add(tree.getChildCount());
+         for (int i = 0; i < tree.getChildCount(); i++)
+            add(tree.getChild(i));
+      }
+
+      /* the labels of blocks */
+      void add(List<BasicBlock> blocks) {
+         add(blocks.size());
+         for (BasicBlock block : blocks)
+            add(block.getLabel());
+      }
+
+      /* SHA-256 in hex */
+      String digest() {
+         MessageDigest digest;
+         try {
+            digest = MessageDigest.getInstance("SHA-256");
+         }
+         catch (NoSuchAlgorithmException e) {
+            // every Java platform has to have it
+            throw new IllegalStateException(e);
+         }
+         digest.update(bytes, 0, length);
+
+         char result[] = new char[digest.getDigestLength() * 2];
+         int i = 0;
+         for (byte b : digest.digest()) {
+            result[i++] = HEX[(b >> 4) & 0xf];
+            result[i++] = HEX[b & 0xf];
+         }
+         return new String(result);
+      }
+
+      private void reserve(int more) {
+         if (length + more > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2,
+                     length + more));
+      }
+   }
+}
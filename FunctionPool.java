@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+   Runs a step of the compiler on every function of the program at once.
+   Once their graphs are built the functions have nothing to share, so a
+   step that only looks at one function can take them in any order on
+   any thread.  The results come back in the order of the functions, so
+   the output is the same however many threads there are.
+
+   With a single thread everything runs on the caller, the way it did
+   before there was a pool.
+*/
+public class FunctionPool {
+   /* the step for one function */
+   public static abstract class Task<S, T> {
+      public abstract T run(S item);
+   }
+
+   private ForkJoinPool pool;   /* null when there is a single thread */
+
+   public FunctionPool(int threads) {
+      if (threads > 1)
+         pool = new ForkJoinPool(threads);
+   }
+
+   /* the result of task for every item, in the order of items */
+   public <S, T> List<T> map(List<S> items, final Task<S, T> task) {
+      List<T> results = new ArrayList<T>(items.size());
+
+      if (pool == null || items.size() < 2) {
+         for (S item : items)
+            results.add(task.run(item));
+         return results;
+      }
+
+      List<Callable<T>> calls = new ArrayList<Callable<T>>(items.size());
+      for (final S item : items) {
+         calls.add(new Callable<T>() {
+            public T call() {
+               return task.run(item);
+            }
+         });
+      }
+      try {
+         for (Future<T> future : pool.invokeAll(calls))
+            results.add(future.get());
+      }
+      catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      }
+      catch (ExecutionException ex) {
+         // fail the way running it on this thread would have
+         Throwable cause = ex.getCause();
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+         if (cause instanceof Error)
+            throw (Error)cause;
+         throw new RuntimeException(cause);
+      }
+      return results;
+   }
+
+   public void shutdown() {
+      if (pool != null)
+         pool.shutdown();
+   }
+}
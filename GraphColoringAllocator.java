@@ -0,0 +1,510 @@
+import java.util.*;
+
+/*
+   Chaitin-Briggs register allocator with iterated coalescing (George and
+   Appel) over the x86 that InstructionSelector produces for a function.
+   Virtual registers rN are mapped onto the x86-64 general purpose
+   registers, anything that doesn't fit is spilled to a slot below %rbp.
+*/
+public class GraphColoringAllocator extends RegisterAllocator {
+   private static final int K = Instruction.allocatableRegisters.length;
+   private static final int INFINITE_DEGREE = Integer.MAX_VALUE / 2;
+
+   /* node work lists and sets */
+   private Set<Operand> precolored = new HashSet<Operand>();
+   private Set<Operand> initial;
+   private Set<Operand> simplifyWorklist;
+   private Set<Operand> freezeWorklist;
+   private Set<Operand> spillWorklist;
+   private Set<Operand> spilledNodes;
+   private Set<Operand> coalescedNodes;
+   private Set<Operand> coloredNodes;
+   private Stack<Operand> selectStack;
+   private Set<Operand> onStack;
+
+   /* move sets */
+   private Set<Instruction> coalescedMoves;
+   private Set<Instruction> constrainedMoves;
+   private Set<Instruction> frozenMoves;
+   private Set<Instruction> worklistMoves;
+   private Set<Instruction> activeMoves;
+
+   /* interference graph */
+   private Set<Long> adjSet;       /* edges by register numbers */
+   private Map<Operand, Set<Operand>> adjList;
+   private Map<Operand, Integer> degree;
+   private Map<Operand, Set<Instruction>> moveList;
+   private Map<Operand, Operand> alias;
+   private Map<Operand, Operand> color = new HashMap<Operand, Operand>();
+
+   /* spill heuristics */
+   private Map<Operand, Double> spillCost;
+   private Set<Operand> spillTemps = new HashSet<Operand>();
+   private int loopDepth[];   /* by block id */
+
+   public GraphColoringAllocator(FlowGraph graph) {
+      super(graph);
+
+      for (Operand reg : Instruction.allocatableRegisters) {
+         precolored.add(reg);
+         color.put(reg, reg);
+      }
+   }
+
+   public void allocate() {
+      loopDepth = graph.getLoopDepth();
+
+      while (true) {
+         computeLiveness();
+         build();
+         makeWorklist();
+         while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty()
+               || !freezeWorklist.isEmpty() || !spillWorklist.isEmpty()) {
+            if (!simplifyWorklist.isEmpty())
+               simplify();
+            else if (!worklistMoves.isEmpty())
+               coalesce();
+            else if (!freezeWorklist.isEmpty())
+               freeze();
+            else
+               selectSpill();
+         }
+         assignColors();
+         if (spilledNodes.isEmpty())
+            break;
+         rewriteProgram();
+      }
+      replaceRegisters();
+   }
+
+   private void build() {
+      initial = new LinkedHashSet<Operand>();
+      simplifyWorklist = new LinkedHashSet<Operand>();
+      freezeWorklist = new LinkedHashSet<Operand>();
+      spillWorklist = new LinkedHashSet<Operand>();
+      spilledNodes = new LinkedHashSet<Operand>();
+      coalescedNodes = new LinkedHashSet<Operand>();
+      coloredNodes = new LinkedHashSet<Operand>();
+      selectStack = new Stack<Operand>();
+      onStack = new HashSet<Operand>();
+
+      coalescedMoves = new LinkedHashSet<Instruction>();
+      constrainedMoves = new LinkedHashSet<Instruction>();
+      frozenMoves = new LinkedHashSet<Instruction>();
+      worklistMoves = new LinkedHashSet<Instruction>();
+      activeMoves = new LinkedHashSet<Instruction>();
+
+      adjSet = new HashSet<Long>();
+      adjList = new HashMap<Operand, Set<Operand>>();
+      degree = new HashMap<Operand, Integer>();
+      moveList = new HashMap<Operand, Set<Instruction>>();
+      alias = new HashMap<Operand, Operand>();
+      spillCost = new HashMap<Operand, Double>();
+
+      for (Operand reg : precolored)
+         degree.put(reg, INFINITE_DEGREE);
+
+      for (BasicBlock b : blocks) {
+         Set<Operand> live = liveness.getRegisters(liveness.getLiveOut(b));
+         List<Instruction> instructions = b.getInstructions();
+         ListIterator<Instruction> it =
+            instructions.listIterator(instructions.size());
+         double weight = Math.pow(10, Math.min(loopDepth[b.getId()], 8));
+
+         while (it.hasPrevious()) {
+            Instruction ins = it.previous();
+            List<Operand> uses = ins.getSources();
+            List<Operand> defs = ins.getTargets();
+
+            for (Operand n : uses)
+               addNode(n, weight);
+            for (Operand n : defs)
+               addNode(n, weight);
+
+            if (ins.isMove()) {
+               live.removeAll(uses);
+               for (Operand n : uses)
+                  moveList.get(n).add(ins);
+               for (Operand n : defs)
+                  moveList.get(n).add(ins);
+               worklistMoves.add(ins);
+            }
+
+            live.addAll(defs);
+            for (Operand d : defs) {
+               for (Operand l : live)
+                  addEdge(l, d);
+            }
+            live.removeAll(defs);
+            live.addAll(uses);
+         }
+      }
+   }
+
+   private void addNode(Operand n, double weight) {
+      if (!moveList.containsKey(n)) {
+         moveList.put(n, new LinkedHashSet<Instruction>());
+         if (!precolored.contains(n)) {
+            initial.add(n);
+            adjList.put(n, new LinkedHashSet<Operand>());
+            degree.put(n, 0);
+            spillCost.put(n, 0.0);
+         }
+      }
+      if (!precolored.contains(n))
+         spillCost.put(n, spillCost.get(n) + weight);
+   }
+
+   /*
+      Long hashes the two halves xor'ed together, scramble one of them
+      (multiplying by an odd number is one to one) so edges don't collide
+   */
+   private static Long edge(Operand u, Operand v) {
+      return ((long)v.getNumber() << 32)
+         | ((u.getNumber() * 0x9E3779B1) & 0xffffffffL);
+   }
+
+   private void addEdge(Operand u, Operand v) {
+      if (u.equals(v) || adjSet.contains(edge(u, v)))
+         return;
+
+      // live out sets can name registers whose block wasn't visited yet
+      addNode(u, 0);
+      addNode(v, 0);
+
+      adjSet.add(edge(u, v));
+      adjSet.add(edge(v, u));
+      if (!precolored.contains(u)) {
+         adjList.get(u).add(v);
+         degree.put(u, degree.get(u) + 1);
+      }
+      if (!precolored.contains(v)) {
+         adjList.get(v).add(u);
+         degree.put(v, degree.get(v) + 1);
+      }
+   }
+
+   private void makeWorklist() {
+      for (Operand n : initial) {
+         if (degree.get(n) >= K)
+            spillWorklist.add(n);
+         else if (moveRelated(n))
+            freezeWorklist.add(n);
+         else
+            simplifyWorklist.add(n);
+      }
+      initial.clear();
+   }
+
+   private List<Operand> adjacent(Operand n) {
+      List<Operand> result = new LinkedList<Operand>();
+
+      for (Operand m : adjList.get(n)) {
+         if (!onStack.contains(m) && !coalescedNodes.contains(m))
+            result.add(m);
+      }
+      return result;
+   }
+
+   private List<Instruction> nodeMoves(Operand n) {
+      List<Instruction> result = new LinkedList<Instruction>();
+
+      for (Instruction m : moveList.get(n)) {
+         if (activeMoves.contains(m) || worklistMoves.contains(m))
+            result.add(m);
+      }
+      return result;
+   }
+
+   private boolean moveRelated(Operand n) {
+      return !nodeMoves(n).isEmpty();
+   }
+
+   private void simplify() {
+      Operand n = removeFirst(simplifyWorklist);
+
+      selectStack.push(n);
+      onStack.add(n);
+      for (Operand m : adjacent(n))
+         decrementDegree(m);
+   }
+
+   private void decrementDegree(Operand m) {
+      if (precolored.contains(m))
+         return;
+
+      int d = degree.get(m);
+      degree.put(m, d - 1);
+      if (d == K) {
+         List<Operand> nodes = adjacent(m);
+         nodes.add(m);
+         enableMoves(nodes);
+         spillWorklist.remove(m);
+         if (moveRelated(m))
+            freezeWorklist.add(m);
+         else
+            simplifyWorklist.add(m);
+      }
+   }
+
+   private void enableMoves(List<Operand> nodes) {
+      for (Operand n : nodes) {
+         for (Instruction m : nodeMoves(n)) {
+            if (activeMoves.remove(m))
+               worklistMoves.add(m);
+         }
+      }
+   }
+
+   private void coalesce() {
+      Instruction m = removeFirst(worklistMoves);
+      Operand x = getAlias(m.getOperand(0));
+      Operand y = getAlias(m.getOperand(1));
+      Operand u, v;
+
+      if (precolored.contains(y)) {
+         u = y;
+         v = x;
+      }
+      else {
+         u = x;
+         v = y;
+      }
+
+      if (u.equals(v)) {
+         coalescedMoves.add(m);
+         addWorkList(u);
+      }
+      else if (precolored.contains(v) || adjSet.contains(edge(u, v))) {
+         constrainedMoves.add(m);
+         addWorkList(u);
+         addWorkList(v);
+      }
+      else if ((precolored.contains(u) && allOk(adjacent(v), u))
+            || (!precolored.contains(u) && conservative(u, v))) {
+         coalescedMoves.add(m);
+         combine(u, v);
+         addWorkList(u);
+      }
+      else {
+         activeMoves.add(m);
+      }
+   }
+
+   private void addWorkList(Operand u) {
+      if (!precolored.contains(u) && !moveRelated(u) && degree.get(u) < K) {
+         freezeWorklist.remove(u);
+         simplifyWorklist.add(u);
+      }
+   }
+
+   /* George's test for coalescing with a precolored register */
+   private boolean allOk(List<Operand> nodes, Operand r) {
+      for (Operand t : nodes) {
+         if (degree.get(t) >= K && !precolored.contains(t)
+               && !adjSet.contains(edge(t, r)))
+            return false;
+      }
+      return true;
+   }
+
+   /* Briggs' test, the combined node has fewer than K significant neighbors */
+   private boolean conservative(Operand u, Operand v) {
+      Set<Operand> nodes = new HashSet<Operand>(adjacent(u));
+      nodes.addAll(adjacent(v));
+
+      int k = 0;
+      for (Operand n : nodes) {
+         if (degree.get(n) >= K)
+            k++;
+      }
+      return k < K;
+   }
+
+   private Operand getAlias(Operand n) {
+      while (coalescedNodes.contains(n))
+         n = alias.get(n);
+      return n;
+   }
+
+   private void combine(Operand u, Operand v) {
+      if (!freezeWorklist.remove(v))
+         spillWorklist.remove(v);
+      coalescedNodes.add(v);
+      alias.put(v, u);
+      moveList.get(u).addAll(moveList.get(v));
+
+      List<Operand> nodes = new LinkedList<Operand>();
+      nodes.add(v);
+      enableMoves(nodes);
+
+      for (Operand t : adjacent(v)) {
+         addEdge(t, u);
+         decrementDegree(t);
+      }
+      if (degree.get(u) >= K && freezeWorklist.remove(u))
+         spillWorklist.add(u);
+   }
+
+   private void freeze() {
+      Operand u = removeFirst(freezeWorklist);
+
+      simplifyWorklist.add(u);
+      freezeMoves(u);
+   }
+
+   private void freezeMoves(Operand u) {
+      for (Instruction m : nodeMoves(u)) {
+         Operand x = getAlias(m.getOperand(0));
+         Operand y = getAlias(m.getOperand(1));
+         Operand v = y.equals(getAlias(u)) ? x : y;
+
+         activeMoves.remove(m);
+         frozenMoves.add(m);
+         if (!precolored.contains(v) && nodeMoves(v).isEmpty()
+               && degree.get(v) < K) {
+            freezeWorklist.remove(v);
+            simplifyWorklist.add(v);
+         }
+      }
+   }
+
+   /* pick the cheapest node per neighbor, never a register added by a spill */
+   private void selectSpill() {
+      Operand best = null;
+      double bestCost = 0;
+
+      for (Operand n : spillWorklist) {
+         double cost = spillCost.get(n) / degree.get(n);
+         if (spillTemps.contains(n))
+            cost = Double.MAX_VALUE;
+         if (best == null || cost < bestCost) {
+            best = n;
+            bestCost = cost;
+         }
+      }
+      spillWorklist.remove(best);
+      simplifyWorklist.add(best);
+      freezeMoves(best);
+   }
+
+   private void assignColors() {
+      while (!selectStack.empty()) {
+         Operand n = selectStack.pop();
+         onStack.remove(n);
+
+         Set<Operand> okColors = new LinkedHashSet<Operand>();
+         // prefer registers a call clobbers anyway, they are free to use
+         okColors.addAll(Arrays.asList(Instruction.callerSavedRegisters));
+         okColors.addAll(Arrays.asList(Instruction.calleeSavedRegisters));
+
+         for (Operand w : adjList.get(n)) {
+            Operand a = getAlias(w);
+            if (coloredNodes.contains(a) || precolored.contains(a))
+               okColors.remove(color.get(a));
+         }
+
+         if (okColors.isEmpty()) {
+            spilledNodes.add(n);
+         }
+         else {
+            coloredNodes.add(n);
+            color.put(n, okColors.iterator().next());
+         }
+      }
+      for (Operand n : coalescedNodes)
+         color.put(n, color.get(getAlias(n)));
+   }
+
+   /* give every spilled register a stack slot and load/store around uses */
+   private void rewriteProgram() {
+      Map<Operand, Operand> slots = new HashMap<Operand, Operand>();
+
+      for (Operand v : spilledNodes)
+         slots.put(v, getSlot(++spillSlots));
+
+      for (BasicBlock b : blocks) {
+         List<Instruction> rewritten = new LinkedList<Instruction>();
+
+         for (Instruction ins : b.getInstructions()) {
+            List<Operand> sources = ins.getSources();
+            List<Operand> targets = ins.getTargets();
+            List<Instruction> after = new LinkedList<Instruction>();
+
+            for (Operand v : spilledRegisters(sources, targets, slots)) {
+               Operand slot = slots.get(v);
+               boolean used = sources.contains(v);
+               boolean defined = targets.contains(v);
+
+               if (isSimpleSpill(ins, v)) {
+                  // a move to or from a register can address the slot
+                  ins.replaceOperand(v, slot);
+               }
+               else {
+                  Operand tmp = fun.getNextRegister();
+                  spillTemps.add(tmp);
+
+                  if (used)
+                     rewritten.add(new Instruction(Opcode.MOVQ, slot, tmp));
+                  ins.replaceOperand(v, tmp);
+                  if (defined)
+                     after.add(new Instruction(Opcode.MOVQ, tmp, slot));
+               }
+            }
+            rewritten.add(ins);
+            rewritten.addAll(after);
+         }
+         b.setInstructions(rewritten);
+      }
+      color.keySet().retainAll(precolored);
+   }
+
+   private Set<Operand> spilledRegisters(List<Operand> sources,
+         List<Operand> targets, Map<Operand, Operand> slots) {
+      Set<Operand> result = new LinkedHashSet<Operand>();
+
+      for (Operand reg : sources) {
+         if (slots.containsKey(reg))
+            result.add(reg);
+      }
+      for (Operand reg : targets) {
+         if (slots.containsKey(reg))
+            result.add(reg);
+      }
+      return result;
+   }
+
+   private boolean isSimpleSpill(Instruction ins, Operand v) {
+      if (ins.getOpcode() != Opcode.MOVQ)
+         return false;
+
+      Operand src = ins.getOperand(0), dst = ins.getOperand(1);
+      if (src.equals(v))
+         return dst.isRegister() && !dst.equals(v);
+      if (dst.equals(v))
+         return src.isRegister() && !src.equals(v);
+      return false;
+   }
+
+   /* rename virtual registers to their colors and drop coalesced moves */
+   private void replaceRegisters() {
+      for (BasicBlock b : blocks) {
+         for (Instruction ins : b.getInstructions()) {
+            Set<Operand> regs = new HashSet<Operand>(ins.getSources());
+            regs.addAll(ins.getTargets());
+            for (Operand reg : regs) {
+               if (reg.isVirtual())
+                  ins.replaceOperand(reg, color.get(reg));
+            }
+         }
+      }
+      removeSelfMoves();
+   }
+
+   private static <T> T removeFirst(Set<T> set) {
+      Iterator<T> it = set.iterator();
+      T first = it.next();
+      it.remove();
+      return first;
+   }
+}
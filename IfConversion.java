@@ -0,0 +1,283 @@
+import java.util.*;
+
+/*
+   If-conversion of small hammocks in one function.  A block that ends
+   in a conditional branch to one or two short arms that meet again
+   right away becomes straight-line code: the arms are computed into
+   fresh registers ahead of the comparison, and conditional moves, which
+   X86 lowers to cmov, pick the values that are live where the arms
+   meet.  Both triangles (one arm) and diamonds (two) are converted.
+
+   Doing the work of both arms is only worth it while it costs less than
+   a branch that goes either way.  Without a profile every branch counts
+   as unpredictable, half a misprediction on average, and the cheaper
+   arm plus the conditional moves may cost at most that much.  Arms may
+   only compute values: a load through a pointer could fault on the path
+   that didn't ask for it and a division could trap.
+
+   Runs on the iloc after SSA is taken apart.
+*/
+public class IfConversion {
+   /* cycles a branch that goes either way costs on average */
+   private static final int BRANCH_COST = 8;
+   /* most an arm may cost, so long chains stay branches */
+   private static final int ARM_COST = 6;
+
+   private BasicBlock fun;
+   private Liveness liveness;
+   private Set<BasicBlock> changed = new HashSet<BasicBlock>();
+
+   public IfConversion(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   /* a converted head falls into its join, cleanup merges the two */
+   public void run() {
+      boolean converted = true;
+
+      while (converted) {
+         FlowGraph graph = new FlowGraph(fun);
+
+         liveness = new Liveness(graph);
+         changed.clear();
+         converted = false;
+         // innermost first, an outer arm holds the head of an inner one
+         for (int id : graph.getPostorder())
+            converted |= convert(graph.getBlock(id));
+         if (converted)
+            new ControlFlowSimplification(fun).run();
+      }
+   }
+
+   private boolean convert(BasicBlock head) {
+      List<BasicBlock> outgoing = head.getOutgoing();
+      List<Instruction> instructions = head.getInstructions();
+
+      if (outgoing.size() != 2 || outgoing.get(0) == outgoing.get(1)
+            || changed.contains(head))
+         return false;
+      Instruction branch = instructions.get(instructions.size() - 1);
+      Opcode move = conditionalMove(branch.getOpcode());
+      int compare = lastCompare(instructions);
+      if (move == null || compare < 0)
+         return false;
+
+      BasicBlock fall = outgoing.get(0), taken = outgoing.get(1);
+      BasicBlock join;
+      if (isArm(taken, head) && isArm(fall, head)
+            && taken.getOutgoing().get(0) == fall.getOutgoing().get(0))
+         join = taken.getOutgoing().get(0);
+      else if (isArm(taken, head) && taken.getOutgoing().get(0) == fall)
+         join = fall;
+      else if (isArm(fall, head) && fall.getOutgoing().get(0) == taken)
+         join = taken;
+      else
+         return false;
+      if (join == head || changed.contains(join))
+         return false;
+
+      BasicBlock takenArm = taken != join ? taken : null;
+      BasicBlock fallArm = fall != join ? fall : null;
+      Set<Operand> live = liveness.getRegisters(liveness.getLiveIn(join));
+      int takenCost = cost(takenArm), fallCost = cost(fallArm);
+      if (Math.max(takenCost, fallCost) > ARM_COST
+            || Math.min(takenCost, fallCost)
+               + moves(takenArm, fallArm, live) > BRANCH_COST)
+         return false;
+
+      rewrite(head, compare, move, takenArm, fallArm, join, live);
+      return true;
+   }
+
+   /* a block that only head reaches, which goes on to a single block */
+   private boolean isArm(BasicBlock arm, BasicBlock head) {
+      if (arm == fun || arm == head || arm.getIncoming().size() != 1
+            || arm.getOutgoing().size() != 1 || changed.contains(arm))
+         return false;
+
+      List<Instruction> instructions = arm.getInstructions();
+      for (int i = 0; i < instructions.size(); i++) {
+         Opcode opcode = instructions.get(i).getOpcode();
+         if (!isSafe(opcode)
+               && !(opcode == Opcode.JUMPI && i == instructions.size() - 1))
+            return false;
+      }
+      return true;
+   }
+
+   /* instructions that can run on a path that didn't ask for them */
+   private static boolean isSafe(Opcode opcode) {
+      switch (opcode) {
+      case LOADI: case MOV: case ADD: case SUB: case MULT: case AND: case OR:
+      case XORI: case LOADGLOBAL:
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   private static int cost(BasicBlock arm) {
+      int cost = 0;
+
+      if (arm == null)
+         return 0;
+      for (Instruction ins : arm.getInstructions()) {
+         switch (ins.getOpcode()) {
+         case JUMPI:
+            break;
+         case MULT:
+            cost += 3;
+            break;
+         default:
+            cost++;
+            break;
+         }
+      }
+      return cost;
+   }
+
+   /* the registers live after the arms that they write */
+   private static int moves(BasicBlock takenArm, BasicBlock fallArm,
+         Set<Operand> live) {
+      Set<Operand> written = new HashSet<Operand>();
+
+      for (BasicBlock arm : new BasicBlock[] {takenArm, fallArm}) {
+         if (arm == null)
+            continue;
+         for (Instruction ins : arm.getInstructions()) {
+            for (Operand reg : ins.getTargets()) {
+               if (live.contains(reg))
+                  written.add(reg);
+            }
+         }
+      }
+      return written.size();
+   }
+
+   /*
+      the comparison the branch tests.  The copies SSA leaves after it
+      may not change what it compares, it moves past them.
+   */
+   private static int lastCompare(List<Instruction> instructions) {
+      Set<Operand> written = new HashSet<Operand>();
+
+      for (int i = instructions.size() - 2; i >= 0; i--) {
+         Instruction ins = instructions.get(i);
+         switch (ins.getOpcode()) {
+         case COMP:
+            for (Operand reg : ins.getSources()) {
+               if (written.contains(reg))
+                  return -1;
+            }
+            return i;
+         case MOV: case LOADI:
+            written.addAll(ins.getTargets());
+            break;
+         default:
+            return -1;
+         }
+      }
+      return -1;
+   }
+
+   /* the move made under the condition a branch is taken on */
+   private static Opcode conditionalMove(Opcode branch) {
+      switch (branch) {
+      case CBREQ: return Opcode.MOVEQ;
+      case CBRNE: return Opcode.MOVNE;
+      case CBRLT: return Opcode.MOVLT;
+      case CBRLE: return Opcode.MOVLE;
+      case CBRGT: return Opcode.MOVGT;
+      case CBRGE: return Opcode.MOVGE;
+      default:
+         return null;
+      }
+   }
+
+   private static Opcode inverse(Opcode move) {
+      switch (move) {
+      case MOVEQ: return Opcode.MOVNE;
+      case MOVNE: return Opcode.MOVEQ;
+      case MOVLT: return Opcode.MOVGE;
+      case MOVGE: return Opcode.MOVLT;
+      case MOVGT: return Opcode.MOVLE;
+      default: return Opcode.MOVGT;
+      }
+   }
+
+   private void rewrite(BasicBlock head, int compare, Opcode move,
+         BasicBlock takenArm, BasicBlock fallArm, BasicBlock join,
+         Set<Operand> live) {
+      List<Instruction> instructions = head.getInstructions();
+      List<Instruction> arms = new ArrayList<Instruction>();
+      Map<Operand, Operand> takenValues = hoist(takenArm, arms);
+      Map<Operand, Operand> fallValues = hoist(fallArm, arms);
+      List<Instruction> moves = new ArrayList<Instruction>();
+
+      // a register both arms set is a copy and one conditional move
+      for (Operand reg : fallValues.keySet()) {
+         if (!live.contains(reg))
+            continue;
+         if (takenValues.containsKey(reg))
+            moves.add(new Instruction(Opcode.MOV, fallValues.get(reg), reg));
+         else
+            moves.add(new Instruction(inverse(move), Operand.CCR,
+                     fallValues.get(reg), reg));
+      }
+      for (Operand reg : takenValues.keySet()) {
+         if (live.contains(reg))
+            moves.add(new Instruction(move, Operand.CCR,
+                     takenValues.get(reg), reg));
+      }
+
+      // arms, comparison and moves go after the copies, in that order
+      instructions.remove(instructions.size() - 1);
+      Instruction comp = instructions.remove(compare);
+      instructions.addAll(arms);
+      instructions.add(comp);
+      instructions.addAll(moves);
+
+      for (BasicBlock arm : new BasicBlock[] {takenArm, fallArm}) {
+         if (arm != null) {
+            join.getIncoming().remove(arm);
+            changed.add(arm);
+         }
+      }
+      join.getIncoming().remove(head);
+      head.getOutgoing().clear();
+      head.addOutgoing(join);
+      join.addIncoming(head);
+      changed.add(head);
+      changed.add(join);
+   }
+
+   /*
+      the instructions of an arm go to arms, writing fresh registers.
+      Gives the register each one the arm writes ends up in.
+   */
+   private Map<Operand, Operand> hoist(BasicBlock arm,
+         List<Instruction> arms) {
+      Map<Operand, Operand> values = new LinkedHashMap<Operand, Operand>();
+
+      if (arm == null)
+         return values;
+      for (Instruction ins : arm.getInstructions()) {
+         if (ins.getOpcode() == Opcode.JUMPI)
+            continue;
+         for (int i = 0; i < ins.getOperandCount(); i++) {
+            Operand reg = ins.getOperand(i);
+            if (ins.getOpcode().isUse(i) && values.containsKey(reg))
+               ins.setOperand(i, values.get(reg));
+         }
+         for (int i = 0; i < ins.getOperandCount(); i++) {
+            if (ins.getOpcode().isDef(i)) {
+               Operand value = fun.getNextRegister();
+               values.put(ins.getOperand(i), value);
+               ins.setOperand(i, value);
+            }
+         }
+         arms.add(ins);
+      }
+      return values;
+   }
+}
@@ -0,0 +1,311 @@
+import java.util.*;
+
+/*
+   Inlines calls between the functions of a program.  The call graph is
+   split into strongly connected components, which are visited callees
+   first, so a function has already taken in its own callees when it is
+   considered for inlining into its callers.  A function that is part of
+   a cycle is never inlined, that would not end.
+
+   Whether a call is inlined depends on the size of the callee in iloc
+   instructions and on two budgets: how much a caller may grow, and how
+   much the whole program may.  A callee with a single call site may be
+   larger, the copy is most of what is left of it.  The call sites of a
+   function are tried smallest callee first, so the budgets go to the
+   calls that cost the most per instruction.  How much of all this is
+   allowed grows with the level.
+
+   The body is cloned into the caller with fresh labels and registers:
+   the parameters become copies of the arguments, a return a copy to
+   the register the loadret wrote and a jump to the rest of the caller.
+   What is left is cleaned up by the optimizer like any other code.
+*/
+public class Inliner {
+   /* by level, 0 inlines nothing */
+   private static final int CALLEE_SIZE[] = {0, 16, 48, 160};
+   private static final int ONCE_SIZE[] = {0, 64, 192, 640};
+   private static final int CALLER_GROWTH[] = {0, 2, 4, 8};
+   private static final int PROGRAM_GROWTH[] = {0, 2, 3, 6};
+   /* what even a small caller or program may grow by */
+   private static final int GROWTH_BASE = 64;
+
+   public static final int MAX_LEVEL = CALLEE_SIZE.length - 1;
+
+   private List<BasicBlock> funs;
+   private int level;
+   private Map<String, BasicBlock> byName = new HashMap<String, BasicBlock>();
+   private Map<BasicBlock, Integer> sizes = new HashMap<BasicBlock, Integer>();
+   private Map<BasicBlock, Integer> callSites =
+      new HashMap<BasicBlock, Integer>();
+   private Set<BasicBlock> recursive = new HashSet<BasicBlock>();
+   private int programSize, programLimit;
+   private int inlined;          /* numbers the copies, for their labels */
+
+   /* Tarjan's algorithm */
+   private Map<BasicBlock, Integer> index = new HashMap<BasicBlock, Integer>();
+   private Map<BasicBlock, Integer> lowLink =
+      new HashMap<BasicBlock, Integer>();
+   private Deque<BasicBlock> stack = new ArrayDeque<BasicBlock>();
+   private Set<BasicBlock> onStack = new HashSet<BasicBlock>();
+   private List<List<BasicBlock>> components =
+      new ArrayList<List<BasicBlock>>();
+
+   public Inliner(List<BasicBlock> funs, int level) {
+      this.funs = funs;
+      this.level = Math.min(level, MAX_LEVEL);
+   }
+
+   public void run() {
+      if (level <= 0)
+         return;
+
+      for (BasicBlock fun : funs) {
+         new ControlFlowSimplification(fun).run();
+         byName.put(fun.getLabel(), fun);
+      }
+      for (BasicBlock fun : funs) {
+         sizes.put(fun, size(fun));
+         programSize += sizes.get(fun);
+         for (BasicBlock callee : callees(fun)) {
+            Integer count = callSites.get(callee);
+            callSites.put(callee, count == null ? 1 : count + 1);
+         }
+      }
+      programLimit = programSize * PROGRAM_GROWTH[level] + GROWTH_BASE;
+
+      for (BasicBlock fun : funs) {
+         if (!index.containsKey(fun))
+            connect(fun);
+      }
+      // Tarjan finds a component only after the ones it calls
+      for (List<BasicBlock> component : components) {
+         for (BasicBlock fun : component)
+            inlineCalls(fun);
+      }
+   }
+
+   private static int size(BasicBlock fun) {
+      int size = 0;
+
+      for (BasicBlock block : fun.getFunctionBlocks())
+         size += block.getInstructions().size();
+      return size;
+   }
+
+   /* the functions fun calls, once for every call */
+   private List<BasicBlock> callees(BasicBlock fun) {
+      List<BasicBlock> result = new ArrayList<BasicBlock>();
+
+      for (BasicBlock block : fun.getFunctionBlocks()) {
+         for (Instruction ins : block.getInstructions()) {
+            if (ins.getOpcode() == Opcode.CALL)
+               result.add(byName.get(ins.getOperand(0).getName()));
+         }
+      }
+      return result;
+   }
+
+   private void connect(BasicBlock fun) {
+      int number = index.size();
+
+      index.put(fun, number);
+      lowLink.put(fun, number);
+      stack.push(fun);
+      onStack.add(fun);
+      for (BasicBlock callee : callees(fun)) {
+         if (callee == fun) {
+            recursive.add(fun);
+         }
+         else if (!index.containsKey(callee)) {
+            connect(callee);
+            lowLink.put(fun, Math.min(lowLink.get(fun), lowLink.get(callee)));
+         }
+         else if (onStack.contains(callee)) {
+            lowLink.put(fun, Math.min(lowLink.get(fun), index.get(callee)));
+         }
+      }
+
+      if (lowLink.get(fun).equals(index.get(fun))) {
+         List<BasicBlock> component = new ArrayList<BasicBlock>();
+         BasicBlock member;
+         do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+         } while (member != fun);
+         if (component.size() > 1)
+            recursive.addAll(component);
+         components.add(component);
+      }
+   }
+
+   private static class CallSite {
+      BasicBlock block;
+      Instruction call;
+      BasicBlock callee;
+
+      CallSite(BasicBlock block, Instruction call, BasicBlock callee) {
+         this.block = block;
+         this.call = call;
+         this.callee = callee;
+      }
+   }
+
+   private void inlineCalls(BasicBlock fun) {
+      List<CallSite> sites = new ArrayList<CallSite>();
+      int limit = sizes.get(fun) * CALLER_GROWTH[level] + GROWTH_BASE;
+
+      for (BasicBlock block : fun.getFunctionBlocks()) {
+         for (Instruction ins : block.getInstructions()) {
+            if (ins.getOpcode() != Opcode.CALL)
+               continue;
+            BasicBlock callee = byName.get(ins.getOperand(0).getName());
+            if (callee != fun && !recursive.contains(callee))
+               sites.add(new CallSite(block, ins, callee));
+         }
+      }
+      Collections.sort(sites, new Comparator<CallSite>() {
+         public int compare(CallSite a, CallSite b) {
+            return sizes.get(a.callee) - sizes.get(b.callee);
+         }
+      });
+
+      // a split moves the rest of a block, and the calls in it, to a new one
+      Map<Instruction, BasicBlock> moved =
+         new HashMap<Instruction, BasicBlock>();
+      for (CallSite site : sites) {
+         int size = sizes.get(site.callee);
+         int allowed = callSites.get(site.callee) == 1
+            ? ONCE_SIZE[level] : CALLEE_SIZE[level];
+         if (size > allowed || sizes.get(fun) + size > limit
+               || programSize + size > programLimit)
+            continue;
+
+         BasicBlock block = moved.containsKey(site.call)
+            ? moved.get(site.call) : site.block;
+         if (!TailCalls.isStored(block,
+                  block.getInstructions().indexOf(site.call),
+                  (int)site.call.getOperand(1).getValue()))
+            continue;
+         inline(fun, block, site.call, site.callee, moved);
+         sizes.put(fun, sizes.get(fun) + size);
+         programSize += size;
+      }
+      if (!sites.isEmpty())
+         new ControlFlowSimplification(fun).run();
+   }
+
+   private String cloneLabel(String label) {
+      return label + "_i" + inlined;
+   }
+
+   private void inline(BasicBlock fun, BasicBlock block, Instruction call,
+         BasicBlock callee, Map<Instruction, BasicBlock> moved) {
+      List<Instruction> instructions = block.getInstructions();
+      int at = instructions.indexOf(call);
+      int argCount = (int)call.getOperand(1).getValue();
+      Operand result = null;
+
+      inlined++;
+      List<Operand> arguments = new ArrayList<Operand>();
+      for (int i = at - argCount; i < at; i++)
+         arguments.add(instructions.get(i).getOperand(0));
+      if (at + 1 < instructions.size()
+            && instructions.get(at + 1).getOpcode() == Opcode.LOADRET)
+         result = instructions.get(at + 1).getOperand(0);
+
+      // the rest of the block goes on after the body
+      BasicBlock rest = fun.createBlock(cloneLabel(block.getLabel()));
+      List<Instruction> tail = instructions.subList(
+            result == null ? at + 1 : at + 2, instructions.size());
+      rest.getInstructions().addAll(tail);
+      for (Instruction ins : tail)
+         moved.put(ins, rest);
+      tail.clear();
+      instructions.subList(at - argCount, instructions.size()).clear();
+      for (BasicBlock succ : block.getOutgoing()) {
+         List<BasicBlock> incoming = succ.getIncoming();
+         incoming.set(incoming.indexOf(block), rest);
+         rest.addOutgoing(succ);
+      }
+      block.getOutgoing().clear();
+
+      BasicBlock entry = cloneBody(fun, callee, arguments, result, rest);
+      block.addOutgoing(entry);
+      entry.addIncoming(block);
+      fun.setMaxArgCount(Math.max(fun.getMaxArgCount(),
+               callee.getMaxArgCount()));
+   }
+
+   /* a copy of the blocks of callee in fun, gives the copy of the entry */
+   private BasicBlock cloneBody(BasicBlock fun, BasicBlock callee,
+         List<Operand> arguments, Operand result, BasicBlock rest) {
+      Map<BasicBlock, BasicBlock> blocks =
+         new LinkedHashMap<BasicBlock, BasicBlock>();
+      Map<Operand, Operand> registers = new HashMap<Operand, Operand>();
+      Map<String, String> labels = new HashMap<String, String>();
+
+      for (BasicBlock block : callee.getFunctionBlocks()) {
+         BasicBlock copy = fun.createBlock(cloneLabel(block.getLabel()));
+         blocks.put(block, copy);
+         labels.put(block.getLabel(), copy.getLabel());
+      }
+
+      for (BasicBlock block : blocks.keySet()) {
+         BasicBlock copy = blocks.get(block);
+         for (BasicBlock succ : block.getOutgoing())
+            copy.addOutgoing(blocks.get(succ));
+         for (BasicBlock pred : block.getIncoming()) {
+            if (blocks.containsKey(pred))
+               copy.addIncoming(blocks.get(pred));
+         }
+
+         for (Instruction ins : block.getInstructions()) {
+            Instruction clone = rename(ins.copy(), fun, registers, labels);
+            switch (clone.getOpcode()) {
+            case LOADINARGUMENT:
+               Operand argument = arguments.get(
+                     (int)clone.getOperand(1).getValue());
+               copy.addInstruction(new Instruction(argument.isRegister()
+                        ? Opcode.MOV : Opcode.LOADI, argument,
+                        clone.getOperand(2)));
+               break;
+            case STORERET:
+               if (result != null)
+                  copy.addInstruction(new Instruction(Opcode.MOV,
+                           clone.getOperand(0), result));
+               break;
+            case RET:
+               copy.addInstruction(new Instruction(Opcode.JUMPI,
+                        Operand.label(rest.getLabel())));
+               copy.addOutgoing(rest);
+               rest.addIncoming(copy);
+               break;
+            default:
+               copy.addInstruction(clone);
+               break;
+            }
+         }
+      }
+      return blocks.get(callee);
+   }
+
+   /* fresh registers, and the labels of the copied blocks to jump to */
+   private static Instruction rename(Instruction ins, BasicBlock fun,
+         Map<Operand, Operand> registers, Map<String, String> labels) {
+      boolean branch = ins.getOpcode().isBranch();
+
+      for (int i = 0; i < ins.getOperandCount(); i++) {
+         Operand operand = ins.getOperand(i);
+         if (operand.isVirtual()) {
+            if (!registers.containsKey(operand))
+               registers.put(operand, fun.getNextRegister());
+            ins.setOperand(i, registers.get(operand));
+         }
+         else if (branch && operand.getKind() == Operand.Kind.LABEL) {
+            ins.setOperand(i, Operand.label(labels.get(operand.getName())));
+         }
+      }
+      return ins;
+   }
+}
@@ -1,189 +1,155 @@
 import java.util.*;
 
 public class Instruction {
-    private String opcode;
-    private List<String> operands;
+    /* registers the allocator is allowed to hand out */
+    public static final Operand allocatableRegisters[] =
+    {Operand.RAX, Operand.RBX, Operand.RCX, Operand.RDX, Operand.RSI,
+     Operand.RDI, Operand.R8, Operand.R9, Operand.R10, Operand.R11,
+     Operand.R12, Operand.R13, Operand.R14, Operand.R15};
 
-    public Instruction(String opcode) 
-    {
-        this.opcode = opcode; 
-        operands = new LinkedList<String>();
-    }
+    /* registers a call is free to clobber */
+    public static final Operand callerSavedRegisters[] =
+    {Operand.RAX, Operand.RCX, Operand.RDX, Operand.RSI, Operand.RDI,
+     Operand.R8, Operand.R9, Operand.R10, Operand.R11};
 
-    public Instruction(String opcode, String operand1) {
-        this(opcode);
-        operands.add(operand1);
-    }
+    /* registers a function has to preserve for its caller */
+    public static final Operand calleeSavedRegisters[] =
+    {Operand.RBX, Operand.R12, Operand.R13, Operand.R14, Operand.R15};
+
+    private static final Operand NONE[] = {};
 
-    public Instruction(String opcode, String operand1, String operand2) {
-        this(opcode, operand1);
-        operands.add(operand2);
+    private Opcode opcode;
+    private Operand operands[];
+
+    /* registers read or written that don't show up as operands */
+    private Operand implicitSources[] = NONE;
+    private Operand implicitTargets[] = NONE;
+
+    public Instruction(Opcode opcode, Operand... operands)
+    {
+        this.opcode = opcode;
+        this.operands = operands;
     }
 
-    public Instruction(String opcode, String operand1, String operand2,
-            String operand3) {
-        this(opcode, operand1, operand2);
-        operands.add(operand3);
+    /* a separate instruction with the same opcode and operands */
+    public Instruction copy() {
+        Instruction result = new Instruction(opcode, operands.clone());
+        result.implicitSources = implicitSources;
+        result.implicitTargets = implicitTargets;
+        return result;
     }
 
-    public void setOpcode(String val) {
+    public void setOpcode(Opcode val) {
         opcode = val;
     }
 
-    public String getOpcode()
+    public Opcode getOpcode()
     {
         return opcode;
     }
 
-    public void addOperand(String operand) 
+    public void addOperand(Operand operand)
     {
-        operands.add(operand);
+        operands = append(operands, operand);
     }
 
-    public List<String> getOperands() 
-    {
-        return operands;
-    }
-   
-    public List<String> getSources() {
-       List<String> sources = new LinkedList<String>();
-
-       // source and/or target may be offsets
-       // and global variables
-       // and constants (for printf)
-       if (opcode.equals("movq")) {
-          sources.add(operands.get(0));
-       } 
-       else if (opcode.equals("cmove")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmovge")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmovg")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmovle")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmovl")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmovne")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("cmpq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("addq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("subq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("imulq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("idiv")) {
-          sources.add(operands.get(0));
-          sources.add("%rdx");
-          sources.add("%rax");
-       }
-       else if (opcode.equals("sarq")) {
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("andq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
-       }
-       else if (opcode.equals("orq")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
+    public Operand getOperand(int i) {
+        return operands[i];
+    }
+
+    public void setOperand(int i, Operand operand) {
+        operands[i] = operand;
+    }
+
+    public void removeOperand(int i) {
+        Operand result[] = new Operand[operands.length - 1];
+        System.arraycopy(operands, 0, result, 0, i);
+        System.arraycopy(operands, i + 1, result, i, result.length - i);
+        operands = result;
+    }
+
+    public int getOperandCount() {
+        return operands.length;
+    }
+
+    public void addImplicitSource(Operand register) {
+        implicitSources = append(implicitSources, register);
+    }
+
+    public void addImplicitTarget(Operand register) {
+        implicitTargets = append(implicitTargets, register);
+    }
+
+    private static Operand[] append(Operand lst[], Operand operand) {
+        Operand result[] = Arrays.copyOf(lst, lst.length + 1);
+        result[lst.length] = operand;
+        return result;
+    }
+
+    /* true for a register to register copy the allocator may coalesce */
+    public boolean isMove() {
+        return opcode == Opcode.MOVQ && operands[0].isRegister()
+            && operands[1].isRegister();
+    }
+
+    /* registers read by this instruction */
+    public List<Operand> getSources() {
+       List<Operand> sources = new ArrayList<Operand>(4);
+
+       for (int i = 0; i < operands.length; i++) {
+          Operand operand = operands[i];
+          if (operand.isRegister()) {
+             if (opcode.isUse(i))
+                sources.add(operand);
+          }
+          else if (operand.getBase() != null
+                && !operand.getBase().isFrameRegister()) {
+             sources.add(operand.getBase());
+          }
        }
-       else if (opcode.equals("xori")) {
-          sources.add(operands.get(0));
-          sources.add(operands.get(1));
+       sources.addAll(Arrays.asList(opcode.getImplicitUses()));
+       sources.addAll(Arrays.asList(implicitSources));
+       return sources;
+    }
+
+    /* registers written by this instruction */
+    public List<Operand> getTargets() {
+       List<Operand> targets = new ArrayList<Operand>(2);
+
+       for (int i = 0; i < operands.length; i++) {
+          if (operands[i].isRegister() && opcode.isDef(i))
+             targets.add(operands[i]);
        }
+       targets.addAll(Arrays.asList(opcode.getImplicitDefs()));
+       targets.addAll(Arrays.asList(implicitTargets));
+       return targets;
+    }
 
-       return sources;
+    /* replace every mention of an operand, registers also inside addresses */
+    public void replaceOperand(Operand from, Operand to) {
+       for (int i = 0; i < operands.length; i++) {
+          Operand operand = operands[i];
+          if (operand.equals(from))
+             operands[i] = to;
+          else if (from.equals(operand.getBase()))
+             operands[i] = operand.withBase(to);
+       }
     }
-   
-    public String getTarget() {
-      String target = null; 
-
-         // source and/or target may be offsets
-         // and global variables
-         // and constants (for printf)
-         if (opcode.equals("movq")) {
-            target = operands.get(1);
-         } 
-         else if (opcode.equals("cmove")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmovge")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmovg")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmovle")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmovl")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmovne")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("cmpq")) {
-            /* do nothing */
-         }
-         else if (opcode.equals("addq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("subq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("imulq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("idiv")) {
-            target = "%rax"; 
-         }
-         else if (opcode.equals("sarq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("andq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("orq")) {
-            target = operands.get(1);
-         }
-         else if (opcode.equals("xori")) {
-            target = operands.get(1);
-         }
-      return target;
-   }
-    public String toString() 
+
+    public String toString()
     {
-        String result = opcode;
+        StringBuilder result = new StringBuilder(opcode.toString());
 
-        for (int i = 0; i < operands.size(); i++) {
-            result += " " + operands.get(i);
-            if (i != operands.size() - 1)
-                result += ",";
+        for (int i = 0; i < operands.length; i++) {
+            result.append(i == 0 ? " " : ", ");
+            if (opcode == Opcode.MOVB)
+                result.append(operands[i].toByteString());
+            else if (opcode.isX86())
+                result.append(operands[i]);
+            else
+                result.append(operands[i].toIloc());
         }
-        return result;
+        return result.toString();
     }
-    
+
 }
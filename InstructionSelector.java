@@ -0,0 +1,700 @@
+import java.util.*;
+
+/*
+   Instruction selection, lowers the iloc of one function to x86.  A
+   value with a single definition that is read once, later in the same
+   block, is not computed where it is defined but where it is read, so
+   each block becomes a forest of expression trees.  The trees are
+   covered with x86 tiles: constants become immediates, loads of fields
+   and globals become memory operands addressed by base and displacement,
+   copies disappear and a constant added to a register is a leaq.  Where
+   there is a choice the tiling with the fewest instructions is picked.
+
+   A value is only moved down to its use when none of the registers it
+   reads are written in between, when no store or call is in between if
+   it loads from memory, and when no compare is in between if it does
+   arithmetic, which would clobber the condition codes.
+*/
+public class InstructionSelector {
+   private static final Operand argRegisters[] =
+   {Operand.RDI, Operand.RSI, Operand.RDX, Operand.RCX, Operand.R8,
+    Operand.R9};
+
+   /* operand forms a tile takes besides a register */
+   private static final int IMMEDIATE = 1, MEMORY = 2, ANY = 3;
+
+   private enum Kind { LEAF, CONSTANT, LOAD, GLOBAL, COPY, BINARY }
+
+   /* how a binary operation is covered */
+   private enum Choice { LEFT, RIGHT, LEA }
+
+   private static class Node {
+      Kind kind;
+      Operand reg;          /* the leaf register, or where the value goes */
+      Operand constant;     /* the value, field or global of a leaf tile */
+      Opcode opcode;        /* x86 opcode of a binary operation */
+      Node left, right;     /* a load has its base left, a copy its source */
+      int start;            /* first instruction of the tree in the block */
+      Set<Operand> leaves = new HashSet<Operand>(4);
+      boolean loads;        /* reads memory */
+      boolean narrow;       /* loads a byte, which has to be widened */
+      boolean arithmetic;   /* sets the condition codes */
+      int cost;             /* instructions to get the value in a register */
+      Choice choice = Choice.LEFT;
+      boolean folded;       /* computed by the instruction reading it */
+   }
+
+   private BasicBlock fun;
+   private FlowGraph graph;
+   private Map<Operand, Integer> defs = new HashMap<Operand, Integer>();
+   private Map<Operand, Integer> uses = new HashMap<Operand, Integer>();
+   private List<Instruction> asm;
+
+   public InstructionSelector(FlowGraph graph) {
+      this.graph = graph;
+      this.fun = graph.getEntry();
+   }
+
+   public void select() {
+      for (int id : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(id).getInstructions()) {
+            count(defs, ins.getTargets());
+            count(uses, ins.getSources());
+         }
+      }
+      for (int id : graph.getReversePostorder())
+         select(graph.getBlock(id));
+   }
+
+   private static void count(Map<Operand, Integer> counts,
+         List<Operand> regs) {
+      for (Operand reg : regs) {
+         Integer count = counts.get(reg);
+         counts.put(reg, count == null ? 1 : count + 1);
+      }
+   }
+
+   private void select(BasicBlock block) {
+      List<Instruction> iloc = new ArrayList<Instruction>(
+            block.getInstructions());
+      Node args[][] = new Node[iloc.size()][];
+      Node trees[] = new Node[iloc.size()];
+
+      buildTrees(iloc, args, trees);
+      asm = new LinkedList<Instruction>();
+      for (int i = 0; i < iloc.size(); i++) {
+         if (trees[i] == null || !trees[i].folded)
+            lower(iloc.get(i), args[i], trees[i]);
+      }
+      block.setInstructions(asm);
+   }
+
+   /*
+      args gets the tree for every register an instruction reads and trees
+      the tree of every instruction that computes a value
+   */
+   private void buildTrees(List<Instruction> iloc, Node args[][],
+         Node trees[]) {
+      Map<Operand, Node> available = new HashMap<Operand, Node>();
+      Map<Operand, Integer> lastDef = new HashMap<Operand, Integer>();
+      int lastStore = -1, lastCompare = -1;
+
+      for (int q = 0; q < iloc.size(); q++) {
+         Instruction ins = iloc.get(q);
+         Opcode opcode = ins.getOpcode();
+
+         args[q] = new Node[ins.getOperandCount()];
+         for (int i = 0; i < ins.getOperandCount(); i++) {
+            Operand reg = ins.getOperand(i);
+            if (!reg.isRegister() || !opcode.isUse(i) || opcode.isDef(i))
+               continue;
+
+            Node n = available.remove(reg);
+            if (n != null && !isWritten(n.leaves, lastDef, n.start)
+                  && !(n.loads && lastStore >= n.start)
+                  && !(n.arithmetic && lastCompare >= n.start))
+               n.folded = true;
+            else
+               n = leaf(reg, q);
+            args[q][i] = n;
+         }
+         trees[q] = tile(ins, args[q], q);
+
+         for (Operand reg : ins.getTargets())
+            lastDef.put(reg, q);
+         if (writesMemory(opcode))
+            lastStore = q;
+         else if (opcode == Opcode.COMP)
+            lastCompare = q;
+
+         Node n = trees[q];
+         if (n != null && defs.get(n.reg) == 1 && uses.get(n.reg) != null
+               && uses.get(n.reg) == 1)
+            available.put(n.reg, n);
+      }
+   }
+
+   private static boolean isWritten(Set<Operand> regs,
+         Map<Operand, Integer> lastDef, int since) {
+      for (Operand reg : regs) {
+         Integer def = lastDef.get(reg);
+         if (def != null && def >= since)
+            return true;
+      }
+      return false;
+   }
+
+   private static boolean writesMemory(Opcode opcode) {
+      switch (opcode) {
+      case STOREAI: case CSTOREAI: case STOREGLOBAL: case CALL: case NEW:
+      case DEL: case TAILCALL:
+      case READ: case PRINT: case PRINTLN:
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   private Node leaf(Operand reg, int position) {
+      Node n = new Node();
+
+      n.kind = Kind.LEAF;
+      n.reg = reg;
+      n.start = position;
+      n.leaves.add(reg);
+      return n;
+   }
+
+   private Node constant(Operand value, Operand target, int position) {
+      Node n = new Node();
+
+      n.kind = Kind.CONSTANT;
+      n.constant = value;
+      n.reg = target;
+      n.start = position;
+      n.cost = 1;
+      return n;
+   }
+
+   /* the tree for an instruction computing a value, null for the rest */
+   private Node tile(Instruction ins, Node args[], int position) {
+      Node n = new Node();
+
+      switch (ins.getOpcode()) {
+      case LOADI:
+         return constant(ins.getOperand(0), ins.getOperand(1), position);
+      case LOADGLOBAL:
+         n.kind = Kind.GLOBAL;
+         n.constant = ins.getOperand(0);
+         n.reg = ins.getOperand(1);
+         break;
+      case LOADAI:
+      case CLOADAI:
+         n.kind = Kind.LOAD;
+         n.narrow = ins.getOpcode() == Opcode.CLOADAI;
+         n.left = args[0];
+         n.constant = ins.getOperand(1);
+         n.reg = ins.getOperand(2);
+         break;
+      case MOV:
+         n.kind = Kind.COPY;
+         n.left = args[0];
+         n.reg = ins.getOperand(1);
+         break;
+      case ADD:
+      case SUB:
+      case MULT:
+      case AND:
+      case OR:
+         n.kind = Kind.BINARY;
+         n.opcode = binaryOpcode(ins.getOpcode());
+         n.left = args[0];
+         n.right = args[1];
+         n.reg = ins.getOperand(2);
+         break;
+      case XORI:
+         n.kind = Kind.BINARY;
+         n.opcode = Opcode.XORQ;
+         n.left = args[0];
+         n.right = constant(ins.getOperand(1), null, position);
+         n.reg = ins.getOperand(2);
+         break;
+      default:
+         return null;
+      }
+
+      // a constant on the left of a commutative operation goes right
+      if (n.kind == Kind.BINARY && isCommutative(n.opcode)
+            && n.left.kind == Kind.CONSTANT) {
+         n.left = n.right;
+         n.right = args[0];
+      }
+
+      n.start = position;
+      n.loads = n.kind == Kind.LOAD || n.kind == Kind.GLOBAL;
+      n.arithmetic = n.kind == Kind.BINARY;
+      for (Node child : new Node[] {n.left, n.right}) {
+         if (child == null)
+            continue;
+         // constants read nothing, where they were loaded doesn't matter
+         if (child.kind != Kind.CONSTANT)
+            n.start = Math.min(n.start, child.start);
+         n.leaves.addAll(child.leaves);
+         n.loads |= child.loads;
+         n.arithmetic |= child.arithmetic;
+      }
+      estimate(n);
+      return n;
+   }
+
+   private static Opcode binaryOpcode(Opcode opcode) {
+      switch (opcode) {
+      case ADD: return Opcode.ADDQ;
+      case SUB: return Opcode.SUBQ;
+      case MULT: return Opcode.IMULQ;
+      case AND: return Opcode.ANDQ;
+      default: return Opcode.ORQ;
+      }
+   }
+
+   /* instructions to get the value of a new tree in a register */
+   private void estimate(Node n) {
+      switch (n.kind) {
+      case GLOBAL:
+         n.cost = 1;
+         break;
+      case LOAD:
+         n.cost = n.left.cost + 1;
+         break;
+      case COPY:
+         n.cost = n.left.cost;
+         break;
+      case BINARY:
+         n.cost = into(n.left) + source(n.right) + 1;
+         if (isCommutative(n.opcode)
+               && into(n.right) + source(n.left) + 1 < n.cost) {
+            n.cost = into(n.right) + source(n.left) + 1;
+            n.choice = Choice.RIGHT;
+         }
+         if (leaOffset(n) != null && n.left.cost + 1 < n.cost) {
+            n.cost = n.left.cost + 1;
+            n.choice = Choice.LEA;
+         }
+         break;
+      default:
+         break;
+      }
+   }
+
+   /* instructions to get the value in the register an operation works on */
+   private static int into(Node n) {
+      if (n.kind == Kind.LEAF)
+         return 1;
+      if (n.kind == Kind.COPY)
+         return into(n.left);
+      return n.cost;
+   }
+
+   /* instructions to get the value as the source operand of an operation */
+   private static int source(Node n) {
+      switch (n.kind) {
+      case LEAF:
+      case GLOBAL:
+         return 0;
+      case CONSTANT:
+         return isImmediate32(n.constant) ? 0 : 1;
+      case LOAD:
+         return n.narrow ? n.cost : n.left.cost;
+      case COPY:
+         return source(n.left);
+      default:
+         return n.cost;
+      }
+   }
+
+   /* the displacement of a leaq for a register plus or minus a constant */
+   private static Long leaOffset(Node n) {
+      if (n.right.kind != Kind.CONSTANT || !n.right.constant.isImmediate())
+         return null;
+
+      long offset = n.right.constant.getValue();
+      if (n.opcode == Opcode.SUBQ)
+         offset = -offset;
+      else if (n.opcode != Opcode.ADDQ)
+         return null;
+      return offset == (int)offset ? offset : null;
+   }
+
+   private static boolean isCommutative(Opcode opcode) {
+      return opcode != Opcode.SUBQ;
+   }
+
+   private static boolean isImmediate32(Operand op) {
+      return op.isImmediate() && op.getValue() == (int)op.getValue();
+   }
+
+   /* true if the tree is nothing but the register reg */
+   private static boolean isRegister(Node n, Operand reg) {
+      while (n.kind == Kind.COPY)
+         n = n.left;
+      return n.kind == Kind.LEAF && n.reg.equals(reg);
+   }
+
+   /* an x86 operand for the value of a tree in one of the forms */
+   private Operand operand(Node n, int forms) {
+      switch (n.kind) {
+      case LEAF:
+         return n.reg;
+      case COPY:
+         return operand(n.left, forms);
+      case CONSTANT:
+         if ((forms & IMMEDIATE) != 0 && isImmediate32(n.constant))
+            return n.constant;
+         break;
+      case GLOBAL:
+         if ((forms & MEMORY) != 0)
+            return n.constant;
+         break;
+      case LOAD:
+         if ((forms & MEMORY) != 0 && !n.narrow)
+            return field(n);
+         break;
+      default:
+         break;
+      }
+      return register(n);
+   }
+
+   private Operand register(Node n) {
+      if (n.kind == Kind.LEAF)
+         return n.reg;
+      if (n.kind == Kind.COPY)
+         return register(n.left);
+      compute(n, n.reg);
+      return n.reg;
+   }
+
+   private Operand field(Node load) {
+      return Operand.memory(load.constant.getValue(), register(load.left));
+   }
+
+   /* put the value of a tree in target */
+   private void compute(Node n, Operand target) {
+      switch (n.kind) {
+      case LEAF:
+         move(n.reg, target);
+         break;
+      case COPY:
+         compute(n.left, target);
+         break;
+      case CONSTANT:
+      case GLOBAL:
+         move(n.constant, target);
+         break;
+      case LOAD:
+         if (n.narrow)
+            asm.add(new Instruction(Opcode.MOVZBQ, field(n), target));
+         else
+            move(field(n), target);
+         break;
+      case BINARY:
+         binary(n, target);
+         break;
+      }
+   }
+
+   private void move(Operand source, Operand target) {
+      if (!source.equals(target))
+         asm.add(new Instruction(Opcode.MOVQ, source, target));
+   }
+
+   /* three address to two address, in place when target is an operand */
+   private void binary(Node n, Operand target) {
+      Node first = n.left, second = n.right;
+      boolean commutative = isCommutative(n.opcode);
+
+      if (n.choice == Choice.LEA && !isRegister(first, target)) {
+         asm.add(new Instruction(Opcode.LEAQ,
+                  Operand.memory(leaOffset(n), register(first)), target));
+         return;
+      }
+      if (n.choice == Choice.RIGHT
+            || (commutative && isRegister(second, target)
+               && !isRegister(first, target))) {
+         first = n.right;
+         second = n.left;
+      }
+
+      // the second operand can't read the target once the first is in it
+      if (second.leaves.contains(target) && !isRegister(first, target)) {
+         if (commutative && !first.leaves.contains(target)) {
+            Node swap = first;
+            first = second;
+            second = swap;
+         }
+         else {
+            Operand tmp = fun.getNextRegister();
+            binary(n, tmp);
+            move(tmp, target);
+            return;
+         }
+      }
+      compute(first, target);
+      asm.add(new Instruction(n.opcode, operand(second, ANY), target));
+   }
+
+   /* lower an instruction that is not folded into another */
+   private void lower(Instruction ins, Node args[], Node tree) {
+      Operand source, target;
+
+      switch (ins.getOpcode()) {
+      case LOADI:
+      case LOADGLOBAL:
+      case LOADAI:
+      case CLOADAI:
+      case MOV:
+      case ADD:
+      case SUB:
+      case MULT:
+      case AND:
+      case OR:
+      case XORI:
+         compute(tree, tree.reg);
+         break;
+
+      case LOADINARGUMENT:
+         source = getAddressOfArg((int)ins.getOperand(1).getValue());
+         asm.add(new Instruction(Opcode.MOVQ, source, ins.getOperand(2)));
+         break;
+
+      case LOADRET:
+         asm.add(new Instruction(Opcode.MOVQ, Operand.RAX, ins.getOperand(0)));
+         break;
+
+      case STOREOUTARGUMENT:
+         target = getAddressToStoreArg((int)ins.getOperand(1).getValue());
+         source = operand(args[0], target.isMemory() ? IMMEDIATE : ANY);
+         asm.add(new Instruction(Opcode.MOVQ, source, target));
+         break;
+
+      case CALL:
+         asm.add(call(ins.getOperand(0), (int)ins.getOperand(1).getValue()));
+         break;
+
+      case NEW:
+         handleMalloc(ins.getOperand(1), ins.getOperand(2));
+         break;
+
+      case NEWFRAME:
+         source = Operand.memory(getFrameObjectsOffset()
+               + ins.getOperand(1).getValue(), Operand.RSP);
+         asm.add(new Instruction(Opcode.LEAQ, source, ins.getOperand(2)));
+         break;
+
+      case DEL:
+         move(operand(args[0], ANY), Operand.RDI);
+         asm.add(call(Operand.label("free"), 1));
+         break;
+
+      case STOREGLOBAL:
+         asm.add(new Instruction(Opcode.MOVQ, operand(args[0], IMMEDIATE),
+                  ins.getOperand(1)));
+         break;
+
+      case STOREAI:
+      case CSTOREAI:
+         source = operand(args[0], IMMEDIATE);
+         target = Operand.memory(ins.getOperand(2).getValue(),
+               register(args[1]));
+         asm.add(new Instruction(ins.getOpcode() == Opcode.STOREAI
+                  ? Opcode.MOVQ : Opcode.MOVB, source, target));
+         break;
+
+      case MOVEQ:
+         conditionalMove(Opcode.CMOVE, ins, args[1]);
+         break;
+
+      case MOVGE:
+         conditionalMove(Opcode.CMOVGE, ins, args[1]);
+         break;
+
+      case MOVGT:
+         conditionalMove(Opcode.CMOVG, ins, args[1]);
+         break;
+
+      case MOVLE:
+         conditionalMove(Opcode.CMOVLE, ins, args[1]);
+         break;
+
+      case MOVLT:
+         conditionalMove(Opcode.CMOVL, ins, args[1]);
+         break;
+
+      case MOVNE:
+         conditionalMove(Opcode.CMOVNE, ins, args[1]);
+         break;
+
+      case COMP:
+         compare(args[0], args[1]);
+         break;
+
+      case CBREQ:
+         asm.add(new Instruction(Opcode.JE, ins.getOperand(1)));
+         break;
+
+      case CBRGE:
+         asm.add(new Instruction(Opcode.JGE, ins.getOperand(1)));
+         break;
+
+      case CBRGT:
+         asm.add(new Instruction(Opcode.JG, ins.getOperand(1)));
+         break;
+
+      case CBRLE:
+         asm.add(new Instruction(Opcode.JLE, ins.getOperand(1)));
+         break;
+
+      case CBRLT:
+         asm.add(new Instruction(Opcode.JL, ins.getOperand(1)));
+         break;
+
+      case CBRNE:
+         asm.add(new Instruction(Opcode.JNE, ins.getOperand(1)));
+         break;
+
+      case JUMPI:
+         asm.add(new Instruction(Opcode.JMP, ins.getOperand(0)));
+         break;
+
+      case DIV:
+         // the divisor first, its tree may need the registers idivq uses
+         source = operand(args[1], MEMORY);
+         move(operand(args[0], ANY), Operand.RAX);
+         asm.add(new Instruction(Opcode.MOVQ, Operand.RAX, Operand.RDX));
+         asm.add(new Instruction(Opcode.SARQ, Operand.immediate(63),
+                  Operand.RDX));
+         asm.add(new Instruction(Opcode.IDIVQ, source));
+         asm.add(new Instruction(Opcode.MOVQ, Operand.RAX,
+                  ins.getOperand(2)));
+         break;
+
+      case RET:
+         /* X86 expands this into the function epilogue */
+         Instruction ret = new Instruction(Opcode.RET);
+         if (fun.returnsValue())
+            ret.addImplicitSource(Operand.RAX);
+         asm.add(ret);
+         break;
+
+      case STORERET:
+         move(operand(args[0], ANY), Operand.RAX);
+         break;
+
+      case TAILCALL:
+         /* X86 expands this into the function epilogue and a jmp */
+         Instruction jump = new Instruction(Opcode.TAILCALL,
+               ins.getOperand(0));
+         for (int i = 0; i < ins.getOperand(1).getValue(); i++)
+            jump.addImplicitSource(argRegisters[i]);
+         asm.add(jump);
+         break;
+
+      case PRINT:
+         move(operand(args[0], ANY), Operand.RDI);
+         asm.add(runtimeCall("__print", 1));
+         break;
+
+      case PRINTLN:
+         move(operand(args[0], ANY), Operand.RDI);
+         asm.add(runtimeCall("__println", 1));
+         break;
+
+      case READ:
+         asm.add(runtimeCall("__read", 0));
+         asm.add(new Instruction(Opcode.MOVQ, Operand.RAX, ins.getOperand(0)));
+         break;
+
+      default:
+         throw new IllegalStateException("unknown op: " + ins.getOpcode());
+      }
+   }
+
+   /*
+      comp a, b is cmpq b, a.  b can be an immediate or in memory, a can
+      be in memory when b isn't
+   */
+   private void compare(Node a, Node b) {
+      Operand right = operand(b, ANY);
+      Operand left = operand(a, right.isMemory() ? 0 : MEMORY);
+
+      asm.add(new Instruction(Opcode.CMPQ, right, left));
+   }
+
+   /* the print and read routines leave most registers alone */
+   private Instruction runtimeCall(String name, int argCount) {
+      Instruction ins = new Instruction(Opcode.CALL, Operand.label(name));
+
+      for (int i = 0; i < argCount; i++)
+         ins.addImplicitSource(argRegisters[i]);
+      for (Operand reg : BufferedIO.clobbered)
+         ins.addImplicitTarget(reg);
+      return ins;
+   }
+
+   // used to store out arguments
+   private Operand getAddressToStoreArg(int index) {
+      if (index < argRegisters.length)
+         return argRegisters[index];
+
+      // subtract 6 to get index on the stack
+      index -= 6;
+      return Operand.memory(index * 8, Operand.RSP);
+   }
+
+   /* structs kept in the frame start after the outgoing arguments */
+   private int getFrameObjectsOffset() {
+      return Math.max(fun.getMaxArgCount() - argRegisters.length, 0) * 8;
+   }
+
+   // used to load in arguments
+   private Operand getAddressOfArg(int index) {
+      if (index < argRegisters.length)
+         return argRegisters[index];
+
+      // subtrack 4 to get the correct index on the stack for arg[6] and above
+      index -= 4;
+      return Operand.memory(index * 8, Operand.RBP);
+   }
+
+   /* Create instructions for the *new* operator */
+   private void handleMalloc(Operand size, Operand target) {
+      asm.add(new Instruction(Opcode.MOVQ, size, Operand.RDI));
+      asm.add(call(Operand.label("malloc"), 1));
+      asm.add(new Instruction(Opcode.MOVQ, Operand.RAX, target));
+   }
+
+   /* call that passes argCount arguments and clobbers the scratch registers */
+   private Instruction call(Operand target, int argCount) {
+      Instruction ins = new Instruction(Opcode.CALL, target);
+
+      for (int i = 0; i < argCount && i < argRegisters.length; i++)
+         ins.addImplicitSource(argRegisters[i]);
+      for (Operand reg : Instruction.callerSavedRegisters)
+         ins.addImplicitTarget(reg);
+      return ins;
+   }
+
+   /* cmov can't take an immediate so a constant goes through a temp */
+   private void conditionalMove(Opcode opcode, Instruction ins, Node value) {
+      Operand source;
+
+      if (value != null) {
+         source = operand(value, MEMORY);
+      }
+      else {
+         source = fun.getNextRegister();
+         asm.add(new Instruction(Opcode.MOVQ, ins.getOperand(1), source));
+      }
+      asm.add(new Instruction(opcode, source, ins.getOperand(2)));
+   }
+}
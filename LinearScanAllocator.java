@@ -0,0 +1,634 @@
+import java.util.*;
+
+/*
+   Linear scan register allocator (Wimmer and Moessenboeck) for fast
+   compiles.  Live intervals with lifetime holes are built over the blocks
+   in reverse postorder.  When no register is free for a whole interval it
+   is split, the piece without uses lives in a stack slot and gets a register
+   again right before its next use.  Moves between the pieces are inserted
+   where a split falls inside a block and on the edges whose ends disagree.
+
+   Instruction k sits at position 4k.  Its sources are read at 4k and its
+   results written at 4k, except for register moves whose result is
+   written at 4k + 1 so source and target may share a register.
+*/
+public class LinearScanAllocator extends RegisterAllocator {
+   private static final int MAX = Integer.MAX_VALUE;
+
+   /* live interval of a register, splitting adds children to the parent */
+   private static class Interval {
+      Operand register;
+      boolean fixed;
+      List<int[]> ranges = new ArrayList<int[]>();  /* [from, to) */
+      List<Integer> uses = new ArrayList<Integer>();
+      Operand location;           /* physical register, null on the stack */
+      Interval parent = this;
+      List<Interval> children = new ArrayList<Interval>();
+      Operand hint;               /* register this one was copied from */
+      int slot;
+
+      Interval(Operand register) {
+         this.register = register;
+      }
+
+      int start() {
+         return ranges.get(0)[0];
+      }
+
+      int end() {
+         return ranges.get(ranges.size() - 1)[1];
+      }
+
+      boolean covers(int pos) {
+         for (int[] r : ranges) {
+            if (pos < r[0])
+               return false;
+            if (pos < r[1])
+               return true;
+         }
+         return false;
+      }
+
+      /* first position both intervals are live at */
+      int nextIntersection(Interval other) {
+         int i = 0, j = 0;
+
+         while (i < ranges.size() && j < other.ranges.size()) {
+            int[] a = ranges.get(i), b = other.ranges.get(j);
+            if (a[1] <= b[0])
+               i++;
+            else if (b[1] <= a[0])
+               j++;
+            else
+               return Math.max(a[0], b[0]);
+         }
+         return MAX;
+      }
+
+      int nextUseAfter(int pos) {
+         for (int use : uses) {
+            if (use >= pos)
+               return use;
+         }
+         return MAX;
+      }
+
+      /* during the backward build ranges and uses are kept reversed */
+      void addRange(int from, int to) {
+         if (from >= to)
+            return;
+         if (!ranges.isEmpty()) {
+            int[] first = ranges.get(ranges.size() - 1);
+            if (to >= first[0]) {
+               first[0] = Math.min(first[0], from);
+               first[1] = Math.max(first[1], to);
+               return;
+            }
+         }
+         ranges.add(new int[] {from, to});
+      }
+
+      void setFrom(int pos) {
+         if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[0] <= pos)
+            ranges.get(ranges.size() - 1)[0] = pos;
+         else
+            ranges.add(new int[] {pos, pos + 2});
+      }
+
+      void addUse(int pos) {
+         if (uses.isEmpty() || uses.get(uses.size() - 1) != pos)
+            uses.add(pos);
+      }
+
+      void finishBuild() {
+         Collections.reverse(ranges);
+         Collections.reverse(uses);
+      }
+
+      /* move everything from pos on into a new child */
+      Interval split(int pos) {
+         Interval child = new Interval(register);
+         List<int[]> kept = new ArrayList<int[]>();
+         List<Integer> keptUses = new ArrayList<Integer>();
+
+         for (int[] r : ranges) {
+            if (r[1] <= pos) {
+               kept.add(r);
+            }
+            else if (r[0] < pos) {
+               kept.add(new int[] {r[0], pos});
+               child.ranges.add(new int[] {pos, r[1]});
+            }
+            else {
+               child.ranges.add(r);
+            }
+         }
+         for (int use : uses) {
+            if (use < pos)
+               keptUses.add(use);
+            else
+               child.uses.add(use);
+         }
+         ranges = kept;
+         uses = keptUses;
+
+         child.parent = parent;
+         child.hint = hint;
+         parent.children.add(child);
+         return child;
+      }
+
+      /* the piece of the register that is live at pos */
+      Interval childAt(int pos) {
+         if (covers(pos))
+            return this;
+         for (Interval child : children) {
+            if (child.covers(pos))
+               return child;
+         }
+         return null;
+      }
+   }
+
+   private Map<Operand, Interval> intervals =
+      new LinkedHashMap<Operand, Interval>();
+   private int blockFrom[], blockTo[];   /* by block id */
+
+   /* blocks made for critical edges, placed after the others */
+   private List<BasicBlock> edgeBlocks;
+   private Set<Integer> blockStarts = new HashSet<Integer>();
+
+   private PriorityQueue<Interval> unhandled;
+   private List<Interval> active = new ArrayList<Interval>();
+   private List<Interval> inactive = new ArrayList<Interval>();
+   private int intervalCount;
+   private Map<Interval, Integer> order = new HashMap<Interval, Integer>();
+
+   /* parallel moves to run right before the instruction at a position */
+   private Map<Integer, List<Operand[]>> splitMoves =
+      new HashMap<Integer, List<Operand[]>>();
+
+   /* registers in the order they are handed out */
+   private List<Operand> registers = new ArrayList<Operand>();
+
+   public LinearScanAllocator(FlowGraph graph) {
+      super(graph);
+
+      registers.addAll(Arrays.asList(Instruction.callerSavedRegisters));
+      registers.addAll(Arrays.asList(Instruction.calleeSavedRegisters));
+   }
+
+   public void allocate() {
+      computeLiveness();
+      numberInstructions();
+      buildIntervals();
+      walkIntervals();
+      insertSplitMoves();
+      resolveDataFlow();
+      removeSelfMoves();
+   }
+
+   /* every block gets at least one position so empty blocks have a place */
+   private void numberInstructions() {
+      int index = 0;
+
+      blockFrom = new int[graph.getBlockCount()];
+      blockTo = new int[graph.getBlockCount()];
+      for (BasicBlock b : blocks) {
+         blockFrom[b.getId()] = 4 * index;
+         blockStarts.add(4 * index);
+         index += Math.max(1, b.getInstructions().size());
+         blockTo[b.getId()] = 4 * index;
+      }
+   }
+
+   private Interval getInterval(Operand reg) {
+      Interval it = intervals.get(reg);
+
+      if (it == null) {
+         it = new Interval(reg);
+         if (reg.isPhysical()) {
+            it.fixed = true;
+            it.location = reg;
+         }
+         intervals.put(reg, it);
+      }
+      return it;
+   }
+
+   private void buildIntervals() {
+      for (int i = blocks.size() - 1; i >= 0; i--) {
+         BasicBlock b = blocks.get(i);
+         int from = blockFrom[b.getId()], to = blockTo[b.getId()];
+         List<Instruction> instructions = b.getInstructions();
+         ListIterator<Instruction> it =
+            instructions.listIterator(instructions.size());
+         int pos = from + 4 * (instructions.size() - 1);
+
+         BitSet liveOut = liveness.getLiveOut(b);
+         for (int r = liveOut.nextSetBit(0); r >= 0;
+               r = liveOut.nextSetBit(r + 1))
+            getInterval(liveness.getRegister(r)).addRange(from, to);
+
+         for (; it.hasPrevious(); pos -= 4) {
+            Instruction ins = it.previous();
+            int defPos = ins.isMove() ? pos + 1 : pos;
+
+            for (Operand reg : ins.getTargets()) {
+               Interval interval = getInterval(reg);
+               interval.setFrom(defPos);
+               interval.addUse(defPos);
+               if (ins.isMove())
+                  interval.hint = ins.getOperand(0);
+            }
+            for (Operand reg : ins.getSources()) {
+               Interval interval = getInterval(reg);
+               interval.addRange(from, ins.isMove() ? pos + 1 : pos + 2);
+               interval.addUse(pos);
+            }
+         }
+      }
+
+      unhandled = new PriorityQueue<Interval>(11, new Comparator<Interval>() {
+         public int compare(Interval a, Interval b) {
+            if (a.start() != b.start())
+               return a.start() < b.start() ? -1 : 1;
+            return order.get(a) - order.get(b);
+         }
+      });
+      for (Interval it : intervals.values()) {
+         it.finishBuild();
+         if (it.ranges.isEmpty())
+            continue;
+         if (it.fixed)
+            inactive.add(it);
+         else
+            addUnhandled(it);
+      }
+   }
+
+   private void addUnhandled(Interval it) {
+      order.put(it, intervalCount++);
+      unhandled.add(it);
+   }
+
+   private void walkIntervals() {
+      while (!unhandled.isEmpty()) {
+         Interval current = unhandled.poll();
+         int pos = current.start();
+
+         Iterator<Interval> iter = active.iterator();
+         List<Interval> moved = new ArrayList<Interval>();
+         while (iter.hasNext()) {
+            Interval it = iter.next();
+            if (it.end() <= pos) {
+               iter.remove();
+            }
+            else if (!it.covers(pos)) {
+               iter.remove();
+               moved.add(it);
+            }
+         }
+         iter = inactive.iterator();
+         while (iter.hasNext()) {
+            Interval it = iter.next();
+            if (it.end() <= pos) {
+               iter.remove();
+            }
+            else if (it.covers(pos)) {
+               iter.remove();
+               active.add(it);
+            }
+         }
+         inactive.addAll(moved);
+
+         if (!tryAllocateFreeRegister(current))
+            allocateBlockedRegister(current);
+         if (current.location != null)
+            active.add(current);
+      }
+   }
+
+   /* moves can only go between instructions */
+   private static int splitPosition(int pos) {
+      return pos == MAX ? MAX : pos & ~3;
+   }
+
+   private boolean tryAllocateFreeRegister(Interval current) {
+      int freeUntil[] = new int[Operand.PHYSICAL_COUNT];
+
+      Arrays.fill(freeUntil, MAX);
+      for (Interval it : active)
+         freeUntil[it.location.getNumber()] = 0;
+      for (Interval it : inactive) {
+         int pos = it.nextIntersection(current);
+         int r = it.location.getNumber();
+         if (pos < freeUntil[r])
+            freeUntil[r] = pos;
+      }
+
+      Operand reg = null;
+      int best = 0;
+      for (Operand r : registers) {
+         int free = splitPosition(freeUntil[r.getNumber()]);
+         if (reg == null || free > best) {
+            reg = r;
+            best = free;
+         }
+      }
+
+      // reuse the register of the copy source when it lasts long enough
+      Operand hint = getHintRegister(current);
+      if (hint != null && freeUntil[hint.getNumber()] >= current.end()) {
+         reg = hint;
+         best = MAX;
+      }
+
+      if (best <= current.start())
+         return false;
+
+      current.location = reg;
+      if (best < current.end())
+         addUnhandled(current.split(best));
+      return true;
+   }
+
+   private Operand getHintRegister(Interval current) {
+      if (current.hint == null)
+         return null;
+
+      Interval source = intervals.get(current.hint);
+      Interval piece = source == null ? null :
+         source.childAt(current.start() - 1);
+      return piece == null ? null : piece.location;
+   }
+
+   private void allocateBlockedRegister(Interval current) {
+      int nextUse[] = new int[Operand.PHYSICAL_COUNT];
+      int blockPos[] = new int[Operand.PHYSICAL_COUNT];
+      int start = current.start();
+
+      Arrays.fill(nextUse, MAX);
+      Arrays.fill(blockPos, MAX);
+      for (Interval it : active) {
+         int r = it.location.getNumber();
+         if (it.fixed) {
+            nextUse[r] = 0;
+            blockPos[r] = 0;
+         }
+         else {
+            nextUse[r] = Math.min(nextUse[r], it.nextUseAfter(start));
+         }
+      }
+      for (Interval it : inactive) {
+         int pos = it.nextIntersection(current);
+         int r = it.location.getNumber();
+         if (pos == MAX)
+            continue;
+         if (it.fixed) {
+            pos = splitPosition(pos);
+            blockPos[r] = Math.min(blockPos[r], pos);
+            nextUse[r] = Math.min(nextUse[r], pos);
+         }
+         else {
+            nextUse[r] = Math.min(nextUse[r], it.nextUseAfter(start));
+         }
+      }
+
+      Operand reg = null;
+      for (Operand r : registers) {
+         if (blockPos[r.getNumber()] <= start)
+            continue;
+         if (reg == null || nextUse[r.getNumber()] > nextUse[reg.getNumber()])
+            reg = r;
+      }
+
+      int firstUse = current.nextUseAfter(start);
+      if (reg == null || firstUse > nextUse[reg.getNumber()]) {
+         // everyone else needs their register sooner, spill current
+         spill(current);
+         return;
+      }
+
+      current.location = reg;
+      if (blockPos[reg.getNumber()] < current.end())
+         addUnhandled(current.split(blockPos[reg.getNumber()]));
+
+      // whoever held the register gives it up from here on
+      List<Interval> evicted = new ArrayList<Interval>();
+      for (Interval it : active) {
+         if (!it.fixed && it.location.equals(reg))
+            evicted.add(it);
+      }
+      for (Interval it : inactive) {
+         if (!it.fixed && it.location.equals(reg)
+               && it.nextIntersection(current) != MAX)
+            evicted.add(it);
+      }
+      active.removeAll(evicted);
+      inactive.removeAll(evicted);
+      for (Interval it : evicted)
+         splitAndSpill(it, splitPosition(start));
+   }
+
+   private void splitAndSpill(Interval it, int pos) {
+      Interval child = it.start() < pos ? it.split(pos) : it;
+
+      if (it != child && (it.ranges.isEmpty() || child.ranges.isEmpty()))
+         throw new RuntimeException("bad split of " + it.register);
+
+      child.location = null;
+      if (splitPosition(child.nextUseAfter(child.start())) <= child.start())
+         addUnhandled(child);
+      else
+         spill(child);
+   }
+
+   /* put an interval on the stack until right before its next use */
+   private void spill(Interval it) {
+      int use = splitPosition(it.nextUseAfter(it.start()));
+
+      if (use <= it.start())
+         throw new RuntimeException("can't spill " + it.register);
+      if (it.parent.slot == 0)
+         it.parent.slot = ++spillSlots;
+      it.location = null;
+      if (use != MAX)
+         addUnhandled(it.split(use));
+   }
+
+   private Operand locationOf(Interval it) {
+      return it.location != null ? it.location : getSlot(it.parent.slot);
+   }
+
+   /* connect the pieces of a register that was split inside a block */
+   private void insertSplitMoves() {
+      for (Interval parent : intervals.values()) {
+         if (parent.fixed || parent.children.isEmpty())
+            continue;
+
+         List<Interval> pieces = new ArrayList<Interval>(parent.children);
+         pieces.add(parent);
+         Collections.sort(pieces, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+               return a.start() - b.start();
+            }
+         });
+         for (int i = 1; i < pieces.size(); i++) {
+            Interval prev = pieces.get(i - 1), next = pieces.get(i);
+            int pos = next.start();
+
+            if (prev.end() != pos || blockStarts.contains(pos))
+               continue;
+            addMove(splitMoves, pos, locationOf(prev), locationOf(next));
+         }
+      }
+
+      // rename registers now that every position has a location
+      for (BasicBlock b : blocks) {
+         List<Instruction> rewritten = new LinkedList<Instruction>();
+         int pos = blockFrom[b.getId()];
+
+         for (Instruction ins : b.getInstructions()) {
+            List<Operand[]> moves = splitMoves.get(pos);
+            if (moves != null)
+               rewritten.addAll(sequentialize(moves));
+
+            int defPos = ins.isMove() ? pos + 1 : pos;
+            for (Operand reg : ins.getTargets())
+               rename(ins, reg, defPos);
+            for (Operand reg : ins.getSources())
+               rename(ins, reg, pos);
+            rewritten.add(ins);
+            pos += 4;
+         }
+         b.setInstructions(rewritten);
+      }
+   }
+
+   private void rename(Instruction ins, Operand reg, int pos) {
+      if (!reg.isVirtual())
+         return;
+
+      Interval piece = intervals.get(reg).childAt(pos);
+      ins.replaceOperand(reg, piece.location);
+   }
+
+   private void addMove(Map<Integer, List<Operand[]>> moves, int pos,
+         Operand from, Operand to) {
+      if (from.equals(to))
+         return;
+      if (!moves.containsKey(pos))
+         moves.put(pos, new ArrayList<Operand[]>());
+      moves.get(pos).add(new Operand[] {from, to});
+   }
+
+   /* order a parallel move, cycles only go through registers */
+   private List<Instruction> sequentialize(List<Operand[]> parallel) {
+      List<Instruction> result = new LinkedList<Instruction>();
+      List<Operand[]> pending = new LinkedList<Operand[]>();
+
+      for (Operand[] move : parallel)
+         pending.add(new Operand[] {move[0], move[1]});
+
+      while (!pending.isEmpty()) {
+         Operand[] ready = null;
+         for (Operand[] move : pending) {
+            boolean blocked = false;
+            for (Operand[] other : pending) {
+               if (other != move && other[0].equals(move[1]))
+                  blocked = true;
+            }
+            if (!blocked) {
+               ready = move;
+               break;
+            }
+         }
+
+         if (ready != null) {
+            pending.remove(ready);
+            result.add(new Instruction(Opcode.MOVQ, ready[0], ready[1]));
+            continue;
+         }
+
+         // break the cycle, the old target value now lives in the source
+         Operand[] move = pending.remove(0);
+         result.add(new Instruction(Opcode.XCHGQ, move[0], move[1]));
+         for (Operand[] other : pending) {
+            if (other[0].equals(move[1]))
+               other[0] = move[0];
+         }
+      }
+      return result;
+   }
+
+   /* fix up the edges where a register isn't in the same place on both ends */
+   private void resolveDataFlow() {
+      List<BasicBlock> original = blocks;
+
+      edgeBlocks = new ArrayList<BasicBlock>();
+      for (BasicBlock succ : original) {
+         BitSet liveIn = liveness.getLiveIn(succ);
+         int preds[] = graph.getPredecessors(succ.getId());
+
+         for (int p : preds) {
+            BasicBlock pred = graph.getBlock(p);
+            List<Operand[]> moves = new ArrayList<Operand[]>();
+            int end = blockTo[p] - 1, start = blockFrom[succ.getId()];
+
+            for (int r = liveIn.nextSetBit(0); r >= 0;
+                  r = liveIn.nextSetBit(r + 1)) {
+               Operand reg = liveness.getRegister(r);
+               if (!reg.isVirtual())
+                  continue;
+               Interval it = intervals.get(reg);
+               Operand from = locationOf(it.childAt(end));
+               Operand to = locationOf(it.childAt(start));
+               if (!from.equals(to))
+                  moves.add(new Operand[] {from, to});
+            }
+            if (!moves.isEmpty())
+               insertEdgeMoves(pred, succ, preds.length,
+                     sequentialize(moves));
+         }
+      }
+
+      blocks = new ArrayList<BasicBlock>(original.size() + edgeBlocks.size());
+      blocks.addAll(original);
+      blocks.addAll(edgeBlocks);
+   }
+
+   private void insertEdgeMoves(BasicBlock pred, BasicBlock succ,
+         int predCount, List<Instruction> moves) {
+      if (pred.getOutgoing().size() == 1) {
+         List<Instruction> instructions = pred.getInstructions();
+         int index = instructions.size();
+         if (index > 0
+               && instructions.get(index - 1).getOpcode() == Opcode.JMP)
+            index--;
+         instructions.addAll(index, moves);
+      }
+      else if (predCount == 1) {
+         succ.getInstructions().addAll(0, moves);
+      }
+      else {
+         // critical edge, give the moves a block of their own
+         BasicBlock edge = fun.createBlock(pred + "_" + succ);
+         List<BasicBlock> outgoing = pred.getOutgoing();
+         int index = outgoing.indexOf(succ);
+
+         outgoing.set(index, edge);
+         edge.addIncoming(pred);
+         edge.addOutgoing(succ);
+         succ.getIncoming().set(succ.getIncoming().indexOf(pred), edge);
+         edge.setInstructions(new LinkedList<Instruction>(moves));
+
+         for (Instruction ins : pred.getInstructions()) {
+            if (ins.getOpcode().isJump())
+               ins.replaceOperand(Operand.label(succ.getLabel()),
+                     Operand.label(edge.getLabel()));
+         }
+         edgeBlocks.add(edge);
+      }
+   }
+}
@@ -0,0 +1,143 @@
+import java.util.*;
+
+/*
+   Live register analysis for the x86 of one function.  Only registers
+   read before they are written in some block can be live across blocks,
+   those are numbered densely so gen, kill, live in and live out are
+   short bit vectors.  The equations are solved with a worklist that
+   visits blocks in reverse postorder of the reversed graph (postorder
+   of the function).
+*/
+public class Liveness {
+   private FlowGraph graph;
+
+   /* dense numbering of the registers that are live across blocks */
+   private List<Operand> registers = new ArrayList<Operand>();
+
+   /* indexed by block id */
+   private BitSet[] gen, kill, liveIn, liveOut;
+
+   public Liveness(FlowGraph graph) {
+      this.graph = graph;
+
+      computeGenAndKill();
+      solve();
+   }
+
+   public Operand getRegister(int id) {
+      return registers.get(id);
+   }
+
+   public int getRegisterCount() {
+      return registers.size();
+   }
+
+   public BitSet getLiveIn(BasicBlock b) {
+      return liveIn[b.getId()];
+   }
+
+   public BitSet getLiveOut(BasicBlock b) {
+      return liveOut[b.getId()];
+   }
+
+   /* the registers of a bit vector */
+   public Set<Operand> getRegisters(BitSet regs) {
+      Set<Operand> result = new HashSet<Operand>();
+
+      for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1))
+         result.add(registers.get(r));
+      return result;
+   }
+
+   /*
+      gen and kill are first built over the register numbers, then
+      renumbered so the registers that are never in a gen set are dropped
+   */
+   private void computeGenAndKill() {
+      int n = graph.getBlockCount();
+      BitSet global = new BitSet();
+
+      gen = new BitSet[n];
+      kill = new BitSet[n];
+      for (int i : graph.getReversePostorder()) {
+         gen[i] = new BitSet();
+         kill[i] = new BitSet();
+
+         for (Instruction ins : graph.getBlock(i).getInstructions()) {
+            for (Operand source : ins.getSources()) {
+               int r = source.getNumber();
+               if (!kill[i].get(r))
+                  gen[i].set(r);
+            }
+            for (Operand target : ins.getTargets())
+               kill[i].set(target.getNumber());
+         }
+         global.or(gen[i]);
+      }
+
+      int renumber[] = new int[global.length()];
+      for (int r = global.nextSetBit(0); r >= 0; r = global.nextSetBit(r + 1)) {
+         renumber[r] = registers.size();
+         registers.add(Operand.registerNumber(r));
+      }
+      for (int i : graph.getReversePostorder()) {
+         gen[i] = compact(gen[i], global, renumber);
+         kill[i] = compact(kill[i], global, renumber);
+      }
+   }
+
+   private BitSet compact(BitSet regs, BitSet global, int renumber[]) {
+      BitSet result = new BitSet(registers.size());
+
+      for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1)) {
+         if (global.get(r))
+            result.set(renumber[r]);
+      }
+      return result;
+   }
+
+   /*
+      live out is recomputed from scratch on every visit and live in is
+      compared with equals, so a set that changes in either direction
+      puts the predecessors back on the worklist
+   */
+   private void solve() {
+      int n = graph.size(), size = getRegisterCount();
+      int order[] = graph.getReversePostorder();
+      BitSet pending = new BitSet(n);
+      BitSet scratch = new BitSet(size);
+
+      liveIn = new BitSet[graph.getBlockCount()];
+      liveOut = new BitSet[graph.getBlockCount()];
+      for (int i : order) {
+         liveIn[i] = new BitSet(size);
+         liveOut[i] = new BitSet(size);
+      }
+      pending.set(0, n);
+
+      /* pending holds rpo numbers, the highest is the earliest in postorder */
+      for (int k = pending.previousSetBit(n - 1); k >= 0;
+            k = pending.previousSetBit(n - 1)) {
+         int i = order[k];
+         pending.clear(k);
+
+         BitSet out = liveOut[i];
+         out.clear();
+         for (int s : graph.getSuccessors(i))
+            out.or(liveIn[s]);
+
+         scratch.clear();
+         scratch.or(out);
+         scratch.andNot(kill[i]);
+         scratch.or(gen[i]);
+
+         if (!scratch.equals(liveIn[i])) {
+            BitSet old = liveIn[i];
+            liveIn[i] = scratch;
+            scratch = old;
+            for (int p : graph.getPredecessors(i))
+               pending.set(graph.getRpoNumber(p));
+         }
+      }
+   }
+}
@@ -52,10 +52,51 @@ tokens
 @members
 {
    private boolean _errors = false;
+   private List<String> _messages = null;
    public boolean hasErrors()
    {
       return _errors;
    }
+
+   /* a parser is used again for the next file */
+   public void reset()
+   {
+      super.reset();
+      _errors = false;
+   }
+
+   /* errors are kept in messages instead of printed, when it is set */
+   public void setMessages(List<String> messages)
+   {
+      _messages = messages;
+   }
+
+   public void emitErrorMessage(String msg)
+   {
+      if (_messages == null)
+         super.emitErrorMessage(msg);
+      else
+         _messages.add(msg);
+   }
+}
+
+@lexer::members
+{
+   private List<String> _messages = null;
+
+   /* errors are kept in messages instead of printed, when it is set */
+   public void setMessages(List<String> messages)
+   {
+      _messages = messages;
+   }
+
+   public void emitErrorMessage(String msg)
+   {
+      if (_messages == null)
+         super.emitErrorMessage(msg);
+      else
+         _messages.add(msg);
+   }
 }
 
 @rulecatch
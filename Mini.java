@@ -14,47 +14,211 @@ public class Mini
    public static void main(String[] args)
    {
       parseParameters(args);
+      if (_serverPort != 0)
+      {
+         try
+         {
+            new MiniServer(_serverPort, newCompiler(_threads),
+                  _threads).run();
+         }
+         catch (IOException e)
+         {
+            error("cannot listen on port " + _serverPort + ": "
+                  + e.getMessage());
+         }
+      }
+      if (_inputFiles.size() > 1)
+         System.exit(compileAll() ? 0 : 1);
 
-      CommonTokenStream tokens = new CommonTokenStream(createLexer());
-      MiniParser parser = new MiniParser(tokens);
-      CommonTree tree = parse(parser);
+      String inputFile = _inputFiles.isEmpty() ? null : _inputFiles.get(0);
+      Compiler compiler = newCompiler(_threads);
+      try
+      {
+         if (_displayAST)
+            displayAST(compiler, inputFile);
+         else if (!compileOne(compiler, inputFile))
+            System.exit(1);
+      }
+      catch (CompileError e)
+      {
+         error(e.getMessage());
+      }
+      compiler.shutdown();
+   }
+
+   /* a compiler with the options given, the functions of a file on threads */
+   private static Compiler newCompiler(int threads)
+   {
+      Compiler.Options options = new Compiler.Options.Builder()
+         .optimize(_optimize)
+         .inline(_inline)
+         .linearScan(_linearScan)
+         .pooled(_pool)
+         .threads(threads)
+         .cache(_cache == null ? null : new File(_cache))
+         .cacheSize(_cacheSize)
+         .build();
 
-      if (_displayAST && tree != null)
+      try
+      {
+         return new Compiler(options);
+      }
+      catch (IllegalArgumentException e)
+      {
+         error(e.getMessage());
+         return null;
+      }
+   }
+
+   private static void displayAST(Compiler compiler, String inputFile)
+   {
+      List<String> diagnostics = new ArrayList<String>();
+      CommonTree tree = compiler.parse(createInput(inputFile), diagnostics);
+
+      for (String diagnostic : diagnostics)
+         System.err.println(diagnostic);
+      if (tree != null)
       {
          DOTTreeGenerator gen = new DOTTreeGenerator();
          StringTemplate st = gen.toDOT(tree);
          System.out.println(st);
       }
-      else if (!parser.hasErrors())
+   }
+
+   /* compiles the file given, with the timings and stats asked for */
+   private static boolean compileOne(Compiler compiler, String inputFile)
+   {
+      Compiler.Result result = compile(compiler, inputFile, false);
+      Map<String, Long> timings = result.getTimings();
+
+      for (String diagnostic : result.getDiagnostics())
+         System.err.println(diagnostic);
+      if (_time && timings.containsKey(Compiler.BACK_END))
       {
-         //JsonValue json = translate(tree, tokens);
-         //System.out.println(json);
+         printTime("front end", timings.get(Compiler.FRONT_END));
+         printTime("iloc", timings.get(Compiler.ILOC));
+         printTime("  optimize", timings.get(Compiler.OPTIMIZE));
+         printTime("x86", timings.get(Compiler.BACK_END));
+         printTime("  allocation", timings.get(Compiler.ALLOCATION));
+         printTime("    liveness", timings.get(Compiler.LIVENESS));
+         if (_cache != null)
+            System.err.println("cached functions: "
+                  + result.getCacheHits());
+      }
+      if (_peepholeStats && result.getPeepholeReport() != null)
+         System.err.print(result.getPeepholeReport());
+      return result.succeeded();
+   }
+
+   /*
+      compiles one file and writes what it gives: the iloc to stdout, or
+      next to the file in a batch, and the assembly next to the file
+   */
+   private static Compiler.Result compile(Compiler compiler,
+         String inputFile, boolean batch)
+   {
+      Compiler.Result result = compiler.compile(inputFile,
+            createInput(inputFile));
+
+      if (!result.succeeded())
+         return result;
+      if (!batch)
+         System.out.println(result.getIloc());
+      if ((_dumpIL || batch) && inputFile != null)
+         writeFile(result.getIloc(),
+               MiniProtocol.outputName(inputFile, ".il"));
+      if (result.getAsm() != null)
+         writeFile(result.getAsm(), MiniProtocol.outputName(inputFile, ".s"));
+      return result;
+   }
+
+   /*
+      Compiles every input file, as many at once as there are threads.
+      The functions of a file are compiled one after the other, the files
+      keep the threads busy.  A file that fails doesn't stop the others,
+      what went wrong is reported by file once all are done.  True if
+      every file compiled.
+   */
+   private static boolean compileAll()
+   {
+      final Compiler compiler = newCompiler(1);
+      FunctionPool files = new FunctionPool(_threads);
+      long start = System.nanoTime();
+
+      List<List<String>> results = files.map(_inputFiles,
+            new FunctionPool.Task<String, List<String>>() {
+               public List<String> run(String inputFile) {
+                  List<String> messages = new ArrayList<String>();
+                  try
+                  {
+                     Compiler.Result result = compile(compiler, inputFile,
+                           true);
+                     messages.addAll(result.getDiagnostics());
+                     if (!result.succeeded())
+                        messages.add(FAILED);
+                  }
+                  catch (CompileError e)
+                  {
+                     messages.add(e.getMessage());
+                     messages.add(FAILED);
+                  }
+                  return messages;
+               }
+            });
+      files.shutdown();
+      compiler.shutdown();
 
-         typeCheck(tree, tokens);
-         ControlFlowGraph graph = generateControlFlowGraph(tree, tokens);
-         List<BasicBlock> listOfBlocks = graph.getFunBlocks();
-         String iloc = getIloc(listOfBlocks);
-         System.out.println(iloc);
-         if (_dumpIL) {
-             writeFile(iloc, _inputFile.replace(".mini", ".il"));
+      int failed = 0;
+      for (int i = 0; i < results.size(); i++)
+      {
+         List<String> messages = results.get(i);
+         for (String message : messages)
+         {
+            if (message != FAILED)
+               System.err.println(_inputFiles.get(i) + ": " + message);
          }
-         /*
-         List<BasicBlock> exitBlocks = graph.getExitBlocks();
-         X86 x86 = new X86(_inputFile, listOfBlocks, exitBlocks,
-                        graph.getGlobals());
-         String asm = x86.go();
-         System.out.println(asm);
-         writeFile(asm, _inputFile.replace(".mini", ".s"));
-         */
+         if (messages.contains(FAILED))
+            failed++;
       }
+      System.err.println((results.size() - failed) + " compiled, " + failed
+            + " failed in " + (System.nanoTime() - start) / 1000000 + " ms");
+      return failed == 0;
    }
 
    private static final String DISPLAYAST = "-displayAST";
    private static final String DUMPIL = "-dumpIL";
+   private static final String LINEARSCAN = "-linearScan";
+   private static final String TIME = "-time";
+   private static final String PEEPHOLESTATS = "-peepholeStats";
+   private static final String OPTIMIZE = "-O";
+   private static final String POOL = "-pool";
+   private static final String INLINE = "-inline";
+   private static final String THREADS = "-j";
+   private static final String MANIFEST = "-manifest";
+   private static final String SERVER = "-server";
+   private static final String CACHE = "-cache";
+   private static final String CACHESIZE = "-cacheSize";
+
+   /* ends the messages of a file that didn't compile */
+   private static final String FAILED = "failed";
 
-   private static String _inputFile = null;
+   private static List<String> _inputFiles = new ArrayList<String>();
    private static boolean _displayAST = false;
    private static boolean _dumpIL = false;
+   private static boolean _linearScan = false;
+   private static boolean _time = false;
+   private static boolean _peepholeStats = false;
+   private static boolean _optimize = false;
+   private static boolean _pool = false;
+   private static int _inline = 1;
+   private static int _threads = Runtime.getRuntime().availableProcessors();
+   private static int _serverPort = 0;
+   private static String _cache = null;
+   private static long _cacheSize = Compiler.DEFAULT_CACHE_SIZE;
+
+   private static void printTime(String phase, long nanos) {
+       System.err.println(phase + ": " + (nanos / 1000000.0) + " ms");
+   }
 
    private static void writeFile(String contents, String filename) {
        Writer writer = null;
@@ -62,90 +226,29 @@ public class Mini
        try {
            writer = new BufferedWriter(new FileWriter(filename));
            writer.write(contents);
+           writer.close();
         }
        catch (IOException ex) {
-           ex.printStackTrace();
-       }
-       finally {
-           try {
-                writer.close();
-            }
-           catch (IOException ex) {
-               ex.printStackTrace();
-           }
-       }
-   }
-
-   private static String getIloc(List<BasicBlock> blocks) {
-        StringBuilder builder = new StringBuilder();
-       for (BasicBlock block : blocks) 
-       {
-           builder.append(getFunctionString(block));
+           throw new CompileError("cannot write " + filename + ": "
+                 + ex.getMessage());
        }
-       builder.append("\n");
-       return builder.toString();
    }
 
-   /* Generate string for each function */
-   private static String getFunctionString(BasicBlock block) {
-       StringBuilder builder = new StringBuilder();
-       Stack<BasicBlock> stack = new Stack<BasicBlock>();
-       HashMap<String, BasicBlock> map = new HashMap<String, BasicBlock>();
-       BasicBlock nextBlock;
-
-       stack.push(block);
-       map.put(block.getLabel(), block);
-
-       while (!stack.empty()) {
-           nextBlock = stack.pop();
-           map.put(nextBlock.getLabel(), nextBlock);
-           builder.append(getBlockString(nextBlock));
-           addChildren(nextBlock, stack, map);
-       }
-       return builder.toString();
-   }
-
-   /* generate iloc string for a basic block */
-   private static String getBlockString(BasicBlock block) {
-       StringBuilder builder = new StringBuilder();
-       List<Instruction> instructions = block.getInstructions();
-
-       builder.append(block + ":\n");
-       for (Instruction op : instructions)
-            builder.append("\t" + op + "\n");
-       
-       return builder.toString();
-   }
-
-   /* add decendants of basic block */
-   private static void addChildren(BasicBlock block, Stack<BasicBlock> stack,
-           HashMap<String, BasicBlock> map) {
-       List<BasicBlock> lst = block.getOutgoing();
-       BasicBlock child;
-       boolean seenAllParents;
-
-       // have to traverse the list backwards to get the order right
-       for (int i = lst.size() - 1; i >= 0; i--) { 
-           child = lst.get(i);
-
-           // skip if child has already been visited
-           if (map.get(child.getLabel()) != null)
-               continue;
-           // enforce topological ordering
-           seenAllParents = true;
-           for (BasicBlock parent : child.getIncoming()) {
-               if (map.get(parent.getLabel()) == null) {
-                  // check if we are in a loop
-                  if (parent.getLoopHeader() == child)
-                     continue;
-                  seenAllParents = false;
-                  break;
-               }
+   /* the files a manifest lists, one to a line */
+   private static void readManifest(String manifest) {
+       try {
+           BufferedReader reader =
+              new BufferedReader(new FileReader(manifest));
+           String line;
+           while ((line = reader.readLine()) != null) {
+               line = line.trim();
+               if (!line.isEmpty())
+                   _inputFiles.add(line);
            }
-           if (!seenAllParents)
-              continue;
-
-            stack.push(child);
+           reader.close();
+       }
+       catch (IOException ex) {
+           error("cannot read manifest: " + manifest);
        }
    }
 
@@ -160,41 +263,94 @@ public class Mini
          else if (args[i].equals(DUMPIL)) {
              _dumpIL = true;
          }
+         else if (args[i].equals(LINEARSCAN)) {
+             _linearScan = true;
+         }
+         else if (args[i].equals(TIME)) {
+             _time = true;
+         }
+         else if (args[i].equals(OPTIMIZE)) {
+             _optimize = true;
+         }
+         else if (args[i].equals(PEEPHOLESTATS)) {
+             _peepholeStats = true;
+         }
+         else if (args[i].equals(POOL)) {
+             _pool = true;
+         }
+         else if (args[i].equals(INLINE) && i + 1 < args.length) {
+             try {
+                 _inline = Integer.parseInt(args[++i]);
+             }
+             catch (NumberFormatException ex) {
+                 _inline = -1;
+             }
+             if (_inline < 0 || _inline > Inliner.MAX_LEVEL) {
+                 System.err.println("inline level must be 0 to "
+                       + Inliner.MAX_LEVEL + ": " + args[i]);
+                 System.exit(1);
+             }
+         }
+         else if (args[i].equals(THREADS) && i + 1 < args.length) {
+             try {
+                 _threads = Integer.parseInt(args[++i]);
+             }
+             catch (NumberFormatException ex) {
+                 _threads = 0;
+             }
+             if (_threads < 1) {
+                 System.err.println("thread count must be at least 1: "
+                       + args[i]);
+                 System.exit(1);
+             }
+         }
+         else if (args[i].equals(MANIFEST) && i + 1 < args.length) {
+             readManifest(args[++i]);
+         }
+         else if (args[i].equals(SERVER) && i + 1 < args.length) {
+             try {
+                 _serverPort = Integer.parseInt(args[++i]);
+             }
+             catch (NumberFormatException ex) {
+                 _serverPort = -1;
+             }
+             if (_serverPort <= 0 || _serverPort > 65535) {
+                 System.err.println("bad port: " + args[i]);
+                 System.exit(1);
+             }
+         }
+         else if (args[i].equals(CACHE) && i + 1 < args.length) {
+             _cache = args[++i];
+         }
+         else if (args[i].equals(CACHESIZE) && i + 1 < args.length) {
+             try {
+                 _cacheSize = Long.parseLong(args[++i]) << 20;
+             }
+             catch (NumberFormatException ex) {
+                 _cacheSize = 0;
+             }
+             if (_cacheSize < 1) {
+                 System.err.println("cache size must be at least 1 MB: "
+                       + args[i]);
+                 System.exit(1);
+             }
+         }
          else if (args[i].charAt(0) == '-')
          {
             System.err.println("unexpected option: " + args[i]);
             System.exit(1);
          }
-         else if (_inputFile != null)
-        {
-            System.err.println("too many files specified");
-            System.exit(1);
-         }
          else
          {
-            _inputFile = args[i];
+            _inputFiles.add(args[i]);
          }
       }
-   }
 
-   private static CommonTree parse(MiniParser parser)
-   {
-      try
-      {
-         MiniParser.program_return ret = parser.program();
-
-         return (CommonTree)ret.getTree();
-      }
-      catch (org.antlr.runtime.RecognitionException e)
+      if (_displayAST && (_inputFiles.size() > 1 || _serverPort != 0))
       {
-         error(e.toString());
-      }
-      catch (Exception e)
-      {
-         System.exit(-1);
+         System.err.println("-displayAST takes a single file");
+         System.exit(1);
       }
-
-      return null;
    }
 
    private static JsonValue translate(CommonTree tree, CommonTokenStream tokens)
@@ -214,68 +370,40 @@ public class Mini
       return Json.createObjectBuilder().build();
    }
 
-   private static void typeCheck(CommonTree tree, CommonTokenStream tokens)
-   {
-      try
-      {
-         CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
-         nodes.setTokenStream(tokens);
-         TypeCheck tchecker = new TypeCheck(nodes);
-
-         tchecker.translate();
-      }
-      catch (org.antlr.runtime.RecognitionException e)
-      {
-         error(e.toString());
-      }
-   }
-
-   private static ControlFlowGraph  generateControlFlowGraph(CommonTree tree, 
-           CommonTokenStream tokens)
-   {
-       ControlFlowGraph graph = null;
-
-       try
-       {
-           CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
-           nodes.setTokenStream(tokens);
-           graph = new ControlFlowGraph(nodes);
-           graph.translate();
-       }
-       catch (org.antlr.runtime.RecognitionException e)
-       {
-           error(e.toString());
-       }
-       return graph;
-   }
-
    private static void error(String msg)
    {
       System.err.println(msg);
       System.exit(1);
    }
 
-   private static MiniLexer createLexer()
+   private static CharStream createInput(String inputFile)
    {
       try
       {
-         ANTLRInputStream input;
-         if (_inputFile == null)
+         CharStream input;
+         if (inputFile == null)
          {
             input = new ANTLRInputStream(System.in);
          }
          else
          {
-            input = new ANTLRInputStream(
-               new BufferedInputStream(new FileInputStream(_inputFile)));
+            // a batch opens many, they can't wait to be collected
+            InputStream stream = new FileInputStream(inputFile);
+            try
+            {
+               input = new ANTLRInputStream(
+                  new BufferedInputStream(stream));
+            }
+            finally
+            {
+               stream.close();
+            }
          }
-         return new MiniLexer(input);
+         return input;
       }
       catch (java.io.IOException e)
       {
-         System.err.println("file not found: " + _inputFile);
-         System.exit(1);
-         return null;
+         throw new CompileError("file not found: " + inputFile);
       }
    }
 }
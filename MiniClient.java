@@ -0,0 +1,129 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/*
+   Compiles files on a running MiniServer the way Mini would compile
+   them itself: the messages go to stderr and the iloc to stdout, the
+   assembly next to the file.  It loads none of the compiler, so it
+   starts in a fraction of the time Mini does.
+
+      java MiniClient [-port n] [-dumpIL] file.mini...
+*/
+public class MiniClient {
+   public static void main(String[] args) {
+      List<String> files = new ArrayList<String>();
+      int port = MiniProtocol.DEFAULT_PORT;
+      boolean dumpIL = false;
+
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-port") && i + 1 < args.length) {
+            try {
+               port = Integer.parseInt(args[++i]);
+            }
+            catch (NumberFormatException ex) {
+               error("bad port: " + args[i]);
+            }
+         }
+         else if (args[i].equals("-dumpIL")) {
+            dumpIL = true;
+         }
+         else if (args[i].charAt(0) == '-') {
+            error("unexpected option: " + args[i]);
+         }
+         else {
+            files.add(args[i]);
+         }
+      }
+
+      if (files.isEmpty())
+         error("usage: java MiniClient [-port n] [-dumpIL] file.mini...");
+
+      Socket socket = null;
+      boolean failed = false;
+      try {
+         socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      }
+      catch (IOException ex) {
+         error("no compiler server on port " + port);
+      }
+      try {
+         socket.setTcpNoDelay(true);
+         DataInputStream in = new DataInputStream(
+               new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+
+         for (String file : files) {
+            String prefix = files.size() > 1 ? file + ": " : "";
+            String source;
+            try {
+               source = readFile(file);
+            }
+            catch (IOException ex) {
+               System.err.println(prefix + "file not found: " + file);
+               failed = true;
+               continue;
+            }
+            MiniProtocol.writeString(out, file);
+            MiniProtocol.writeString(out, source);
+            out.flush();
+
+            int status = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+               System.err.println(prefix + MiniProtocol.readString(in));
+            String iloc = MiniProtocol.readString(in);
+            String asm = MiniProtocol.readString(in);
+            if (status != MiniProtocol.OK) {
+               failed = true;
+               continue;
+            }
+            System.out.println(iloc);
+            if (dumpIL)
+               failed |= !writeFile(iloc,
+                     MiniProtocol.outputName(file, ".il"));
+            failed |= !writeFile(asm, MiniProtocol.outputName(file, ".s"));
+         }
+         socket.close();
+      }
+      catch (IOException ex) {
+         error("lost the compiler server: " + ex.getMessage());
+      }
+      System.exit(failed ? 1 : 0);
+   }
+
+   private static String readFile(String name) throws IOException {
+      InputStream in = new FileInputStream(name);
+
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte buffer[] = new byte[8192];
+         int n;
+         while ((n = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+         return bytes.toString("UTF-8");
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   private static boolean writeFile(String contents, String name) {
+      try {
+         Writer writer = new BufferedWriter(new FileWriter(name));
+         writer.write(contents);
+         writer.close();
+         return true;
+      }
+      catch (IOException ex) {
+         System.err.println("cannot write " + name + ": " + ex.getMessage());
+         return false;
+      }
+   }
+
+   private static void error(String message) {
+      System.err.println(message);
+      System.exit(1);
+   }
+}
@@ -0,0 +1,53 @@
+import java.io.*;
+import java.nio.charset.Charset;
+
+/*
+   What MiniServer and MiniClient say to each other.  A connection
+   carries any number of requests, one after the other.  A string is an
+   int with the number of bytes and then the bytes, UTF-8:
+
+      request:   name, source
+      response:  int status (OK or FAILED), int message count, messages,
+                 iloc, assembly
+
+   What wasn't made is an empty string.  Kept apart from the server so
+   the client doesn't load the compiler.
+*/
+public class MiniProtocol {
+   public static final int DEFAULT_PORT = 7341;
+   public static final int OK = 0;
+   public static final int FAILED = 1;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   /* longest string read, a broken peer shouldn't take all memory */
+   private static final int MAX_STRING = 64 << 20;
+
+   /*
+      the file next to source that what it compiles to goes in, for Mini
+      and MiniClient alike: a trailing .mini gives way to extension, any
+      other name gets it added, so the source is never written over
+   */
+   public static String outputName(String source, String extension) {
+      if (source.endsWith(".mini"))
+         return source.substring(0, source.length() - 5) + extension;
+      return source + extension;
+   }
+
+   public static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+
+      if (length < 0 || length > MAX_STRING)
+         throw new IOException("bad string length " + length);
+      byte bytes[] = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   public static void writeString(DataOutputStream out, String s)
+         throws IOException {
+      byte bytes[] = s.getBytes(UTF8);
+
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+   Keeps a compiler running for tools that would otherwise start a JVM,
+   load the parsers and warm them up again for every file they compile.
+   The server listens on a port of the loopback interface only and
+   compiles what it is sent with the options it was started with, see
+   MiniClient for a client and MiniProtocol for what they say.  The name
+   a file is sent with only goes in the assembly, nothing is read or
+   written on the server.
+*/
+public class MiniServer {
+   /* compiled before the first request, so that one isn't slow */
+   private static final String WARM_UP =
+      "struct p { int a; bool b; struct p next; };\n"
+      + "int g;\n"
+      + "fun f(int n, struct p q) int {\n"
+      + "   int s;\n"
+      + "   s = 0;\n"
+      + "   while (n > 0 && q != null) {\n"
+      + "      if (q.b || n / 2 * 2 == n) { s = s + q.a * n; }\n"
+      + "      else { s = s - n; }\n"
+      + "      n = n - 1;\n"
+      + "   }\n"
+      + "   return s;\n"
+      + "}\n"
+      + "fun main() int {\n"
+      + "   struct p q;\n"
+      + "   q = new p;\n"
+      + "   read q.a;\n"
+      + "   q.b = true;\n"
+      + "   g = f(q.a, q);\n"
+      + "   print g endl;\n"
+      + "   delete q;\n"
+      + "   return 0;\n"
+      + "}\n";
+   private static final int WARM_UP_ROUNDS = 50;
+
+   private int port;
+   private Compiler compiler;
+   private ExecutorService connections;
+
+   /* a client at a time for every thread, they share the compiler */
+   public MiniServer(int port, Compiler compiler, int threads) {
+      this.port = port;
+      this.compiler = compiler;
+      connections = Executors.newFixedThreadPool(threads);
+   }
+
+   public void run() throws IOException {
+      ServerSocket server = new ServerSocket(port, 50,
+            InetAddress.getLoopbackAddress());
+
+      warmUp();
+      System.err.println("listening on port " + port);
+      while (true) {
+         final Socket socket = server.accept();
+         connections.execute(new Runnable() {
+            public void run() {
+               serve(socket);
+            }
+         });
+      }
+   }
+
+   /* the warm-up program has no place in the cache, or in its size */
+   private void warmUp() {
+      Compiler warm = new Compiler(new Compiler.Options.Builder(
+               compiler.getOptions()).cache(null).build());
+
+      for (int i = 0; i < WARM_UP_ROUNDS; i++)
+         warm.compile("warmup.mini", WARM_UP);
+      warm.shutdown();
+   }
+
+   private void serve(Socket socket) {
+      try {
+         // a response is flushed whole, don't wait to fill a packet
+         socket.setTcpNoDelay(true);
+         DataInputStream in = new DataInputStream(
+               new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+
+         while (true) {
+            String name;
+            try {
+               name = MiniProtocol.readString(in);
+            }
+            catch (EOFException ex) {
+               break;
+            }
+            Compiler.Result result = compiler.compile(name,
+                  MiniProtocol.readString(in));
+            write(out, result);
+            out.flush();
+         }
+      }
+      catch (IOException ex) {
+         // the client went away, there is no one to tell
+      }
+      finally {
+         try {
+            socket.close();
+         }
+         catch (IOException ex) {
+         }
+      }
+   }
+
+   private static void write(DataOutputStream out, Compiler.Result result)
+         throws IOException {
+      out.writeInt(result.succeeded() ? MiniProtocol.OK
+            : MiniProtocol.FAILED);
+      out.writeInt(result.getDiagnostics().size());
+      for (String message : result.getDiagnostics())
+         MiniProtocol.writeString(out, message);
+      MiniProtocol.writeString(out, result.getIloc() != null
+            ? result.getIloc() : "");
+      MiniProtocol.writeString(out, result.getAsm() != null
+            ? result.getAsm() : "");
+   }
+}
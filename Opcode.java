@@ -0,0 +1,190 @@
+/*
+   Opcodes of the iloc that ControlFlowGraph builds and of the x86 it is
+   lowered to.  Every opcode carries how its operands are used, one letter
+   per operand: u is read, d is written, b is read and written and - is
+   not a register.  The base register of a memory operand is always read.
+   Whatever follows a * repeats for the rest of the operands.
+*/
+public enum Opcode {
+   /* iloc */
+   LOADINARGUMENT("--d"),
+   LOADRET("d"),
+   STOREOUTARGUMENT("u-"),
+   CALL("--"),           /* name, argument count; x86 call has the name */
+   NEW("--d"),           /* struct, size in bytes, target */
+   DEL("u--"),           /* pointer, struct, size in bytes */
+   NEWFRAME("--d"),      /* struct, offset in the frame, target */
+   MOV("ud"),
+   MOVEQ("-ub"),
+   MOVGE("-ub"),
+   MOVGT("-ub"),
+   MOVLE("-ub"),
+   MOVLT("-ub"),
+   MOVNE("-ub"),
+   STOREAI("uu-"),
+   CSTOREAI("uu-"),      /* a single byte, for bool fields */
+   LOADI("-d"),
+   LOADAI("u-d"),
+   CLOADAI("u-d"),
+   LOADGLOBAL("-d"),
+   STOREGLOBAL("u-"),
+   COMP("uu-"),
+   CBREQ("u--"),
+   CBRGE("u--"),
+   CBRGT("u--"),
+   CBRLE("u--"),
+   CBRLT("u--"),
+   CBRNE("u--"),
+   JUMPI("-"),
+   ADD("uud"),
+   SUB("uud"),
+   MULT("uud"),
+   DIV("uud"),
+   AND("uud"),
+   OR("uud"),
+   XORI("u-d"),
+   RET(""),              /* also the x86 return, expanded by X86 */
+   TAILCALL("--"),       /* like call, X86 expands it into a jmp */
+   STORERET("u"),
+   PRINT("u"),
+   PRINTLN("u"),
+   READ("d"),
+   PHI("d*u-"),          /* target, then a value and label per predecessor */
+
+   /* x86 */
+   MOVQ(true, "ud"),
+   MOVB(true, "ud"),     /* stores the low byte of a register */
+   MOVZBQ(true, "ud"),   /* loads a byte and clears the rest */
+   CMOVE(true, "ub"),
+   CMOVGE(true, "ub"),
+   CMOVG(true, "ub"),
+   CMOVLE(true, "ub"),
+   CMOVL(true, "ub"),
+   CMOVNE(true, "ub"),
+   CMPQ(true, "uu"),
+   ADDQ(true, "ub"),
+   SUBQ(true, "ub"),
+   IMULQ(true, "ub"),
+   ANDQ(true, "ub"),
+   ORQ(true, "ub"),
+   XORQ(true, "ub"),
+   XCHGQ(true, "bb"),
+   SARQ(true, "ub"),
+   SALQ(true, "ub"),
+   LEAQ(true, "ud"),     /* the address of a memory operand */
+   IDIVQ(true, "u", new Operand[] {Operand.RAX, Operand.RDX},
+         new Operand[] {Operand.RAX, Operand.RDX}),
+   JMP(true, "-"),
+   JE(true, "-"),
+   JNE(true, "-"),
+   JG(true, "-"),
+   JGE(true, "-"),
+   JL(true, "-"),
+   JLE(true, "-");
+
+   private final boolean x86;
+   private final String roles;
+   private final String repeated;
+   private final Operand implicitUses[];
+   private final Operand implicitDefs[];
+   private final String mnemonic;
+
+   Opcode(String roles) {
+      this(false, roles);
+   }
+
+   Opcode(boolean x86, String roles) {
+      this(x86, roles, new Operand[0], new Operand[0]);
+   }
+
+   Opcode(boolean x86, String roles, Operand implicitUses[],
+         Operand implicitDefs[]) {
+      int star = roles.indexOf('*');
+
+      this.x86 = x86;
+      this.roles = star < 0 ? roles : roles.substring(0, star);
+      this.repeated = star < 0 ? "" : roles.substring(star + 1);
+      this.implicitUses = implicitUses;
+      this.implicitDefs = implicitDefs;
+      this.mnemonic = name().toLowerCase();
+   }
+
+   public boolean isX86() {
+      return x86;
+   }
+
+   private char role(int i) {
+      if (i < roles.length())
+         return roles.charAt(i);
+      if (repeated.length() == 0)
+         return '-';
+      return repeated.charAt((i - roles.length()) % repeated.length());
+   }
+
+   /* true if operand i is a register this opcode reads */
+   public boolean isUse(int i) {
+      char role = role(i);
+      return role == 'u' || role == 'b';
+   }
+
+   /* true if operand i is a register this opcode writes */
+   public boolean isDef(int i) {
+      char role = role(i);
+      return role == 'd' || role == 'b';
+   }
+
+   /* registers read that aren't operands */
+   public Operand[] getImplicitUses() {
+      return implicitUses;
+   }
+
+   /* registers written that aren't operands */
+   public Operand[] getImplicitDefs() {
+      return implicitDefs;
+   }
+
+   /* iloc instructions that end a block with a jump */
+   public boolean isBranch() {
+      switch (this) {
+         case CBREQ: case CBRGE: case CBRGT: case CBRLE: case CBRLT:
+         case CBRNE: case JUMPI:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /* x86 jumps, conditional or not */
+   public boolean isJump() {
+      switch (this) {
+         case JMP: case JE: case JNE: case JG: case JGE: case JL: case JLE:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /* the branch taken exactly when this one isn't */
+   public Opcode getInverse() {
+      switch (this) {
+         case CBREQ: return CBRNE;
+         case CBRNE: return CBREQ;
+         case CBRGE: return CBRLT;
+         case CBRLT: return CBRGE;
+         case CBRGT: return CBRLE;
+         case CBRLE: return CBRGT;
+         case JE: return JNE;
+         case JNE: return JE;
+         case JG: return JLE;
+         case JLE: return JG;
+         case JGE: return JL;
+         case JL: return JGE;
+         default:
+            throw new IllegalArgumentException(this + " has no inverse");
+      }
+   }
+
+   public String toString() {
+      return mnemonic;
+   }
+}
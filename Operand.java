@@ -0,0 +1,230 @@
+/*
+   Operand of an iloc or x86 instruction.  Registers are numbered with the
+   x86 registers first and the virtual registers rN after them, so the
+   registers of a function can index arrays and bit vectors directly.
+*/
+public class Operand {
+   public enum Kind {
+      REGISTER,   /* x86 or virtual register */
+      IMMEDIATE,  /* constant, $n in x86 */
+      LABEL,      /* block or function name used as a jump target */
+      SYMBOL,     /* global variable or struct name */
+      ADDRESS,    /* address of a symbol, $name in x86 */
+      MEMORY,     /* displacement(base) */
+      CONDITION   /* the iloc condition code register */
+   }
+
+   private static final String physicalNames[] =
+   {"%rax", "%rbx", "%rcx", "%rdx", "%rsi", "%rdi", "%r8", "%r9",
+    "%r10", "%r11", "%r12", "%r13", "%r14", "%r15", "%rsp", "%rbp"};
+
+   /* the low byte of each of them */
+   private static final String byteNames[] =
+   {"%al", "%bl", "%cl", "%dl", "%sil", "%dil", "%r8b", "%r9b",
+    "%r10b", "%r11b", "%r12b", "%r13b", "%r14b", "%r15b", "%spl", "%bpl"};
+
+   /* number of the first virtual register */
+   public static final int PHYSICAL_COUNT = physicalNames.length;
+
+   public static final Operand RAX = new Operand(Kind.REGISTER, 0);
+   public static final Operand RBX = new Operand(Kind.REGISTER, 1);
+   public static final Operand RCX = new Operand(Kind.REGISTER, 2);
+   public static final Operand RDX = new Operand(Kind.REGISTER, 3);
+   public static final Operand RSI = new Operand(Kind.REGISTER, 4);
+   public static final Operand RDI = new Operand(Kind.REGISTER, 5);
+   public static final Operand R8 = new Operand(Kind.REGISTER, 6);
+   public static final Operand R9 = new Operand(Kind.REGISTER, 7);
+   public static final Operand R10 = new Operand(Kind.REGISTER, 8);
+   public static final Operand R11 = new Operand(Kind.REGISTER, 9);
+   public static final Operand R12 = new Operand(Kind.REGISTER, 10);
+   public static final Operand R13 = new Operand(Kind.REGISTER, 11);
+   public static final Operand R14 = new Operand(Kind.REGISTER, 12);
+   public static final Operand R15 = new Operand(Kind.REGISTER, 13);
+   public static final Operand RSP = new Operand(Kind.REGISTER, 14);
+   public static final Operand RBP = new Operand(Kind.REGISTER, 15);
+
+   public static final Operand CCR = new Operand(Kind.CONDITION, 0);
+
+   private final Kind kind;
+   private final int number;     /* register number */
+   private final long value;     /* immediate or displacement */
+   private final String name;    /* label or symbol */
+   private final Operand base;   /* base register of a memory operand */
+
+   private Operand(Kind kind, int number, long value, String name,
+         Operand base) {
+      this.kind = kind;
+      this.number = number;
+      this.value = value;
+      this.name = name;
+      this.base = base;
+   }
+
+   private Operand(Kind kind, int number) {
+      this(kind, number, 0, null, null);
+   }
+
+   /* virtual register rN */
+   public static Operand register(int n) {
+      return new Operand(Kind.REGISTER, PHYSICAL_COUNT + n);
+   }
+
+   /* register by its dense number, see getNumber() */
+   public static Operand registerNumber(int number) {
+      if (number < PHYSICAL_COUNT)
+         return physical(number);
+      return new Operand(Kind.REGISTER, number);
+   }
+
+   public static Operand immediate(long value) {
+      return new Operand(Kind.IMMEDIATE, 0, value, null, null);
+   }
+
+   public static Operand label(String name) {
+      return new Operand(Kind.LABEL, 0, 0, name, null);
+   }
+
+   public static Operand symbol(String name) {
+      return new Operand(Kind.SYMBOL, 0, 0, name, null);
+   }
+
+   public static Operand address(String name) {
+      return new Operand(Kind.ADDRESS, 0, 0, name, null);
+   }
+
+   public static Operand memory(long displacement, Operand base) {
+      return new Operand(Kind.MEMORY, 0, displacement, null, base);
+   }
+
+   private static Operand physical(int number) {
+      switch (number) {
+         case 0: return RAX;
+         case 1: return RBX;
+         case 2: return RCX;
+         case 3: return RDX;
+         case 4: return RSI;
+         case 5: return RDI;
+         case 6: return R8;
+         case 7: return R9;
+         case 8: return R10;
+         case 9: return R11;
+         case 10: return R12;
+         case 11: return R13;
+         case 12: return R14;
+         case 13: return R15;
+         case 14: return RSP;
+         default: return RBP;
+      }
+   }
+
+   public Kind getKind() {
+      return kind;
+   }
+
+   public boolean isRegister() {
+      return kind == Kind.REGISTER;
+   }
+
+   public boolean isVirtual() {
+      return kind == Kind.REGISTER && number >= PHYSICAL_COUNT;
+   }
+
+   public boolean isPhysical() {
+      return kind == Kind.REGISTER && number < PHYSICAL_COUNT;
+   }
+
+   /* %rsp and %rbp hold the frame, they are never allocated */
+   public boolean isFrameRegister() {
+      return this == RSP || this == RBP;
+   }
+
+   public boolean isImmediate() {
+      return kind == Kind.IMMEDIATE;
+   }
+
+   /* memory operands, including global variables */
+   public boolean isMemory() {
+      return kind == Kind.MEMORY || kind == Kind.SYMBOL;
+   }
+
+   /* dense register number, x86 registers come first */
+   public int getNumber() {
+      return number;
+   }
+
+   public long getValue() {
+      return value;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public Operand getBase() {
+      return base;
+   }
+
+   /* the same memory operand addressed off another register */
+   public Operand withBase(Operand reg) {
+      return new Operand(kind, number, value, name, reg);
+   }
+
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof Operand))
+         return false;
+
+      Operand other = (Operand)o;
+      if (kind != other.kind || number != other.number
+            || value != other.value)
+         return false;
+      if (name == null ? other.name != null : !name.equals(other.name))
+         return false;
+      return base == null ? other.base == null : base.equals(other.base);
+   }
+
+   public int hashCode() {
+      int hash = kind.ordinal() * 31 + number;
+
+      hash = hash * 31 + (int)(value ^ (value >>> 32));
+      if (name != null)
+         hash = hash * 31 + name.hashCode();
+      if (base != null)
+         hash = hash * 31 + base.hashCode();
+      return hash;
+   }
+
+   /* iloc spells immediates without the $ */
+   public String toIloc() {
+      if (kind == Kind.IMMEDIATE)
+         return "" + value;
+      return toString();
+   }
+
+   /* a register by the name of its low byte */
+   public String toByteString() {
+      if (kind == Kind.REGISTER && number < PHYSICAL_COUNT)
+         return byteNames[number];
+      return toString();
+   }
+
+   public String toString() {
+      switch (kind) {
+         case REGISTER:
+            if (number < PHYSICAL_COUNT)
+               return physicalNames[number];
+            return "r" + (number - PHYSICAL_COUNT);
+         case IMMEDIATE:
+            return "$" + value;
+         case ADDRESS:
+            return "$" + name;
+         case MEMORY:
+            return value + "(" + base + ")";
+         case CONDITION:
+            return "ccr";
+         default:
+            return name;
+      }
+   }
+}
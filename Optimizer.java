@@ -0,0 +1,29 @@
+import java.util.*;
+
+/*
+   Machine independent optimization of the iloc of one function.  The
+   flow graph is cleaned up, the function is put in SSA form, the passes
+   run over that and it is taken back out of SSA before X86 lowers it.
+   Small branches are then turned into conditional moves.
+*/
+public class Optimizer {
+   private BasicBlock fun;
+
+   public Optimizer(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void optimize() {
+      SSA ssa = new SSA(fun);
+
+      new ControlFlowSimplification(fun).run();
+      new EscapeAnalysis(fun).run();
+      ssa.construct();
+      new ConstantPropagation(fun).run();
+      new CopyPropagation(fun).run();
+      new DeadCode(fun).run();
+      ssa.destruct();
+      new ControlFlowSimplification(fun).run();
+      new IfConversion(fun).run();
+   }
+}
@@ -0,0 +1,339 @@
+import java.util.*;
+
+/*
+   Peephole optimizer for the x86 of a function after register
+   allocation.  A rule looks at a window of a few instructions in a row
+   and either leaves them alone or gives the instructions to put in their
+   place.  Each block is scanned from the bottom up, so what follows a
+   window is already final and which registers are live after it is
+   known exactly; whatever a rule puts in is looked at again.  Rules are
+   tried in the order they were added and count how often they fire.
+
+   None of the rules move anything past a compare, so the condition codes
+   a jump or conditional move reads stay the same.
+*/
+public class Peephole {
+   /* frame registers are always live */
+   private static final int FRAME = bit(Operand.RSP) | bit(Operand.RBP);
+
+   /* a rewrite of a window of instructions */
+   public static abstract class Rule {
+      private String name;
+      private int size;
+      private int fired;
+
+      public Rule(String name, int size) {
+         this.name = name;
+         this.size = size;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      /* number of instructions in the window */
+      public int getSize() {
+         return size;
+      }
+
+      public int getFired() {
+         return fired;
+      }
+
+      /*
+         the instructions replacing the window, null if the rule doesn't
+         apply.  live has a bit for every register live after the window.
+      */
+      public abstract List<Instruction> rewrite(Instruction window[],
+            int live);
+   }
+
+   private List<Rule> rules = new ArrayList<Rule>();
+   private int maxSize;
+
+   /* an engine with the standard rules */
+   public Peephole() {
+      addRule(new SelfMove());
+      addRule(new DeadMove());
+      addRule(new ForwardMove());
+      addRule(new FoldImmediate());
+      addRule(new Identity());
+      addRule(new MultiplyToShift());
+      addRule(new AddToLea());
+   }
+
+   public void addRule(Rule rule) {
+      rules.add(rule);
+      maxSize = Math.max(maxSize, rule.getSize());
+   }
+
+   public List<Rule> getRules() {
+      return rules;
+   }
+
+   /* how often each rule fired, in the order of the rules */
+   public int[] getCounts() {
+      int counts[] = new int[rules.size()];
+
+      for (int i = 0; i < counts.length; i++)
+         counts[i] = rules.get(i).fired;
+      return counts;
+   }
+
+   /* adds counts of the same rules as ours, as getCounts gives them */
+   public void addCounts(int counts[]) {
+      for (int i = 0; i < rules.size() && i < counts.length; i++)
+         rules.get(i).fired += counts[i];
+   }
+
+   /* how often each rule fired, one per line */
+   public String getReport() {
+      StringBuilder result = new StringBuilder();
+
+      for (Rule rule : rules)
+         result.append(rule.getName() + ": " + rule.getFired() + "\n");
+      return result.toString();
+   }
+
+   public void optimize(FlowGraph graph) {
+      Liveness liveness = new Liveness(graph);
+
+      for (BasicBlock b : graph.getBlocks()) {
+         int live = FRAME;
+         BitSet out = liveness.getLiveOut(b);
+         for (int r = out.nextSetBit(0); r >= 0; r = out.nextSetBit(r + 1))
+            live |= bit(liveness.getRegister(r));
+         optimize(b, live);
+      }
+   }
+
+   /* live has the registers live at the end of the block */
+   private void optimize(BasicBlock block, int live) {
+      List<Instruction> pending =
+         new ArrayList<Instruction>(block.getInstructions());
+      // the finished part in reverse, with what is live after each one
+      List<Instruction> done = new ArrayList<Instruction>();
+      List<Integer> liveAfter = new ArrayList<Integer>();
+      Instruction window[] = new Instruction[maxSize];
+
+      while (!pending.isEmpty()) {
+         Instruction ins = pending.remove(pending.size() - 1);
+         List<Instruction> replacement = null;
+
+         for (Rule rule : rules) {
+            int size = rule.getSize();
+            if (size - 1 > done.size())
+               continue;
+
+            window[0] = ins;
+            for (int i = 1; i < size; i++)
+               window[i] = done.get(done.size() - i);
+            int after = size == 1
+               ? live : liveAfter.get(done.size() - size + 1);
+
+            replacement = rule.rewrite(Arrays.copyOf(window, size), after);
+            if (replacement != null) {
+               rule.fired++;
+               for (int i = 1; i < size; i++) {
+                  done.remove(done.size() - 1);
+                  live = liveAfter.remove(liveAfter.size() - 1);
+               }
+               pending.addAll(replacement);
+               break;
+            }
+         }
+
+         if (replacement == null) {
+            done.add(ins);
+            liveAfter.add(live);
+            live = liveBefore(ins, live);
+         }
+      }
+
+      Collections.reverse(done);
+      block.setInstructions(new LinkedList<Instruction>(done));
+   }
+
+   private static int liveBefore(Instruction ins, int live) {
+      for (Operand reg : ins.getTargets())
+         live &= ~bit(reg);
+      for (Operand reg : ins.getSources())
+         live |= bit(reg);
+      return live | FRAME;
+   }
+
+   private static int bit(Operand reg) {
+      return 1 << reg.getNumber();
+   }
+
+   private static boolean isLive(Operand reg, int live) {
+      return (live & bit(reg)) != 0;
+   }
+
+   /* a constant x86 takes as an immediate operand, sign extended */
+   private static boolean isImmediate32(Operand op) {
+      return op.isImmediate() && op.getValue() == (int)op.getValue();
+   }
+
+   /* true if the operand is reg or an address computed from it */
+   private static boolean mentions(Operand op, Operand reg) {
+      return op.equals(reg) || reg.equals(op.getBase());
+   }
+
+   private static List<Instruction> replace(Instruction... instructions) {
+      return Arrays.asList(instructions);
+   }
+
+   /* movq %r, %r */
+   private static class SelfMove extends Rule {
+      SelfMove() {
+         super("self move", 1);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         if (w[0].getOpcode() == Opcode.MOVQ
+               && w[0].getOperand(0).equals(w[0].getOperand(1)))
+            return replace();
+         return null;
+      }
+   }
+
+   /* a register nothing reads again */
+   private static class DeadMove extends Rule {
+      DeadMove() {
+         super("dead move", 1);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         if (w[0].getOpcode() != Opcode.MOVQ)
+            return null;
+         Operand target = w[0].getOperand(1);
+         if (target.isRegister() && !isLive(target, live))
+            return replace();
+         return null;
+      }
+   }
+
+   /* movq a, %t; movq %t, b => movq a, b when %t dies */
+   private static class ForwardMove extends Rule {
+      ForwardMove() {
+         super("forward move", 2);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         if (w[0].getOpcode() != Opcode.MOVQ
+               || w[1].getOpcode() != Opcode.MOVQ)
+            return null;
+
+         Operand source = w[0].getOperand(0), temp = w[0].getOperand(1);
+         Operand target = w[1].getOperand(1);
+         if (!temp.isRegister() || !w[1].getOperand(0).equals(temp)
+               || mentions(target, temp) || isLive(temp, live))
+            return null;
+         // x86 has no memory to memory move or 64 bit immediate store
+         if (target.isMemory() && (source.isMemory()
+                  || (source.isImmediate() && !isImmediate32(source))))
+            return null;
+         return replace(new Instruction(Opcode.MOVQ, source, target));
+      }
+   }
+
+   /* movq $k, %t; addq %t, d => addq $k, d when %t dies */
+   private static class FoldImmediate extends Rule {
+      FoldImmediate() {
+         super("fold immediate", 2);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         switch (w[1].getOpcode()) {
+         case CMPQ: case ADDQ: case SUBQ: case IMULQ: case ANDQ: case ORQ:
+         case XORQ:
+            break;
+         default:
+            return null;
+         }
+
+         if (w[0].getOpcode() != Opcode.MOVQ)
+            return null;
+
+         Operand constant = w[0].getOperand(0), temp = w[0].getOperand(1);
+         Operand target = w[1].getOperand(1);
+         if (!isImmediate32(constant)
+               || !temp.isRegister() || !w[1].getOperand(0).equals(temp)
+               || mentions(target, temp) || isLive(temp, live))
+            return null;
+         return replace(new Instruction(w[1].getOpcode(), constant, target));
+      }
+   }
+
+   /* addq $0, d and the like change nothing the code looks at */
+   private static class Identity extends Rule {
+      Identity() {
+         super("identity", 1);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         if (w[0].getOperandCount() != 2 || !w[0].getOperand(0).isImmediate())
+            return null;
+
+         long value = w[0].getOperand(0).getValue();
+         switch (w[0].getOpcode()) {
+         case ADDQ: case SUBQ: case ORQ: case XORQ: case SALQ: case SARQ:
+            return value == 0 ? replace() : null;
+         case IMULQ:
+            return value == 1 ? replace() : null;
+         default:
+            return null;
+         }
+      }
+   }
+
+   /* imulq $2^k, d => salq $k, d */
+   private static class MultiplyToShift extends Rule {
+      MultiplyToShift() {
+         super("multiply to shift", 1);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         if (w[0].getOpcode() != Opcode.IMULQ
+               || !w[0].getOperand(0).isImmediate())
+            return null;
+
+         long value = w[0].getOperand(0).getValue();
+         if (value <= 1 || (value & (value - 1)) != 0)
+            return null;
+         return replace(new Instruction(Opcode.SALQ,
+                  Operand.immediate(Long.numberOfTrailingZeros(value)),
+                  w[0].getOperand(1)));
+      }
+   }
+
+   /* movq %s, %d; addq $k, %d => leaq k(%s), %d */
+   private static class AddToLea extends Rule {
+      AddToLea() {
+         super("add to lea", 2);
+      }
+
+      public List<Instruction> rewrite(Instruction w[], int live) {
+         Opcode opcode = w[1].getOpcode();
+         if (w[0].getOpcode() != Opcode.MOVQ
+               || (opcode != Opcode.ADDQ && opcode != Opcode.SUBQ))
+            return null;
+
+         Operand source = w[0].getOperand(0), target = w[0].getOperand(1);
+         Operand constant = w[1].getOperand(0);
+         if (!source.isRegister() || !target.isRegister()
+               || !constant.isImmediate()
+               || !w[1].getOperand(1).equals(target))
+            return null;
+
+         long value = constant.getValue();
+         if (opcode == Opcode.SUBQ)
+            value = -value;
+         if (value != (int)value)
+            return null;
+         return replace(new Instruction(Opcode.LEAQ,
+                  Operand.memory(value, source), target));
+      }
+   }
+}
@@ -0,0 +1,222 @@
+import java.util.*;
+
+/*
+   Lowers new and delete of one function to pools instead of malloc and
+   free.  Every struct gets a pool of three words: the head of a list of
+   freed objects, and the next free byte and the end of the slab objects
+   are cut from.  A new takes the first freed object if there is one and
+   bumps the slab pointer otherwise, both inline; only when the slab is
+   used up does it call the runtime from getRuntime() for a fresh one.  A
+   delete puts the object on the free list, objects never go back to
+   malloc.
+
+   The inline code adds blocks to the flow graph, so this runs on the
+   final iloc, before instruction selection.
+*/
+public class PooledAllocation {
+   /* objects in a slab */
+   private static final int SLAB_SHIFT = 10;
+
+   private BasicBlock fun;
+   private Set<String> pools;
+   private int splits;
+
+   /* pools gets the structs the function allocates or frees */
+   public PooledAllocation(BasicBlock fun, Set<String> pools) {
+      this.fun = fun;
+      this.pools = pools;
+   }
+
+   /*
+      the bytes an object takes in its pool: a freed object holds the
+      free list link, so a slot is at least a word and word aligned
+   */
+   private static Operand slotSize(Operand size) {
+      return Operand.immediate(Math.max(8, (size.getValue() + 7) & ~7));
+   }
+
+   public void run() {
+      FlowGraph graph = new FlowGraph(fun);
+
+      for (int id : graph.getReversePostorder()) {
+         BasicBlock block = graph.getBlock(id);
+         while (block != null)
+            block = lower(block);
+      }
+   }
+
+   private static String poolName(String struct) {
+      return "__pool_" + struct;
+   }
+
+   /* a word of the pool of a struct, the field is 0, 8 or 16 */
+   private static Operand pool(String struct, int field) {
+      String name = poolName(struct);
+      return Operand.symbol(field == 0 ? name : name + "+" + field);
+   }
+
+   /* lower the first new or delete, the block after it if there was one */
+   private BasicBlock lower(BasicBlock block) {
+      List<Instruction> instructions = block.getInstructions();
+
+      for (int i = 0; i < instructions.size(); i++) {
+         Instruction ins = instructions.get(i);
+         if (ins.getOpcode() != Opcode.NEW && ins.getOpcode() != Opcode.DEL)
+            continue;
+
+         BasicBlock rest = split(block, i);
+         String struct = ins.getOperand(ins.getOpcode() == Opcode.NEW
+               ? 0 : 1).getName();
+         pools.add(struct);
+         if (ins.getOpcode() == Opcode.NEW)
+            allocate(block, rest, struct, slotSize(ins.getOperand(1)),
+                  ins.getOperand(2));
+         else
+            free(block, rest, struct, ins.getOperand(0));
+         return rest;
+      }
+      return null;
+   }
+
+   /*
+      move everything after instruction i into a new block, which takes
+      over the successors.  Instruction i itself is dropped.
+   */
+   private BasicBlock split(BasicBlock block, int i) {
+      BasicBlock rest = newBlock(block);
+      List<Instruction> tail = block.getInstructions().subList(i,
+            block.getInstructions().size());
+
+      rest.getInstructions().addAll(tail.subList(1, tail.size()));
+      tail.clear();
+      for (BasicBlock succ : block.getOutgoing()) {
+         List<BasicBlock> incoming = succ.getIncoming();
+         incoming.set(incoming.indexOf(block), rest);
+         rest.addOutgoing(succ);
+      }
+      block.getOutgoing().clear();
+      return rest;
+   }
+
+   private BasicBlock newBlock(BasicBlock block) {
+      return fun.createBlock(block.getLabel() + "_" + ++splits);
+   }
+
+   private void edge(BasicBlock from, BasicBlock to) {
+      from.addOutgoing(to);
+      to.addIncoming(from);
+   }
+
+   /* a conditional branch, taken to taken and falling through to fall */
+   private void branch(BasicBlock block, Opcode opcode, Operand left,
+         Operand right, BasicBlock taken, BasicBlock fall) {
+      block.addInstruction(new Instruction(Opcode.COMP, left, right,
+               Operand.CCR));
+      block.addInstruction(new Instruction(opcode, Operand.CCR,
+               Operand.label(taken.getLabel()),
+               Operand.label(fall.getLabel())));
+      edge(block, fall);
+      edge(block, taken);
+   }
+
+   private Operand constant(BasicBlock block, Operand value) {
+      Operand reg = fun.getNextRegister();
+      block.addInstruction(new Instruction(Opcode.LOADI, value, reg));
+      return reg;
+   }
+
+   private Operand load(BasicBlock block, Operand global) {
+      Operand reg = fun.getNextRegister();
+      block.addInstruction(new Instruction(Opcode.LOADGLOBAL, global, reg));
+      return reg;
+   }
+
+   private void allocate(BasicBlock block, BasicBlock rest, String struct,
+         Operand size, Operand target) {
+      BasicBlock pop = newBlock(block), bump = newBlock(block);
+      BasicBlock fits = newBlock(block), refill = newBlock(block);
+
+      // take the first freed object
+      Operand free = load(block, pool(struct, 0));
+      branch(block, Opcode.CBREQ, free,
+            constant(block, Operand.immediate(0)), bump, pop);
+      Operand next = fun.getNextRegister();
+      pop.addInstruction(new Instruction(Opcode.LOADAI, free,
+               Operand.immediate(0), next));
+      pop.addInstruction(new Instruction(Opcode.STOREGLOBAL, next,
+               pool(struct, 0)));
+      pop.addInstruction(new Instruction(Opcode.MOV, free, target));
+      edge(pop, rest);
+
+      // or cut it from the slab
+      Operand start = load(bump, pool(struct, 8));
+      Operand end = fun.getNextRegister();
+      bump.addInstruction(new Instruction(Opcode.ADD, start,
+               constant(bump, size), end));
+      branch(bump, Opcode.CBRGT, end, load(bump, pool(struct, 16)),
+            refill, fits);
+      fits.addInstruction(new Instruction(Opcode.STOREGLOBAL, end,
+               pool(struct, 8)));
+      fits.addInstruction(new Instruction(Opcode.MOV, start, target));
+      edge(fits, rest);
+
+      // or from a new slab
+      refill.addInstruction(new Instruction(Opcode.STOREOUTARGUMENT,
+               constant(refill, Operand.address(poolName(struct))),
+               Operand.immediate(0)));
+      refill.addInstruction(new Instruction(Opcode.STOREOUTARGUMENT,
+               constant(refill, size), Operand.immediate(1)));
+      refill.addInstruction(new Instruction(Opcode.CALL,
+               Operand.label("__pool_refill"), Operand.immediate(2)));
+      refill.addInstruction(new Instruction(Opcode.LOADRET, target));
+      edge(refill, rest);
+   }
+
+   private void free(BasicBlock block, BasicBlock rest, String struct,
+         Operand object) {
+      BasicBlock push = newBlock(block);
+
+      // deleting null does nothing
+      branch(block, Opcode.CBREQ, object,
+            constant(block, Operand.immediate(0)), rest, push);
+      push.addInstruction(new Instruction(Opcode.STOREAI,
+               load(push, pool(struct, 0)), object, Operand.immediate(0)));
+      push.addInstruction(new Instruction(Opcode.STOREGLOBAL, object,
+               pool(struct, 0)));
+      edge(push, rest);
+   }
+
+   /* the pools and the function that gives a pool a new slab */
+   public static String getRuntime(Set<String> pools) {
+      StringBuilder out = new StringBuilder();
+
+      for (String struct : pools)
+         out.append("\t.comm " + poolName(struct) + " 24, 8\n");
+      out.append("\t.text\n");
+      out.append("__pool_refill:\n");
+      // %rdi is the pool and %rsi the size of an object
+      out.append("\tpushq %rbx\n");
+      out.append("\tpushq %r12\n");
+      out.append("\tsubq $8, %rsp\n");
+      out.append("\tmovq %rdi, %rbx\n");
+      out.append("\tmovq %rsi, %r12\n");
+      out.append("\tmovq %rsi, %rdi\n");
+      out.append("\tsalq $" + SLAB_SHIFT + ", %rdi\n");
+      out.append("\tcall malloc\n");
+      // out of memory, new gives null and the pool is left as it was
+      out.append("\ttestq %rax, %rax\n");
+      out.append("\tje __pool_refill_done\n");
+      // the first object is handed out, the slab starts after it
+      out.append("\tleaq (%rax,%r12), %rcx\n");
+      out.append("\tmovq %rcx, 8(%rbx)\n");
+      out.append("\tsalq $" + SLAB_SHIFT + ", %r12\n");
+      out.append("\taddq %rax, %r12\n");
+      out.append("\tmovq %r12, 16(%rbx)\n");
+      out.append("__pool_refill_done:\n");
+      out.append("\taddq $8, %rsp\n");
+      out.append("\tpopq %r12\n");
+      out.append("\tpopq %rbx\n");
+      out.append("\tretq\n");
+      return out.toString();
+   }
+}
@@ -0,0 +1,85 @@
+import java.util.*;
+
+/*
+   Common base of the register allocators.  An allocator rewrites the x86
+   of one function in place so only physical registers are left, and
+   reports what the prologue has to reserve for it.
+*/
+public abstract class RegisterAllocator {
+   protected BasicBlock fun;
+   protected FlowGraph graph;
+   protected List<BasicBlock> blocks;
+   protected int spillSlots;
+   protected Liveness liveness;
+   private long livenessTime;
+
+   public RegisterAllocator(FlowGraph graph) {
+      this.fun = graph.getEntry();
+      this.graph = graph;
+      this.blocks = graph.getBlocks();
+   }
+
+   public abstract void allocate();
+
+   /* blocks of the function, allocation may add some */
+   public List<BasicBlock> getBlocks() {
+      return blocks;
+   }
+
+   /* number of 8 byte stack slots used for spilled registers */
+   public int getSpillSlots() {
+      return spillSlots;
+   }
+
+   /* the address of a spill slot, slots are numbered from 1 */
+   protected Operand getSlot(int slot) {
+      return Operand.memory(-8 * slot, Operand.RBP);
+   }
+
+   /* callee saved registers that were handed out and need saving */
+   public List<Operand> getUsedCalleeSaved() {
+      List<Operand> used = new LinkedList<Operand>();
+      boolean written[] = new boolean[Operand.PHYSICAL_COUNT];
+
+      for (BasicBlock b : blocks) {
+         for (Instruction ins : b.getInstructions()) {
+            for (Operand reg : ins.getTargets()) {
+               if (reg.isPhysical())
+                  written[reg.getNumber()] = true;
+            }
+         }
+      }
+      for (Operand reg : Instruction.calleeSavedRegisters) {
+         if (written[reg.getNumber()])
+            used.add(reg);
+      }
+      return used;
+   }
+
+   /* nanoseconds spent in liveness analysis */
+   public long getLivenessTime() {
+      return livenessTime;
+   }
+
+   protected void computeLiveness() {
+      long start = System.nanoTime();
+
+      liveness = new Liveness(graph);
+      livenessTime += System.nanoTime() - start;
+   }
+
+   /* drop the moves that allocation turned into copies to self */
+   protected void removeSelfMoves() {
+      for (BasicBlock b : blocks) {
+         List<Instruction> rewritten = new LinkedList<Instruction>();
+
+         for (Instruction ins : b.getInstructions()) {
+            if (ins.getOpcode() == Opcode.MOVQ
+                  && ins.getOperand(0).equals(ins.getOperand(1)))
+               continue;
+            rewritten.add(ins);
+         }
+         b.setInstructions(rewritten);
+      }
+   }
+}
@@ -0,0 +1,434 @@
+import java.util.*;
+
+/*
+   Puts the iloc of one function into static single assignment form and
+   takes it back out again.
+
+   Phi nodes are placed on the iterated dominance frontier of the blocks
+   that define a register, for the registers that are live into some
+   block (semi-pruned form), then every definition gets a register of
+   its own while walking the dominator tree.  A phi has its target first
+   followed by a value and a predecessor label for each incoming edge.
+
+   The conditional moves write a register they also read, those
+   registers are left alone and keep their name.
+
+   Going out of SSA the phis of a block become a parallel copy on each
+   incoming edge.  Critical edges get a block of their own so the copies
+   only run on their edge, and the copies are put in an order where no
+   value is overwritten before it is read.
+*/
+public class SSA {
+   private BasicBlock fun;
+   private FlowGraph graph;
+   private Dominators dominators;
+
+   /* registers that get renamed, by register number */
+   private BitSet renamed = new BitSet();
+
+   /* register a phi was placed for */
+   private Map<Instruction, Operand> phiRegister =
+      new HashMap<Instruction, Operand>();
+
+   public SSA(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public FlowGraph getGraph() {
+      return graph;
+   }
+
+   public Dominators getDominators() {
+      return dominators;
+   }
+
+   public void construct() {
+      graph = new FlowGraph(fun);
+      dominators = new Dominators(graph);
+
+      insertPhis(findGlobals());
+      rename();
+      removeDeadPhis();
+   }
+
+   /*
+      registers read in a block before it writes them, only those need a
+      phi.  Registers read and written by one operand aren't renamed.
+   */
+   private BitSet findGlobals() {
+      BitSet globals = new BitSet();
+      BitSet killed = new BitSet();
+      BitSet excluded = new BitSet();
+
+      for (int b : graph.getReversePostorder()) {
+         killed.clear();
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            for (int i = 0; i < ins.getOperandCount(); i++) {
+               Operand op = ins.getOperand(i);
+               if (!op.isVirtual())
+                  continue;
+               if (ins.getOpcode().isUse(i) && ins.getOpcode().isDef(i))
+                  excluded.set(op.getNumber());
+               if (ins.getOpcode().isUse(i) && !killed.get(op.getNumber()))
+                  globals.set(op.getNumber());
+               renamed.set(op.getNumber());
+            }
+            for (int i = 0; i < ins.getOperandCount(); i++) {
+               Operand op = ins.getOperand(i);
+               if (op.isVirtual() && ins.getOpcode().isDef(i))
+                  killed.set(op.getNumber());
+            }
+         }
+      }
+      renamed.andNot(excluded);
+      globals.and(renamed);
+      return globals;
+   }
+
+   private void insertPhis(BitSet globals) {
+      int n = graph.getBlockCount();
+      List<List<Integer>> defSites = new ArrayList<List<Integer>>();
+      int hasPhi[] = new int[n], inWork[] = new int[n], work[] = new int[n];
+      int iteration = 0;
+
+      for (int r = 0; r < globals.length(); r++)
+         defSites.add(null);
+      for (int b : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            for (Operand reg : ins.getTargets()) {
+               int r = reg.getNumber();
+               if (!globals.get(r))
+                  continue;
+               if (defSites.get(r) == null)
+                  defSites.set(r, new ArrayList<Integer>());
+               List<Integer> sites = defSites.get(r);
+               if (sites.isEmpty() || sites.get(sites.size() - 1) != b)
+                  sites.add(b);
+            }
+         }
+      }
+
+      for (int r = globals.nextSetBit(0); r >= 0;
+            r = globals.nextSetBit(r + 1)) {
+         List<Integer> sites = defSites.get(r);
+         Operand reg = Operand.registerNumber(r);
+         int top = 0;
+
+         if (sites == null)
+            continue;
+         iteration++;
+         for (int b : sites) {
+            inWork[b] = iteration;
+            work[top++] = b;
+         }
+         while (top > 0) {
+            for (int d : dominators.getFrontier(work[--top])) {
+               if (hasPhi[d] == iteration)
+                  continue;
+               hasPhi[d] = iteration;
+               addPhi(d, reg);
+               if (inWork[d] != iteration) {
+                  inWork[d] = iteration;
+                  work[top++] = d;
+               }
+            }
+         }
+      }
+   }
+
+   private void addPhi(int id, Operand reg) {
+      Instruction phi = new Instruction(Opcode.PHI, reg);
+
+      for (int p : graph.getPredecessors(id)) {
+         phi.addOperand(reg);
+         phi.addOperand(Operand.label(graph.getBlock(p).getLabel()));
+      }
+      graph.getBlock(id).getInstructions().add(0, phi);
+      phiRegister.put(phi, reg);
+   }
+
+   /*
+      walk the dominator tree keeping the current name of every register,
+      the names a block introduced are undone from a log when the walk
+      leaves it
+   */
+   private void rename() {
+      Operand current[] = new Operand[renamed.length()];
+      List<Integer> logRegister = new ArrayList<Integer>();
+      List<Operand> logName = new ArrayList<Operand>();
+      int mark[] = new int[graph.getBlockCount()];
+      int stack[] = new int[2 * graph.size()];
+      int top = 0;
+
+      stack[top++] = graph.getReversePostorder()[0];
+      while (top > 0) {
+         int b = stack[--top];
+
+         if (b < 0) {
+            b = -b - 1;
+            while (logRegister.size() > mark[b]) {
+               int last = logRegister.size() - 1;
+               current[logRegister.remove(last)] = logName.remove(last);
+            }
+            continue;
+         }
+
+         mark[b] = logRegister.size();
+         BasicBlock block = graph.getBlock(b);
+         for (Instruction ins : block.getInstructions()) {
+            if (ins.getOpcode() != Opcode.PHI) {
+               for (int i = 0; i < ins.getOperandCount(); i++) {
+                  Operand op = ins.getOperand(i);
+                  if (ins.getOpcode().isUse(i) && isRenamed(op)
+                        && current[op.getNumber()] != null)
+                     ins.setOperand(i, current[op.getNumber()]);
+               }
+            }
+            for (int i = 0; i < ins.getOperandCount(); i++) {
+               Operand op = ins.getOperand(i);
+               if (!ins.getOpcode().isDef(i) || !isRenamed(op))
+                  continue;
+               Operand name = fun.getNextRegister();
+               logRegister.add(op.getNumber());
+               logName.add(current[op.getNumber()]);
+               current[op.getNumber()] = name;
+               ins.setOperand(i, name);
+            }
+         }
+
+         Operand label = Operand.label(block.getLabel());
+         for (int s : graph.getSuccessors(b)) {
+            for (Instruction phi : graph.getBlock(s).getInstructions()) {
+               if (phi.getOpcode() != Opcode.PHI)
+                  break;
+               Operand reg = phiRegister.get(phi);
+               if (current[reg.getNumber()] == null)
+                  continue;
+               for (int i = 2; i < phi.getOperandCount(); i += 2) {
+                  if (phi.getOperand(i).equals(label))
+                     phi.setOperand(i - 1, current[reg.getNumber()]);
+               }
+            }
+         }
+
+         stack[top++] = -b - 1;
+         int children[] = dominators.getChildren(b);
+         for (int i = children.length - 1; i >= 0; i--)
+            stack[top++] = children[i];
+      }
+   }
+
+   /* only registers that are in the function from before SSA get renamed */
+   private boolean isRenamed(Operand op) {
+      return op.isVirtual() && renamed.get(op.getNumber());
+   }
+
+   /*
+      semi-pruned form leaves phis for registers that are dead at the
+      join.  A phi is kept if something other than a phi reads it or a
+      phi that is kept does, so dead cycles of phis go away as well.
+   */
+   private void removeDeadPhis() {
+      Map<Operand, Instruction> phis = new HashMap<Operand, Instruction>();
+      Set<Instruction> live = new HashSet<Instruction>();
+      Stack<Instruction> work = new Stack<Instruction>();
+
+      for (int b : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            if (ins.getOpcode() == Opcode.PHI)
+               phis.put(ins.getOperand(0), ins);
+         }
+      }
+      if (phis.isEmpty())
+         return;
+
+      for (int b : graph.getReversePostorder()) {
+         for (Instruction ins : graph.getBlock(b).getInstructions()) {
+            if (ins.getOpcode() == Opcode.PHI)
+               continue;
+            for (Operand reg : ins.getSources()) {
+               Instruction phi = phis.get(reg);
+               if (phi != null && live.add(phi))
+                  work.push(phi);
+            }
+         }
+      }
+      while (!work.empty()) {
+         for (Operand reg : work.pop().getSources()) {
+            Instruction phi = phis.get(reg);
+            if (phi != null && live.add(phi))
+               work.push(phi);
+         }
+      }
+
+      for (int b : graph.getReversePostorder()) {
+         Iterator<Instruction> it =
+            graph.getBlock(b).getInstructions().iterator();
+         while (it.hasNext()) {
+            Instruction ins = it.next();
+            if (ins.getOpcode() != Opcode.PHI)
+               break;
+            if (!live.contains(ins)) {
+               phiRegister.remove(ins);
+               it.remove();
+            }
+         }
+      }
+   }
+
+   /* drop an edge along with the values the phis of succ get over it */
+   public static void removeEdge(BasicBlock pred, BasicBlock succ) {
+      Operand label = Operand.label(pred.getLabel());
+
+      pred.getOutgoing().remove(succ);
+      succ.getIncoming().remove(pred);
+      for (Instruction ins : succ.getInstructions()) {
+         if (ins.getOpcode() != Opcode.PHI)
+            break;
+         for (int i = 2; i < ins.getOperandCount(); i += 2) {
+            if (ins.getOperand(i).equals(label)) {
+               ins.removeOperand(i);
+               ins.removeOperand(i - 1);
+               break;
+            }
+         }
+      }
+   }
+
+   /* replace the phis with copies on the incoming edges */
+   public void destruct() {
+      FlowGraph graph = new FlowGraph(fun);
+
+      for (int s : graph.getReversePostorder()) {
+         BasicBlock succ = graph.getBlock(s);
+         List<Instruction> phis = new ArrayList<Instruction>();
+
+         for (Instruction ins : succ.getInstructions()) {
+            if (ins.getOpcode() != Opcode.PHI)
+               break;
+            phis.add(ins);
+         }
+         if (phis.isEmpty())
+            continue;
+
+         for (int p : distinct(graph.getPredecessors(s))) {
+            BasicBlock pred = graph.getBlock(p);
+            Operand label = Operand.label(pred.getLabel());
+            List<Operand[]> copies = new ArrayList<Operand[]>();
+
+            for (Instruction phi : phis) {
+               for (int i = 2; i < phi.getOperandCount(); i += 2) {
+                  if (phi.getOperand(i).equals(label)) {
+                     copies.add(new Operand[] {phi.getOperand(i - 1),
+                        phi.getOperand(0)});
+                     break;
+                  }
+               }
+            }
+            insertCopies(pred, succ, sequentialize(copies));
+         }
+         succ.getInstructions().subList(0, phis.size()).clear();
+      }
+   }
+
+   private int[] distinct(int ids[]) {
+      int result[] = new int[ids.length];
+      int count = 0;
+
+      for (int id : ids) {
+         boolean seen = false;
+         for (int i = 0; i < count; i++)
+            seen |= result[i] == id;
+         if (!seen)
+            result[count++] = id;
+      }
+      return Arrays.copyOf(result, count);
+   }
+
+   /* copies go at the end of the predecessor unless it has other exits */
+   private void insertCopies(BasicBlock pred, BasicBlock succ,
+         List<Instruction> copies) {
+      if (copies.isEmpty())
+         return;
+
+      if (pred.getOutgoing().size() == 1) {
+         List<Instruction> instructions = pred.getInstructions();
+         int index = instructions.size();
+         if (index > 0 && instructions.get(index - 1).getOpcode().isBranch())
+            index--;
+         instructions.addAll(index, copies);
+         return;
+      }
+
+      // critical edge, the copies get a block of their own
+      BasicBlock edge = fun.createBlock(pred + "_" + succ);
+      Operand from = Operand.label(succ.getLabel());
+      Operand to = Operand.label(edge.getLabel());
+      List<BasicBlock> outgoing = pred.getOutgoing();
+      List<BasicBlock> incoming = succ.getIncoming();
+
+      for (int i = 0; i < outgoing.size(); i++) {
+         if (outgoing.get(i) == succ)
+            outgoing.set(i, edge);
+      }
+      for (int i = 0; i < incoming.size(); i++) {
+         if (incoming.get(i) == pred)
+            incoming.set(i, edge);
+      }
+      edge.addIncoming(pred);
+      edge.addOutgoing(succ);
+      for (Instruction ins : pred.getInstructions()) {
+         if (ins.getOpcode().isBranch())
+            ins.replaceOperand(from, to);
+      }
+      for (Instruction ins : succ.getInstructions()) {
+         if (ins.getOpcode() == Opcode.PHI)
+            ins.replaceOperand(Operand.label(pred.getLabel()), to);
+      }
+      edge.getInstructions().addAll(copies);
+   }
+
+   /*
+      order a parallel copy so each source is read before it is written,
+      a cycle is broken by saving one value in a new register
+   */
+   private List<Instruction> sequentialize(List<Operand[]> parallel) {
+      List<Instruction> result = new ArrayList<Instruction>();
+      List<Operand[]> pending = new LinkedList<Operand[]>();
+
+      for (Operand[] copy : parallel) {
+         if (!copy[0].equals(copy[1]))
+            pending.add(copy);
+      }
+
+      while (!pending.isEmpty()) {
+         Operand[] ready = null;
+         for (Operand[] copy : pending) {
+            boolean blocked = false;
+            for (Operand[] other : pending) {
+               if (other != copy && other[0].equals(copy[1]))
+                  blocked = true;
+            }
+            if (!blocked) {
+               ready = copy;
+               break;
+            }
+         }
+
+         if (ready != null) {
+            pending.remove(ready);
+            result.add(new Instruction(Opcode.MOV, ready[0], ready[1]));
+            continue;
+         }
+
+         Operand saved = pending.get(0)[1];
+         Operand tmp = fun.getNextRegister();
+         result.add(new Instruction(Opcode.MOV, saved, tmp));
+         for (Operand[] copy : pending) {
+            if (copy[0].equals(saved))
+               copy[0] = tmp;
+         }
+      }
+      return result;
+   }
+}
@@ -1,16 +1,63 @@
 import java.util.*;
 
+/*
+   A struct lives on the heap and a value of struct type is a pointer to
+   it.  The fields are laid out the first time an offset is asked for,
+   largest alignment first so that no padding goes between them, with
+   each field as wide as its type: a bool takes a single byte.  Functions
+   built at the same time may lay a struct out at once, the one that
+   finishes last stores the same layout again.
+*/
 public class StructType extends Type {
+    public String name;
     public HashMap<String, Type> members = new LinkedHashMap<String, Type>();
 
+    /* set last, so whoever sees it sees objectSize too */
+    private volatile Map<String, Integer> offsets;
+    private int objectSize;
+
     public List<String> memberList() {
         return new ArrayList<String>(members.keySet());
     }
 
+    /* a field or variable of struct type holds a pointer */
     public int size() {
-       int result = 0;
-       for (String key: memberList())
-          result += members.get(key).size();
        return 8;
     }
+
+    /* bytes from the start of the struct to the field */
+    public int getOffset(String member) {
+       layout();
+       return offsets.get(member);
+    }
+
+    /* bytes to allocate for one struct, padded to its alignment */
+    public int getObjectSize() {
+       layout();
+       return objectSize;
+    }
+
+    private void layout() {
+       if (offsets != null)
+          return;
+
+       List<String> order = memberList();
+       Collections.sort(order, new Comparator<String>() {
+          public int compare(String a, String b) {
+             return members.get(b).size() - members.get(a).size();
+          }
+       });
+
+       Map<String, Integer> layout = new HashMap<String, Integer>();
+       int offset = 0, alignment = 1;
+       for (String member : order) {
+          int size = members.get(member).size();
+          // sizes are powers of two and never grow, so this is aligned
+          layout.put(member, offset);
+          offset += size;
+          alignment = Math.max(alignment, size);
+       }
+       objectSize = (offset + alignment - 1) / alignment * alignment;
+       offsets = layout;
+    }
 }
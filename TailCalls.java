@@ -0,0 +1,195 @@
+import java.util.*;
+
+/*
+   Calls in tail position of one function: a call followed by nothing
+   but passing its result on and returning.  A call of the function
+   itself becomes copies of the arguments into the parameters and a jump
+   back to just after the parameters are loaded, so the recursion is a
+   loop.  Any other tail call whose arguments all go in registers becomes
+   a tailcall, which X86 expands into the epilogue and a jmp, so the
+   callee returns straight to our caller from the frame we gave up.
+
+   Both keep the stack from growing with the depth of the recursion.  A
+   call that passes arguments on the stack stays a call: they would have
+   to go where our own arguments are, which may not have room for them.
+
+   Runs on the final iloc, so it sees the returns copied into the blocks
+   by ControlFlowSimplification.
+*/
+public class TailCalls {
+   /* arguments passed in registers */
+   private static final int REGISTER_ARGUMENTS = 6;
+
+   private BasicBlock fun;
+   private BasicBlock loop;
+   private Map<Long, Operand> parameters = new HashMap<Long, Operand>();
+
+   public TailCalls(BasicBlock fun) {
+      this.fun = fun;
+   }
+
+   public void run() {
+      List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+
+      for (BasicBlock block : fun.getFunctionBlocks()) {
+         int call = tailCall(block);
+         if (call < 0)
+            continue;
+         blocks.add(block);
+         if (isSelfCall(block, call) && loop == null)
+            splitEntry();
+      }
+
+      for (BasicBlock block : blocks) {
+         // a call in the entry block has moved into the loop
+         if (block == fun && loop != null)
+            block = loop;
+         int call = tailCall(block);
+         int argCount = (int)block.getInstructions().get(call)
+            .getOperand(1).getValue();
+         if (isSelfCall(block, call))
+            loop(block, call, argCount);
+         else if (argCount <= REGISTER_ARGUMENTS)
+            jump(block, call);
+      }
+   }
+
+   /* a call of this function that loop can take apart */
+   private boolean isSelfCall(BasicBlock block, int call) {
+      Instruction ins = block.getInstructions().get(call);
+      return ins.getOperand(0).getName().equals(fun.getLabel())
+         && isStored(block, call, (int)ins.getOperand(1).getValue());
+   }
+
+   /* where in block a call in tail position is, -1 if there is none */
+   private int tailCall(BasicBlock block) {
+      List<Instruction> instructions = block.getInstructions();
+      int end = instructions.size();
+
+      // the return is in the block or in the one it goes on to
+      if (end > 0 && instructions.get(end - 1).getOpcode() == Opcode.RET) {
+         end--;
+      }
+      else if (block.getOutgoing().size() == 1
+            && isReturn(block.getOutgoing().get(0))) {
+         if (end > 0
+               && instructions.get(end - 1).getOpcode() == Opcode.JUMPI)
+            end--;
+      }
+      else {
+         return -1;
+      }
+
+      // and the result of the call is all that is returned
+      if (end >= 2 && instructions.get(end - 1).getOpcode() == Opcode.STORERET
+            && instructions.get(end - 2).getOpcode() == Opcode.LOADRET
+            && instructions.get(end - 1).getOperand(0).equals(
+               instructions.get(end - 2).getOperand(0)))
+         end -= 2;
+      else if (fun.returnsValue())
+         return -1;
+
+      if (end == 0 || instructions.get(end - 1).getOpcode() != Opcode.CALL)
+         return -1;
+      return end - 1;
+   }
+
+   private static boolean isReturn(BasicBlock block) {
+      List<Instruction> instructions = block.getInstructions();
+      return instructions.size() == 1
+         && instructions.get(0).getOpcode() == Opcode.RET;
+   }
+
+   /*
+      true if the arguments are stored right before the call, in order.
+      The inliner asks this too.
+   */
+   static boolean isStored(BasicBlock block, int call, int argCount) {
+      List<Instruction> instructions = block.getInstructions();
+
+      if (call < argCount)
+         return false;
+      for (int i = 0; i < argCount; i++) {
+         Instruction store = instructions.get(call - argCount + i);
+         if (store.getOpcode() != Opcode.STOREOUTARGUMENT
+               || store.getOperand(1).getValue() != i)
+            return false;
+      }
+      return true;
+   }
+
+   private void jump(BasicBlock block, int call) {
+      List<Instruction> instructions = block.getInstructions();
+      Instruction ins = instructions.get(call);
+
+      instructions.subList(call, instructions.size()).clear();
+      instructions.add(new Instruction(Opcode.TAILCALL, ins.getOperand(0),
+               ins.getOperand(1)));
+      leave(block);
+   }
+
+   /*
+      the arguments go to temporaries first, one of them may read a
+      parameter an earlier one writes
+   */
+   private void loop(BasicBlock block, int call, int argCount) {
+      List<Instruction> instructions = block.getInstructions();
+      List<Instruction> arguments = new ArrayList<Instruction>();
+      List<Instruction> copies = new ArrayList<Instruction>();
+
+      for (int i = 0; i < argCount; i++) {
+         Instruction store = instructions.get(call - argCount + i);
+         Operand parameter = parameters.get((long)i);
+         // a parameter nothing reads was never loaded
+         if (parameter == null)
+            continue;
+         Operand temp = fun.getNextRegister();
+         arguments.add(new Instruction(Opcode.MOV, store.getOperand(0),
+                  temp));
+         copies.add(new Instruction(Opcode.MOV, temp, parameter));
+      }
+
+      instructions.subList(call - argCount, instructions.size()).clear();
+      instructions.addAll(arguments);
+      instructions.addAll(copies);
+      instructions.add(new Instruction(Opcode.JUMPI,
+               Operand.label(loop.getLabel())));
+      leave(block);
+      block.addOutgoing(loop);
+      loop.addIncoming(block);
+   }
+
+   /* a tail call ends its block, it goes nowhere else */
+   private void leave(BasicBlock block) {
+      for (BasicBlock succ : block.getOutgoing())
+         succ.getIncoming().remove(block);
+      block.getOutgoing().clear();
+   }
+
+   /* the loop starts after the parameters are loaded */
+   private void splitEntry() {
+      List<Instruction> instructions = fun.getInstructions();
+      int start = 0;
+
+      while (start < instructions.size() && instructions.get(start)
+            .getOpcode() == Opcode.LOADINARGUMENT) {
+         Instruction load = instructions.get(start);
+         parameters.put(load.getOperand(1).getValue(), load.getOperand(2));
+         start++;
+      }
+
+      loop = fun.createBlock(fun.getLabel() + "_loop");
+      List<Instruction> body = instructions.subList(start,
+            instructions.size());
+      loop.getInstructions().addAll(body);
+      body.clear();
+      for (BasicBlock succ : fun.getOutgoing()) {
+         List<BasicBlock> incoming = succ.getIncoming();
+         incoming.set(incoming.indexOf(fun), loop);
+         loop.addOutgoing(succ);
+      }
+      fun.getOutgoing().clear();
+      fun.addOutgoing(loop);
+      loop.addIncoming(fun);
+   }
+}
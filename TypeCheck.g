@@ -21,15 +21,19 @@ options
     private HashMap<String, Type> structTable = new HashMap<String, Type>();
     private FunType currentFun;
 
+    // stop at the first error, the compiler tells the user
+    private void error(String message) {
+        throw new CompileError(message);
+    }
+
     // check that a variable exists
     private Type checkVar(CommonTree id, HashMap<String, Type> localScope) {
         Type varType = localScope.get(id.getText());
         if (varType == null) {
             varType = globalTable.get(id.getText());
             if (varType == null) {
-                System.out.println("Line " + id.getLine() + ": identifier " +
+                error("Line " + id.getLine() + ": identifier " +
                     id.getText() + " doesn't exist");
-                System.exit(1);
             }
         }
         return varType;
@@ -39,9 +43,8 @@ options
     private Type checkMember(CommonTree id, StructType struct) {
         Type member = struct.members.get(id.getText());
         if (member == null) {
-            System.out.println("Line " + id.getLine() + ": member " +
+            error("Line " + id.getLine() + ": member " +
                 id.getText() + " doesn't exist");
-            System.exit(1);
         }
         return member;
     }
@@ -51,16 +54,14 @@ options
         Type fun = globalTable.get(id.getText());
         if (fun != null) {
             if (!(fun instanceof FunType)) {
-                System.out.println("Line " + id.getLine() + ": " + 
+                error("Line " + id.getLine() + ": " + 
                     id.getText() + " is not a function");
-                System.exit(1);
             }  
             checkArgs(id, (FunType)fun, args);
         }
         else {
-            System.out.println("Line " + id.getLine() + ": " + 
+            error("Line " + id.getLine() + ": " + 
                 id.getText() + " does not exists");
-            System.exit(1);
         }
       }
 
@@ -71,8 +72,7 @@ options
                 " function arguments mismatch";
 
         if (fun.params.size() != args.size()) {
-            System.out.println(errorMsg);
-            System.exit(1);
+            error(errorMsg);
         }
         for (int i = 0; i < fun.params.size(); i++) {
             param = fun.params.get(i);
@@ -82,8 +82,7 @@ options
                 if (!(param instanceof StructType && 
                     args.get(i) instanceof NullType)) {
 
-                    System.out.println(errorMsg);
-                    System.exit(1);
+                    error(errorMsg);
                 }
             } 
         }
@@ -96,17 +95,14 @@ translate
          {
             Type mainType = globalTable.get("main");
             if (mainType == null) {
-                System.out.println("missing main function");
-                System.exit(1);
+                error("missing main function");
             }
             FunType mainFun = (FunType)mainType;
             if (mainFun.params.size() != 0) {
-                System.out.println("main must take no arguments"); 
-                System.exit(1);
+                error("main must take no arguments");
             }
             if (!(mainFun.returnType instanceof IntType)) {
-                System.out.println("main must return an int"); 
-                System.exit(1);
+                error("main must return an int");
             }
          }
    ;
@@ -120,9 +116,8 @@ type_decl
     @init{ StructType st = new StructType(); }
    :  ^(ast=STRUCT id=ID {
         if (structTable.get($id.text) != null) {
-            System.out.println("Line " + $id.line + 
+            error("Line " + $id.line + 
                     ": duplicate type definition");
-            System.exit(1);
         }
         structTable.put($id.text, st); 
         }   
@@ -149,9 +144,8 @@ type
         $t = structTable.get($id.text);
 
         if ($t == null) {
-            System.out.println("Line " + $id.line + 
+            error("Line " + $id.line + 
                     ": unknown definition for " + $id.text);
-            System.exit(1);
         }
         }
    ;
@@ -166,9 +160,8 @@ decl_list[HashMap<String, Type> scope]
          (id=ID
             {
                 if (scope.get($id.text) != null) {
-                    System.out.println("Line " + $id.line +
+                    error("Line " + $id.line +
                         " duplicate definition of " + $id.text);
-                    System.exit(1); 
                 }
                 scope.put($id.text, $t.t);
             }
@@ -194,9 +187,8 @@ function[HashMap<String, Type> globalScope]
         d=declarations[localScope] s=statement_list[localScope]) 
     {
         if (currentFun.returnType != null && !currentFun.returns) {
-            System.out.println("Line " + $ast.line + ": " + "function " +
+            error("Line " + $ast.line + ": " + "function " +
                 $id.text + " doesn't seem to return");
-            System.exit(1);
         }
     }
    ;
@@ -219,8 +211,7 @@ return_type[FunType fun]
 
 rtype[FunType fun]
    :  t=type {  if ($t.t instanceof NullType) {
-                    System.out.println("invalid return");
-                    System.exit(1);
+                    error("invalid return");
                 }
                 fun.returnType = $t.t; 
             }
@@ -254,8 +245,7 @@ assignment[HashMap<String, Type> scope]
         if ($e.type.getClass() != $l.type.getClass()) {
             if (!($l.type instanceof StructType) || 
                 !($e.type instanceof NullType)) { 
-                    System.out.println("Line " + $ast.line + ": type mismatch");
-                    System.exit(1);
+                    error("Line " + $ast.line + ": type mismatch");
             }
         }
       }
@@ -290,8 +280,9 @@ loop[HashMap<String, Type> scope]
 delete[HashMap<String, Type> scope]
    :  ^(ast=DELETE e=expression[scope])
       {
+        // the iloc for delete names the struct, there is none to name
         if (!($e.type instanceof StructType)) {
-            System.out.println("Line " + $ast.line + 
+            error("Line " + $ast.line + 
                 ": delete requires a struct");
         }
       }
@@ -303,17 +294,15 @@ return_stmt[HashMap<String, Type> scope]
         // check that void functions don't return anything
         if (currentFun.returnType == null) {
             if ($exp.type != null) {
-                System.out.println("Line " + $ast.line + ": " +
+                error("Line " + $ast.line + ": " +
                     "void function must not return a value");
-                System.exit(1);
             }
         } 
 
         // check that nonvoid functions return something
         else if (currentFun.returnType != null && $exp.type == null) {
-                System.out.println("Line " + $ast.line + ": " +
+                error("Line " + $ast.line + ": " +
                     "nonvoid function must return a value");
-                System.exit(1);
         }
 
         // check struct return 
@@ -321,16 +310,14 @@ return_stmt[HashMap<String, Type> scope]
             if (!($exp.type instanceof StructType || 
                     $exp.type instanceof NullType)) { 
 
-                System.out.println("Line " + $ast.line + ": " +
+                error("Line " + $ast.line + ": " +
                     "function must return a struct value");
-                System.exit(1);
             }
         } 
 
         else if (currentFun.returnType.getClass() != $exp.type.getClass()) {
-            System.out.println("Line " + $ast.line + ": " +
+            error("Line " + $ast.line + ": " +
                 "function returns the wrong type");
-            System.exit(1);
         }
 
         currentFun.returns = true;
@@ -353,9 +340,8 @@ lvalue[HashMap<String, Type> localScope]
    |  ^(ast=DOT l=lvalue[localScope] id=ID)
       {
         if (!($l.type instanceof StructType)) {
-            System.out.println("lvalue at line " + $ast.line + ": " +
+            error("lvalue at line " + $ast.line + ": " +
                 $id.text + " is not a structure");
-            System.exit(1);
         }
         $type = checkMember(id, (StructType)$l.type);
       }
@@ -375,18 +361,16 @@ expression[HashMap<String, Type> localScope]
         if (leftType instanceof IntType || rightType instanceof IntType) {
             if (!(rightType instanceof IntType) || 
                     !(leftType instanceof IntType)) {
-                System.out.println("Line " + $ast.line + ": " + $ast.text +
+                error("Line " + $ast.line + ": " + $ast.text +
                     " invalid operands, both must be ints");
-                System.exit(1); 
             }
         }
         else if (leftType instanceof BoolType || rightType instanceof 
                     BoolType) {
             if (!(leftType instanceof BoolType) || 
                     !(rightType instanceof BoolType)) {
-                System.out.println("Line " + $ast.line + ": " + $ast.text +
+                error("Line " + $ast.line + ": " + $ast.text +
                     " invalid operands, both must be bool");
-                System.exit(1); 
             }
         }
         else if (leftType instanceof StructType || 
@@ -398,15 +382,13 @@ expression[HashMap<String, Type> localScope]
                     !(rightType instanceof StructType ||
                     rightType instanceof NullType)) { 
 
-                System.out.println("Line " + $ast.line + 
-                    ": invalid operands, must be structs."); 
-                System.exit(1); 
+                error("Line " + $ast.line + 
+                    ": invalid operands, must be structs.");
             }
         } 
         else {
-            System.out.println("Line " + $ast.line + 
-                ": unknow type"); 
-            System.exit(1); 
+            error("Line " + $ast.line + 
+                ": unknow type");
         } 
          $type = BoolType.getInstance();
     }
@@ -415,9 +397,8 @@ expression[HashMap<String, Type> localScope]
         {
             if (!($lft.type instanceof BoolType) || 
                     !($rht.type instanceof BoolType)) {
-                System.out.println("Line " + $ast.line + ": " + $ast.text +
+                error("Line " + $ast.line + ": " + $ast.text +
                     " expects boolean operands");
-                System.exit(1); 
             }
             $type = BoolType.getInstance();
         }
@@ -428,9 +409,8 @@ expression[HashMap<String, Type> localScope]
         // check if operands are int
             if (!($lft.type instanceof IntType) || 
                     !($rht.type instanceof IntType)) {
-                System.out.println("Line " + $ast.line + ": " + $ast.text +
+                error("Line " + $ast.line + ": " + $ast.text +
                     " expects integer  operands");
-                System.exit(1); 
             }
 
             String operator = $ast.text;
@@ -445,16 +425,14 @@ expression[HashMap<String, Type> localScope]
    |  ^(ast=NOT exp=expression[localScope])
       {
         if (!($exp.type instanceof BoolType)) {
-            System.out.println("Line " + $ast.line + ": expected boolean exp");
-            System.exit(1);
+            error("Line " + $ast.line + ": expected boolean exp");
         }
         $type = $exp.type;
       }
    |  ^(ast=NEG exp=expression[localScope])
       {
         if (!($exp.type instanceof IntType)) {
-            System.out.println("Line " + $ast.line + ": expected int exp");
-            System.exit(1);
+            error("Line " + $ast.line + ": expected int exp");
         }
         $type = $exp.type;
       }
@@ -463,9 +441,8 @@ expression[HashMap<String, Type> localScope]
         StructType st;
 
         if (!($left.type instanceof StructType)) {
-            System.out.println("Line " + $ast.line + ": " +
+            error("Line " + $ast.line + ": " +
                 $left.text + " is not a structure");
-            System.exit(1);
         }
         $type = checkMember(id, (StructType)($left.type));
       }
@@ -477,6 +454,13 @@ expression[HashMap<String, Type> localScope]
       }
    |  i=INTEGER
       {
+        try {
+            Long.parseLong($i.text);
+        }
+        catch (NumberFormatException ex) {
+            error("Line " + $i.line + ": integer " + $i.text +
+                " does not fit in 64 bits");
+        }
         $type = IntType.getInstance();
       }
    |  ast=TRUE
@@ -491,9 +475,8 @@ expression[HashMap<String, Type> localScope]
       {
         $type = structTable.get($id.text);
         if ($type == null) {
-            System.out.println("Line " + $id.line + ": " + $id.text +
+            error("Line " + $id.line + ": " + $id.text +
                 " was not defined");
-            System.exit(1);
         }
       }
    |  ast=NULL
@@ -1,12 +1,49 @@
 import java.util.*;
 
 public class X86 {
+    /* what a function is emitted as, all there is to link of it */
+    public static class Function {
+        private String asm;
+        private Set<String> pools;   /* structs it takes from pools */
+        private int peephole[];      /* how often each rule fired */
+
+        public Function(String asm, Set<String> pools, int peephole[]) {
+            this.asm = asm;
+            this.pools = pools;
+            this.peephole = peephole;
+        }
+
+        public String getAsm() {
+            return asm;
+        }
+
+        public Set<String> getPools() {
+            return pools;
+        }
+
+        public int[] getPeepholeCounts() {
+            return peephole;
+        }
+    }
+
     private List<BasicBlock> funs;
     private List<BasicBlock> exitBlocks;
     private String filename;
     private StringBuilder out;
     private HashMap<String, Type> globals;
 
+    /* frame layout of the function being emitted */
+    private int spillSlots;
+    private List<Operand> savedRegisters;
+
+    private boolean linearScan;  /* use the fast linear scan allocator */
+    private boolean pooled;      /* new and delete go to pools */
+    private Set<String> pools = new TreeSet<String>();
+    private Peephole peephole = new Peephole();
+    private FunctionPool functionPool = new FunctionPool(1);
+    private long allocationTime; /* nanoseconds spent allocating registers */
+    private long livenessTime;   /* part of it spent in liveness analysis */
+
     public X86(String filename, List<BasicBlock> funs, 
           List<BasicBlock> exitBlocks, HashMap<String, Type> globals) {
         this.filename = filename;
@@ -15,34 +52,83 @@ public class X86 {
         out = new StringBuilder();
     }
 
+    /* emits a single function of program, on a thread of the pool */
+    private X86(X86 program) {
+        linearScan = program.linearScan;
+        pooled = program.pooled;
+        out = new StringBuilder();
+    }
+
     public String go() {
+        return link(emit());
+    }
+
+    /* emits the functions on the pool, in the order of funs */
+    public List<Function> emit() {
+        List<X86> functions = functionPool.map(funs,
+              new FunctionPool.Task<BasicBlock, X86>() {
+                 public X86 run(BasicBlock f) {
+                    X86 function = new X86(X86.this);
+                    function.addFunction(f);
+                    return function;
+                 }
+              });
+        List<Function> result = new ArrayList<Function>(functions.size());
+
+        for (X86 function : functions) {
+            result.add(new Function(function.out.toString(), function.pools,
+                     function.peephole.getCounts()));
+            allocationTime += function.allocationTime;
+            livenessTime += function.livenessTime;
+        }
+        return result;
+    }
+
+    /* the file of the program, its functions emitted now or earlier */
+    public String link(List<Function> functions) {
         out.append("\t.file \"" + filename + "\"\n");
 
         for (String key: globals.keySet()) {
            if (!(globals.get(key) instanceof FunType))
               out.append("\t.comm " + key + " 8, 8\n");
         }
-        
-        // global variable used to read in values
-        out.append("\t.comm readtmp 8, 8\n");
-
-        out.append("\t.section\t.rodata\n");
-        out.append(".LC0:\n");
-        out.append("\t.string \"%ld\"\n");
-        out.append(".LC1:\n");
-        out.append("\t.string \"%ld\\n\"\n");
-      
+
         out.append("\t.text\n");
-        for (BasicBlock f : funs) {
-            addFunctionPrologue(f);            
-            addFunctionCode(f);
-            addFunctionEpilogue();
+        for (Function function : functions) {
+            out.append(function.getAsm());
+            pools.addAll(function.getPools());
+            peephole.addCounts(function.getPeepholeCounts());
         }
+        if (!pools.isEmpty())
+            out.append(PooledAllocation.getRuntime(pools));
+        out.append(BufferedIO.getRuntime());
         return out.toString();
     }
 
+    private void addFunction(BasicBlock f) {
+        new TailCalls(f).run();
+        if (pooled)
+            new PooledAllocation(f, pools).run();
+        FlowGraph graph = new FlowGraph(f);
+        new InstructionSelector(graph).select();
+        allocateRegisters(graph);
+        // allocation may have split edges, so look at the graph as is now
+        graph = new FlowGraph(f);
+        peephole.optimize(graph);
+        addFunctionPrologue(f);
+        addFunctionCode(new BlockLayout(graph).getBlocks());
+    }
+
     private void addFunctionPrologue(BasicBlock fun) {
         int argSize = fun.getMaxArgCount() - 6;
+        int frameSize = (spillSlots + savedRegisters.size()) * 8;
+
+        if (argSize > 0)
+            frameSize += argSize * 8;
+        // structs that don't escape sit right above the outgoing arguments
+        frameSize += fun.getFrameObjectSize();
+        // keep %rsp 16 byte aligned for calls
+        frameSize = (frameSize + 15) / 16 * 16;
 
         out.append(".globl " + fun.getLabel() + "\n");
         out.append("\t.type " + fun.getLabel() + ", @function\n");
@@ -50,127 +136,122 @@ public class X86 {
 
         out.append("\tpushq %rbp\n");
         out.append("\tmovq %rsp, %rbp\n");
-        if (argSize > 0) {
-            argSize *= 8;
-            out.append("\tsubq $" + argSize + ", %rsp\n");
+        if (frameSize > 0) {
+            out.append("\tsubq $" + frameSize + ", %rsp\n");
+        }
+        for (int i = 0; i < savedRegisters.size(); i++) {
+            out.append("\tmovq " + savedRegisters.get(i) + ", " 
+                  + getSaveSlot(i) + "\n");
         }
     }
 
-    private void addFunctionEpilogue() {
+    /* leave is how control goes, a retq or the jmp of a tail call */
+    private void addFunctionEpilogue(String leave) {
+        for (int i = 0; i < savedRegisters.size(); i++) {
+            out.append("\tmovq " + getSaveSlot(i) + ", " 
+                  + savedRegisters.get(i) + "\n");
+        }
         out.append("\tmovq %rbp, %rsp\n");
         out.append("\tpopq %rbp\n");
-        out.append("\tretq\n");
+        out.append("\t" + leave + "\n");
     }
 
-    private void addFunctionCode(BasicBlock fun) {
-       Stack<BasicBlock> stack = new Stack<BasicBlock>();
-       HashMap<String, BasicBlock> map = new HashMap<String, BasicBlock>();
-       BasicBlock nextBlock;
-
-       stack.push(fun);
+    /* callee saved registers are kept below the spill slots */
+    private String getSaveSlot(int index) {
+        return "-" + ((spillSlots + index + 1) * 8) + "(%rbp)";
+    }
 
-       while (!stack.empty()) {
-           nextBlock = stack.pop();
-           nextBlock.transform();
-           map.put(nextBlock.getLabel(), nextBlock);
-           addBlockString(nextBlock);
-           addChildren(nextBlock, stack, map);
+    private void addFunctionCode(List<BasicBlock> blocks) {
+       for (int i = 0; i < blocks.size(); i++) {
+           BasicBlock next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+           addBlockString(blocks.get(i), next);
        }
    }
 
-   private void addBlockString(BasicBlock block) {
+   /*
+      the jumps at the end of a block are redone for where it ends up: a
+      conditional jump to the next block is turned around to go to the
+      fall through instead, and a jump to the next block is left out
+   */
+   private void addBlockString(BasicBlock block, BasicBlock next) {
        List<Instruction> instructions = block.getInstructions();
+       Instruction branch = null;
 
        if (!block.isEntryBlock())
             out.append(block + ":\n");
 
-       for (Instruction op : instructions)
-            out.append("\t" + op + "\n");
-   }
+       for (Instruction op : instructions) {
+            if (op.getOpcode().isJump())
+                branch = op;
+            else if (op.getOpcode() == Opcode.RET)
+                addFunctionEpilogue("retq");
+            else if (op.getOpcode() == Opcode.TAILCALL)
+                addFunctionEpilogue("jmp " + op.getOperand(0));
+            else
+                out.append("\t" + op + "\n");
+       }
 
-   /* add decendants of basic block */
-   private void addChildren(BasicBlock block, Stack<BasicBlock> stack,
-           HashMap<String, BasicBlock> map) {
-       List<BasicBlock> lst = block.getOutgoing();
-       BasicBlock child;
-       boolean seenAllParents;
-
-       // have to traverse the list backwards to get the order right
-       for (int i = lst.size() - 1; i >= 0; i--) { 
-           child = lst.get(i);
-
-           // skip if child has already been visited
-           if (map.get(child.getLabel()) != null)
-               continue;
-           // enforce topological ordering
-           seenAllParents = true;
-           for (BasicBlock parent : child.getIncoming()) {
-               if (map.get(parent.getLabel()) == null) {
-                  // check if we are in a loop
-                  if (parent.getLoopHeader() == child)
-                     continue;
-                  seenAllParents = false;
-                  break;
-               }
+       // the first successor is the fall through
+       if (block.getOutgoing().isEmpty())
+           return;
+       BasicBlock target = block.getOutgoing().get(0);
+       if (branch != null && branch.getOpcode() != Opcode.JMP) {
+           if (!isLabelOf(branch.getOperand(0), next)) {
+               out.append("\t" + branch + "\n");
+           }
+           else if (target != next) {
+               out.append("\t" + branch.getOpcode().getInverse() + " "
+                     + target + "\n");
+               return;
            }
-           if (!seenAllParents)
-              continue;
-
-            stack.push(child);
        }
+       if (target != next)
+           out.append("\tjmp " + target + "\n");
    }
 
-   public void allocateRegisters() {
-      List<BasicBlock> lstOfBlocks;
-      for (BasicBlock block: funs) {
-         lstOfBlocks = null; //convertTreeToList(block);
-         for (BasicBlock b : lstOfBlocks) {
-            b.computeGenAndKillSet();
-         }
-         
-      }
+   private boolean isLabelOf(Operand label, BasicBlock block) {
+       return block != null && label.equals(Operand.label(block.getLabel()));
    }
 
-   /* generate liveout for a single function */
-   private void generateLiveOut(BasicBlock tail) {
-      List<BasicBlock> blocks = null; //convertTreeToList(tail); 
-
-      /* generate gen and kill sets */
-      for (BasicBlock b : blocks) 
-         b.computeGenAndKillSet();
-      
-      boolean changed = true;
-      while (changed) {
-         changed = false;
-         for (BasicBlock block : blocks) {
-            if (block.liveOut())
-               changed = true;
-         }
-      }
+   /* map virtual registers of one function onto x86 registers */
+   private void allocateRegisters(FlowGraph graph) {
+      long start = System.nanoTime();
+      RegisterAllocator allocator;
+
+      if (linearScan)
+         allocator = new LinearScanAllocator(graph);
+      else
+         allocator = new GraphColoringAllocator(graph);
+
+      allocator.allocate();
+      spillSlots = allocator.getSpillSlots();
+      savedRegisters = allocator.getUsedCalleeSaved();
+      allocationTime += System.nanoTime() - start;
+      livenessTime += allocator.getLivenessTime();
    }
 
-   /*
-   // converts graph into an unordered list 
-   private List<BasicBlock> convertTreeToList(BasicBlock tail) {
-      List<BasicBlock> blocks = new LinkedList<BasicBlock>();
-      List<BasicBlock> queue = new LinkedList<BasicBlock>();
-      HashMap<String, BasicBlock> map = new HashMap<String, BasicBlock>();
-
-      BasicBlock tmp; 
-      queue.add(tail);
-
-      while (!queue.isEmpty()) {
-         tmp = queue.remove(0);
-         blocks.add(tmp);
-
-         map.put(tmp.getLabel(), tmp);
-         for (BasicBlock parent : tmp.getIncoming()) {
-            if (map.get(parent.getLabel()) == null)
-               queue.add(parent);
-               map.put(parent.getLabel(), parent);
-         }
-      }
+   public void setLinearScan(boolean flag) {
+      linearScan = flag;
+   }
+
+   public void setPooled(boolean flag) {
+      pooled = flag;
+   }
+
+   /* the functions are emitted on the threads of pool */
+   public void setFunctionPool(FunctionPool pool) {
+      functionPool = pool;
    }
-   */
-}
 
+   public Peephole getPeephole() {
+      return peephole;
+   }
+
+   public long getAllocationTime() {
+      return allocationTime;
+   }
+
+   public long getLivenessTime() {
+      return livenessTime;
+   }
+}
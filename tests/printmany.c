@@ -0,0 +1,11 @@
+/* printmany.mini the way print was compiled before, one printf each */
+#include <stdio.h>
+
+int main(void)
+{
+   long i;
+
+   for (i = 0; i < 10000000; i++)
+      printf("%ld\n", i * 7 - 35000000);
+   return 0;
+}